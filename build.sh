@@ -36,10 +36,10 @@ echo "Compiling..."
 
 if [ "$1" == "server" ]; then
     echo "Starting Discovery Server..."
-    java -cp out p2p.net.DiscoveryServer
+    java -cp out p2p.net.DiscoveryServer "${@:2}"
 elif [ "$1" == "client" ]; then
     echo "Starting Client..."
     java -cp out p2p.App
 else
-    echo "Usage: ./build.sh [server|client]"
+    echo "Usage: ./build.sh [server [options]|client]"
 fi
@@ -0,0 +1,125 @@
+package p2p;
+
+import p2p.net.PeerNode;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures chat throughput for bursts of small messages, and the CPU time
+ * both peers spend per message.
+ * <p>
+ * Two peers run in this process in LAN-only mode. The sender sends the
+ * messages as fast as {@code sendMessage} returns, or like a bot in bursts
+ * with a pause after each; the clock stops when the receiver has seen the
+ * last one. CPU time is for the whole process, so it covers encrypting,
+ * writing, reading and decrypting. On Linux it also counts the process's
+ * write system calls per message, which is about how many packets each
+ * message costs. Run it once as it is
+ * and once with {@code -Dp2p.batch.ms=2} (or another window) to compare
+ * against batching.
+ * <p>
+ * Usage: ChatBatchBenchmark [--messages 100000] [--size 64] [--burst 0]
+ * [--pause-ms 1] [--rounds 3] [--port 9820]
+ */
+public class ChatBatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = 100_000;
+        int size = 64;
+        int burst = 0; // All at once
+        int pauseMs = 1;
+        int rounds = 3;
+        int port = 9820;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--messages" -> messages = Integer.parseInt(args[++i]);
+                case "--size" -> size = Integer.parseInt(args[++i]);
+                case "--burst" -> burst = Integer.parseInt(args[++i]);
+                case "--pause-ms" -> pauseMs = Integer.parseInt(args[++i]);
+                case "--rounds" -> rounds = Integer.parseInt(args[++i]);
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                default -> System.err.println("Ignoring unknown option: " + args[i]);
+            }
+        }
+
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch[] done = { new CountDownLatch(1) };
+        int total = messages;
+        PeerNode receiver = new PeerNode("batch-rx", port, message -> {
+            if (message.startsWith("batch-tx: ") && received.incrementAndGet() == total)
+                done[0].countDown();
+        }, (requester, callback) -> callback.accept(true), (user, ok) -> {
+        }, (request, callback) -> callback.accept(true), (user, percent) -> {
+        });
+        receiver.setLanMode("only");
+        receiver.start();
+        CompletableFuture<Boolean> accepted = new CompletableFuture<>();
+        PeerNode sender = new PeerNode("batch-tx", port + 1, message -> {
+        }, (requester, callback) -> callback.accept(true), (user, ok) -> accepted.complete(ok),
+                (request, callback) -> callback.accept(true), (user, percent) -> {
+                });
+        sender.setLanMode("only");
+        sender.start();
+        sender.connectToPeer("127.0.0.1", port, "batch-rx");
+        if (!accepted.get(10, TimeUnit.SECONDS))
+            throw new IOException("Chat request was declined");
+        // Let the key exchange finish before the first message
+        Thread.sleep(1000);
+
+        String body = "x".repeat(Math.max(0, size - 8));
+        long batchMs = Long.getLong("p2p.batch.ms", 0);
+        System.out.printf("%d messages of %d bytes, %s, batching %s%n", messages, size,
+                burst > 0 ? "bursts of " + burst + " every " + pauseMs + " ms" : "back to back",
+                batchMs > 0 ? batchMs + " ms" : "off");
+        System.out.printf("%-7s %10s %12s %14s %12s%n", "round", "ms", "msgs/s", "CPU us/msg", "writes/msg");
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+                .getOperatingSystemMXBean();
+        try {
+            // The first round also warms up the JIT
+            for (int round = 0; round <= rounds; round++) {
+                received.set(0);
+                done[0] = new CountDownLatch(1);
+                long cpu = os.getProcessCpuTime();
+                long writes = writeCalls();
+                long start = System.nanoTime();
+                for (int i = 0; i < messages; i++) {
+                    sender.sendMessage("batch-rx", String.format("%07d ", i) + body);
+                    if (burst > 0 && (i + 1) % burst == 0)
+                        Thread.sleep(pauseMs);
+                }
+                if (!done[0].await(2, TimeUnit.MINUTES)) {
+                    System.out.printf("%-7s gave up after %d of %d messages%n", round, received.get(), messages);
+                    return;
+                }
+                long nanos = System.nanoTime() - start;
+                double cpuPerMessage = (os.getProcessCpuTime() - cpu) / 1e3 / messages;
+                String writesPerMessage = writes < 0 ? "n/a"
+                        : String.format("%.3f", (double) (writeCalls() - writes) / messages);
+                System.out.printf("%-7s %10d %12.0f %14.2f %12s%n", round == 0 ? "warm-up" : round,
+                        nanos / 1_000_000, messages * 1e9 / nanos, cpuPerMessage, writesPerMessage);
+            }
+        } finally {
+            System.exit(0);
+        }
+    }
+
+    /** Write system calls made by this process so far (Linux), or -1 if unknown. */
+    private static long writeCalls() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/io"))) {
+                if (line.startsWith("syscw:"))
+                    return Long.parseLong(line.substring(6).trim());
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux, or not readable
+        }
+        return -1;
+    }
+}
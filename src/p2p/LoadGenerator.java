@@ -0,0 +1,531 @@
+package p2p;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Headless load generator and soak test for the discovery server.
+ * <p>
+ * Simulates many clients on loopback. Each one registers, then heartbeats,
+ * polls GET_PEERS, pages LIST_PEERS and posts GLOBAL_MSG at its own random
+ * (Poisson) intervals. A few selector threads drive all the connections, so
+ * thousands of clients need no more than a handful of threads here.
+ * <p>
+ * Latency is measured from the moment a request is written to the moment
+ * its reply is read. Replies are matched per connection, in order, by type.
+ * GLOBAL_MSG carries its send time, so every client that receives the
+ * broadcast records a fanout delivery latency.
+ * <p>
+ * Given several cluster nodes, it spreads the clients over them round robin,
+ * so global chat fans out across the cluster and the throughput reported is
+ * the cluster's aggregate.
+ * <p>
+ * Every report interval it prints per-command throughput and p50/p99/p999,
+ * plus each node's heap, thread count and fanout health from STATS. At the
+ * end it prints the same table for the whole run. The server's default
+ * rate limits apply; raise them with --limit on the server when testing raw
+ * capacity.
+ * <p>
+ * Usage: LoadGenerator [--server host:port[,host:port...]] [--clients 1000] [--duration 60]
+ * [--ramp 500] [--heartbeat 0.1] [--poll 0.02] [--list 0.02] [--chat 0.01]
+ * [--report 5] [--threads 4]
+ * <p>
+ * Rates are per client per second; --ramp is connections opened per second.
+ */
+public class LoadGenerator {
+    private static final String[] COMMANDS = { "REGISTER", "HEARTBEAT", "GET_PEERS", "LIST_PEERS", "GLOBAL_MSG" };
+    private static final int REGISTER = 0, HEARTBEAT = 1, GET_PEERS = 2, LIST_PEERS = 3, FANOUT = 4;
+
+    private final List<InetSocketAddress> servers;
+    private final double heartbeatRate;
+    private final double pollRate;
+    private final double listRate;
+    private final double chatRate;
+    private final Histogram[] interval = new Histogram[COMMANDS.length];
+    private final Histogram[] total = new Histogram[COMMANDS.length];
+    private final AtomicLong linesSent = new AtomicLong();
+    private final AtomicLong linesReceived = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private volatile boolean running = true;
+
+    LoadGenerator(List<InetSocketAddress> servers, double heartbeatRate, double pollRate, double listRate,
+            double chatRate) {
+        this.servers = servers;
+        this.heartbeatRate = heartbeatRate;
+        this.pollRate = pollRate;
+        this.listRate = listRate;
+        this.chatRate = chatRate;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            interval[i] = new Histogram();
+            total[i] = new Histogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = "localhost:8888";
+        int clients = 1000;
+        int duration = 60;
+        int ramp = 500;
+        double heartbeat = 0.1;
+        double poll = 0.02;
+        double list = 0.02;
+        double chat = 0.01;
+        int report = 5;
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--server" -> target = args[++i];
+                case "--clients" -> clients = Integer.parseInt(args[++i]);
+                case "--duration" -> duration = Integer.parseInt(args[++i]);
+                case "--ramp" -> ramp = Integer.parseInt(args[++i]);
+                case "--heartbeat" -> heartbeat = Double.parseDouble(args[++i]);
+                case "--poll" -> poll = Double.parseDouble(args[++i]);
+                case "--list" -> list = Double.parseDouble(args[++i]);
+                case "--chat" -> chat = Double.parseDouble(args[++i]);
+                case "--report" -> report = Integer.parseInt(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                default -> System.err.println("Ignoring unknown option: " + args[i]);
+            }
+        }
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String node : target.split(",")) {
+            int colon = node.lastIndexOf(':');
+            servers.add(new InetSocketAddress(node.substring(0, colon).trim(),
+                    Integer.parseInt(node.substring(colon + 1).trim())));
+        }
+        new LoadGenerator(servers, heartbeat, poll, list, chat).run(clients, duration, ramp, report,
+                Math.max(1, threads));
+    }
+
+    void run(int clients, int durationSec, int rampPerSec, int reportSec, int threadCount) throws Exception {
+        System.out.printf("Load: %d clients against %s for %ds (heartbeat %.3f/s, poll %.3f/s, list %.3f/s,"
+                + " chat %.3f/s per client)%n", clients, servers, durationSec, heartbeatRate, pollRate, listRate,
+                chatRate);
+        Worker[] workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+
+        List<Control> controls = new ArrayList<>();
+        try {
+            for (InetSocketAddress server : servers)
+                controls.add(new Control(server));
+            long start = System.nanoTime();
+            long end = start + durationSec * 1_000_000_000L;
+            long nextReport = start + reportSec * 1_000_000_000L;
+            long lastReport = start;
+            int opened = 0;
+            while (System.nanoTime() < end) {
+                long now = System.nanoTime();
+                // Open connections at the ramp rate, a few per pass so reports stay on time
+                long due = Math.min(clients, (long) ((now - start) / 1e9 * rampPerSec) + 1);
+                for (int batch = 0; opened < due && batch < 100; batch++) {
+                    try {
+                        SocketChannel channel = SocketChannel.open(servers.get(opened % servers.size()));
+                        workers[opened % threadCount].adopt(new SimClient(opened, channel));
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                        System.err.println("Connect failed: " + e.getMessage());
+                    }
+                    opened++;
+                }
+                if (now >= nextReport) {
+                    printInterval((now - start) / 1_000_000_000L, (now - lastReport) / 1e9, opened,
+                            serverStats(controls));
+                    lastReport = now;
+                    nextReport += reportSec * 1_000_000_000L;
+                }
+                Thread.sleep(opened < clients ? 10 : 50);
+            }
+            List<String> finalStats = serverStats(controls);
+            running = false;
+            for (Worker worker : workers)
+                worker.join(2000);
+            printTotal((System.nanoTime() - start) / 1e9, finalStats);
+        } finally {
+            for (Control control : controls)
+                control.socket.close();
+        }
+    }
+
+    /** A connection to one node for STATS, outside the simulated load. */
+    private static final class Control {
+        final Socket socket;
+        final PrintWriter out;
+        final BufferedReader in;
+
+        Control(InetSocketAddress server) throws IOException {
+            socket = new Socket(server.getHostString(), server.getPort());
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        String stats() throws IOException {
+            out.println("STATS");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("STATS "))
+                    return line.substring(6);
+            }
+            return "(server closed the control connection)";
+        }
+    }
+
+    private static List<String> serverStats(List<Control> controls) throws IOException {
+        List<String> stats = new ArrayList<>(controls.size());
+        for (Control control : controls)
+            stats.add(control.stats());
+        return stats;
+    }
+
+    private void printInterval(long elapsedSec, double seconds, int opened, List<String> stats) {
+        System.out.printf("[%4ds] clients=%d sent=%.0f/s received=%.0f/s errors=%d disconnects=%d%n", elapsedSec,
+                opened, linesSent.getAndSet(0) / seconds, linesReceived.getAndSet(0) / seconds, errors.get(),
+                disconnects.get());
+        for (int n = 0; n < stats.size(); n++)
+            System.out.println("       " + nodeLabel(n) + pick(stats.get(n), "heapUsedMb", "heapMaxMb", "threads",
+                    "clients", "peers", "lagging", "dropped", "throttled"));
+        for (int i = 0; i < COMMANDS.length; i++) {
+            Histogram.Snapshot s = interval[i].snapshotAndReset();
+            if (s.count() > 0)
+                System.out.println("       " + format(i, s, seconds));
+        }
+    }
+
+    private void printTotal(double seconds, List<String> stats) {
+        System.out.println("=== Totals over " + Math.round(seconds) + "s"
+                + (servers.size() > 1 ? ", all " + servers.size() + " nodes" : "") + " ===");
+        for (int n = 0; n < stats.size(); n++)
+            System.out.println(nodeLabel(n) + pick(stats.get(n), "heapUsedMb", "heapMaxMb", "threads", "clients",
+                    "peers", "lagging", "dropped", "slowDisconnects", "throttled", "throttledBy"));
+        System.out.println("errors=" + errors.get() + " disconnects=" + disconnects.get());
+        for (int i = 0; i < COMMANDS.length; i++) {
+            Histogram.Snapshot s = total[i].snapshotAndReset();
+            System.out.println(format(i, s, seconds));
+        }
+    }
+
+    private String nodeLabel(int node) {
+        return servers.size() == 1 ? "server: " : "node " + servers.get(node).getPort() + ": ";
+    }
+
+    private static String format(int command, Histogram.Snapshot s, double seconds) {
+        String name = command == FANOUT ? "GLOBAL_MSG*" : COMMANDS[command];
+        return String.format("%-12s n=%8d %9.1f/s  p50=%8.2f p99=%8.2f p999=%8.2f max=%8.2f ms", name, s.count(),
+                s.count() / seconds, s.percentile(50) / 1000.0, s.percentile(99) / 1000.0,
+                s.percentile(99.9) / 1000.0, s.max() / 1000.0);
+    }
+
+    /** Selected key=value pairs from a STATS line. */
+    private static String pick(String stats, String... keys) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            for (String field : stats.split(" ")) {
+                if (field.startsWith(key + "=")) {
+                    sb.append(field).append(' ');
+                    break;
+                }
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private void record(int command, long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        interval[command].record(micros);
+        total[command].record(micros);
+    }
+
+    private static long nextDelay(double perSecond) {
+        if (perSecond <= 0)
+            return Long.MAX_VALUE / 4;
+        // Exponential inter-arrival times give Poisson traffic
+        return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / perSecond * 1e9);
+    }
+
+    /** One simulated peer; only touched by its worker thread. */
+    private final class SimClient {
+        final String name;
+        final SocketChannel channel;
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream(128);
+        final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        final List<ArrayDeque<Long>> pending;
+        final Map<Long, Long> pendingPages = new HashMap<>();
+        SelectionKey key;
+        long nextHeartbeat;
+        long nextPoll;
+        long nextList;
+        long nextChat;
+        long nextPageId;
+        String cursor = "-";
+
+        SimClient(int id, SocketChannel channel) {
+            this.name = "load" + id;
+            this.channel = channel;
+            this.pending = new ArrayList<>(COMMANDS.length);
+            for (int i = 0; i < COMMANDS.length; i++)
+                pending.add(new ArrayDeque<>());
+        }
+
+        void start(long now) {
+            send(REGISTER, "REGISTER " + name + " " + (10000 + Math.abs(name.hashCode()) % 50000), now);
+            nextHeartbeat = now + nextDelay(heartbeatRate);
+            nextPoll = now + nextDelay(pollRate);
+            nextList = now + nextDelay(listRate);
+            nextChat = now + nextDelay(chatRate);
+        }
+
+        void tick(long now) {
+            if (now >= nextHeartbeat) {
+                send(HEARTBEAT, "HEARTBEAT " + name, now);
+                nextHeartbeat = now + nextDelay(heartbeatRate);
+            }
+            if (now >= nextPoll) {
+                send(GET_PEERS, "GET_PEERS", now);
+                nextPoll = now + nextDelay(pollRate);
+            }
+            if (now >= nextList) {
+                long id = nextPageId++;
+                pendingPages.put(id, now);
+                write("LIST_PEERS " + id + " " + cursor + " 50");
+                nextList = now + nextDelay(listRate);
+            }
+            if (now >= nextChat) {
+                write("GLOBAL_MSG " + name + " lg " + now);
+                nextChat = now + nextDelay(chatRate);
+            }
+        }
+
+        private void send(int command, String line, long now) {
+            pending.get(command).add(now);
+            write(line);
+        }
+
+        private void write(String line) {
+            linesSent.incrementAndGet();
+            ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                if (pendingWrites.isEmpty())
+                    channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    pendingWrites.add(buffer);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        void onWritable() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer buffer = pendingWrites.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                    return;
+                pendingWrites.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onReadable(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                fail();
+                return;
+            }
+            long now = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    onLine(partial.toString(StandardCharsets.UTF_8), now);
+                    partial.reset();
+                } else {
+                    partial.write(b);
+                }
+            }
+        }
+
+        private void onLine(String line, long now) {
+            linesReceived.incrementAndGet();
+            if (line.startsWith("GLOBAL_MSG ")) {
+                // GLOBAL_MSG seq sender lg sentNanos
+                int tag = line.lastIndexOf(" lg ");
+                if (tag > 0) {
+                    try {
+                        record(FANOUT, now - Long.parseLong(line.substring(tag + 4)));
+                    } catch (NumberFormatException e) {
+                        // Someone else's chat
+                    }
+                }
+            } else if (line.equals("OK REGISTERED")) {
+                complete(REGISTER, now);
+            } else if (line.equals("OK HEARTBEAT")) {
+                complete(HEARTBEAT, now);
+            } else if (line.equals("ERROR NOT_REGISTERED")) {
+                complete(HEARTBEAT, now);
+                errors.incrementAndGet();
+                send(REGISTER, "REGISTER " + name + " " + (10000 + Math.abs(name.hashCode()) % 50000), now);
+            } else if (line.startsWith("PEERS ")) {
+                complete(GET_PEERS, now);
+            } else if (line.startsWith("PEER_PAGE ")) {
+                // PEER_PAGE id next list
+                String[] parts = line.split(" ", 4);
+                Long sent = pendingPages.remove(Long.parseLong(parts[1]));
+                if (sent != null)
+                    record(LIST_PEERS, now - sent);
+                cursor = parts[2];
+            } else if (line.startsWith("ERROR")) {
+                errors.incrementAndGet();
+            }
+        }
+
+        private void complete(int command, long now) {
+            Long sent = pending.get(command).poll();
+            if (sent != null)
+                record(command, now - sent);
+        }
+
+        void fail() {
+            disconnects.incrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final Selector selector;
+        private final Queue<SimClient> incoming = new ConcurrentLinkedQueue<>();
+        private final List<SimClient> clients = new ArrayList<>();
+
+        Worker(int index) throws IOException {
+            super("load-worker-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void adopt(SimClient client) {
+            incoming.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (running) {
+                    selector.select(5);
+                    long now = System.nanoTime();
+                    SimClient client;
+                    while ((client = incoming.poll()) != null) {
+                        client.channel.configureBlocking(false);
+                        client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+                        clients.add(client);
+                        client.start(now);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        SimClient c = (SimClient) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                c.onReadable(buffer);
+                            if (key.isValid() && key.isWritable())
+                                c.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            c.fail();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    now = System.nanoTime();
+                    for (SimClient c : clients) {
+                        if (c.key.isValid())
+                            c.tick(now);
+                    }
+                }
+                for (SimClient c : clients)
+                    c.channel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Load worker failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in microseconds: exact below 128us, then
+     * 64 sub-buckets per power of two (under 2% error). Lock-free to record.
+     */
+    static final class Histogram {
+        private static final int LINEAR = 128;
+        private static final int SUB_BUCKETS = 64;
+        private static final int BUCKETS = LINEAR + (63 - 7) * SUB_BUCKETS;
+
+        record Snapshot(long[] counts, long count, long max) {
+            /** Upper bound of the bucket holding the given percentile. */
+            long percentile(double pct) {
+                long rank = (long) Math.ceil(count * pct / 100.0);
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank && counts[i] > 0)
+                        return Math.min(max, upperBound(i));
+                }
+                return max;
+            }
+        }
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            counts.incrementAndGet(index(micros));
+            max.accumulateAndGet(micros, Math::max);
+        }
+
+        Snapshot snapshotAndReset() {
+            long[] copy = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.getAndSet(i, 0);
+                count += copy[i];
+            }
+            return new Snapshot(copy, count, max.getAndSet(0));
+        }
+
+        private static int index(long v) {
+            if (v < LINEAR)
+                return (int) v;
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            return LINEAR + (exponent - 7) * SUB_BUCKETS + (int) ((v >> (exponent - 6)) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int index) {
+            if (index < LINEAR)
+                return index;
+            int exponent = 7 + (index - LINEAR) / SUB_BUCKETS;
+            long lower = (long) (SUB_BUCKETS + (index - LINEAR) % SUB_BUCKETS) << (exponent - 6);
+            return lower + (1L << (exponent - 6)) - 1;
+        }
+    }
+}
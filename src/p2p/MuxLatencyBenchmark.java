@@ -0,0 +1,156 @@
+package p2p;
+
+import p2p.net.PeerNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures chat latency while files are being sent over the same peer
+ * connection.
+ * <p>
+ * Two peers run in this process in LAN-only mode. The sender sends a
+ * timestamped chat message every interval, first with the connection idle
+ * and then while it sends one or more files to the receiver at once; the
+ * receiver notes how long each message took. With several files it also
+ * prints when each one finished, which shows whether they shared the
+ * connection or went one after the other. Run it with {@code -Dp2p.mux=false}
+ * to compare against transfers that do not multiplex.
+ * <p>
+ * Usage: MuxLatencyBenchmark [--file-mb 200] [--files 1] [--interval-ms 50]
+ * [--port 9810]
+ */
+public class MuxLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = 200;
+        int files = 1;
+        int intervalMs = 50;
+        int port = 9810;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--file-mb" -> fileMb = Integer.parseInt(args[++i]);
+                case "--files" -> files = Integer.parseInt(args[++i]);
+                case "--interval-ms" -> intervalMs = Integer.parseInt(args[++i]);
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                default -> System.err.println("Ignoring unknown option: " + args[i]);
+            }
+        }
+
+        List<File> sources = new ArrayList<>();
+        for (int f = 0; f < files; f++) {
+            File file = File.createTempFile("mux" + f + "-", ".bin");
+            file.deleteOnExit();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                byte[] block = new byte[1024 * 1024];
+                for (int i = 0; i < fileMb; i++) {
+                    ThreadLocalRandom.current().nextBytes(block);
+                    raf.write(block);
+                }
+            }
+            sources.add(file);
+        }
+
+        // A private store, so earlier runs' copies are not "already there"
+        Path downloads = Files.createTempDirectory("mux-downloads");
+        System.setProperty("p2p.downloads", downloads.toString());
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        ConcurrentHashMap<String, Long> finished = new ConcurrentHashMap<>();
+        LinkedBlockingQueue<String> results = new LinkedBlockingQueue<>();
+        CompletableFuture<Boolean> accepted = new CompletableFuture<>();
+        PeerNode receiver = new PeerNode("mux-rx", port, message -> {
+            if (message.startsWith("mux-tx: ping ")) {
+                latencies.add(System.nanoTime() - Long.parseLong(message.substring("mux-tx: ping ".length())));
+            } else if (message.contains(" received") || message.contains(" failed")) {
+                finished.put(message, System.nanoTime());
+                results.add(message);
+            }
+        }, (requester, callback) -> callback.accept(true), (user, ok) -> {
+        }, (request, callback) -> callback.accept(true), (user, percent) -> {
+        });
+        receiver.setLanMode("only");
+        receiver.start();
+        PeerNode sender = new PeerNode("mux-tx", port + 1, message -> {
+        }, (requester, callback) -> callback.accept(true), (user, ok) -> accepted.complete(ok),
+                (request, callback) -> callback.accept(true), (user, percent) -> {
+                });
+        sender.setLanMode("only");
+        sender.start();
+        sender.connectToPeer("127.0.0.1", port, "mux-rx");
+        if (!accepted.get(10, TimeUnit.SECONDS))
+            throw new IOException("Chat request was declined");
+        // Let the key exchange finish before the first message
+        Thread.sleep(1000);
+
+        System.out.printf("%d x %d MB, chat every %d ms, mux %s%n", files, fileMb, intervalMs,
+                "false".equals(System.getProperty("p2p.mux")) ? "off" : "on");
+        try {
+            // Idle: two seconds of pings with nothing else on the connection
+            for (long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2); System.nanoTime() < end;) {
+                sender.sendMessage("mux-rx", "ping " + System.nanoTime());
+                Thread.sleep(intervalMs);
+            }
+            Thread.sleep(500);
+            report("idle", latencies);
+            latencies.clear();
+
+            long start = System.nanoTime();
+            for (File file : sources)
+                sender.sendFile("mux-rx", file);
+            int done = 0;
+            long lastResult = start;
+            while (done < files) {
+                sender.sendMessage("mux-rx", "ping " + System.nanoTime());
+                String result = results.poll(intervalMs, TimeUnit.MILLISECONDS);
+                if (result != null) {
+                    done++;
+                    lastResult = System.nanoTime();
+                    System.out.printf("  %-40s after %6d ms%n", result.replace("System: ", ""),
+                            (finished.get(result) - start) / 1_000_000);
+                }
+                // Without MUX a second offer replaces the first, so not every file arrives
+                if (System.nanoTime() - lastResult > TimeUnit.SECONDS.toNanos(30)) {
+                    System.out.printf("  gave up waiting after %d of %d files%n", done, files);
+                    files = done;
+                }
+            }
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            Thread.sleep(500);
+            report("transfer", latencies);
+            System.out.printf("%d MB in %d ms, %.1f MB/s%n", done * fileMb, ms, done * fileMb * 1000.0 / ms);
+        } finally {
+            System.exit(0);
+        }
+    }
+
+    private static void report(String phase, List<Long> latencies) {
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        if (sorted.isEmpty()) {
+            System.out.printf("%-9s no messages arrived%n", phase);
+            return;
+        }
+        Collections.sort(sorted);
+        System.out.printf("%-9s %4d msgs  p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n", phase, sorted.size(),
+                millis(sorted, 0.50), millis(sorted, 0.99), sorted.get(sorted.size() - 1) / 1e6);
+    }
+
+    private static double millis(List<Long> sorted, double quantile) {
+        int index = (int) Math.min(sorted.size() - 1, Math.round(quantile * (sorted.size() - 1)));
+        return sorted.get(index) / 1e6;
+    }
+}
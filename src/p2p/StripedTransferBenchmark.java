@@ -0,0 +1,206 @@
+package p2p;
+
+import p2p.net.PeerNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures file transfer throughput against the number of striped data
+ * streams ({@code -Dp2p.streams}).
+ * <p>
+ * Two peers run in this process in LAN-only mode. Everything the sender
+ * writes passes through a relay that emulates a long path: each connection
+ * may have at most one window of bytes in flight, and a window is delivered
+ * only after the one-way latency has passed, like a TCP connection limited
+ * by its receive window. One stream then tops out near window / RTT, which
+ * is what striping is meant to get past.
+ * <p>
+ * Usage: StripedTransferBenchmark [--file-mb 64] [--latency-ms 20]
+ * [--window-kb 256] [--streams 1,2,4,8] [--port 9800]
+ */
+public class StripedTransferBenchmark {
+
+    private record Packet(byte[] data, int length, long dueNanos) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = 64;
+        int latencyMs = 20;
+        int windowKb = 256;
+        List<Integer> streamCounts = List.of(1, 2, 4, 8);
+        int port = 9800;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--file-mb" -> fileMb = Integer.parseInt(args[++i]);
+                case "--latency-ms" -> latencyMs = Integer.parseInt(args[++i]);
+                case "--window-kb" -> windowKb = Integer.parseInt(args[++i]);
+                case "--streams" -> {
+                    streamCounts = new ArrayList<>();
+                    for (String n : args[++i].split(","))
+                        streamCounts.add(Integer.parseInt(n.trim()));
+                }
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                default -> System.err.println("Ignoring unknown option: " + args[i]);
+            }
+        }
+
+        File file = File.createTempFile("striped", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < fileMb; i++) {
+                ThreadLocalRandom.current().nextBytes(block);
+                raf.write(block);
+            }
+        }
+
+        // A private store, so earlier runs' copies are not "already there"
+        Path downloads = Files.createTempDirectory("striped-downloads");
+        System.setProperty("p2p.downloads", downloads.toString());
+
+        ExecutorService relayPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "relay");
+            t.setDaemon(true);
+            return t;
+        });
+        int receiverPort = port;
+        int relayPort = port + 1;
+        startRelay(relayPool, relayPort, receiverPort, latencyMs, windowKb * 1024);
+
+        LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        CompletableFuture<Boolean> accepted = new CompletableFuture<>();
+        PeerNode receiver = new PeerNode("bench-rx", receiverPort, message -> {
+            if (message.contains(" received") || message.contains(" failed"))
+                received.add(message);
+        }, (requester, callback) -> callback.accept(true), (user, ok) -> {
+        }, (request, callback) -> callback.accept(true), (user, percent) -> {
+        });
+        receiver.setLanMode("only");
+        receiver.setAdvertisedPort(relayPort);
+        receiver.start();
+        PeerNode sender = new PeerNode("bench-tx", port + 2, message -> {
+        }, (requester, callback) -> callback.accept(true), (user, ok) -> accepted.complete(ok),
+                (request, callback) -> callback.accept(true), (user, percent) -> {
+                });
+        sender.setLanMode("only");
+        sender.start();
+        sender.connectToPeer("127.0.0.1", relayPort, "bench-rx");
+        if (!accepted.get(10, TimeUnit.SECONDS))
+            throw new IOException("Chat request was declined");
+        // Let the key exchange finish before the first FILE_REQ
+        Thread.sleep(1000);
+
+        File target = new File(PeerNode.downloadsDirectory(), file.getName());
+        System.out.printf("%d MB file, %d ms one-way latency, %d KB window per connection%n", fileMb, latencyMs,
+                windowKb);
+        System.out.printf("%-8s %10s %10s%n", "streams", "ms", "MB/s");
+        try {
+            for (int streams : streamCounts) {
+                System.setProperty("p2p.streams", String.valueOf(streams));
+                Files.deleteIfExists(target.toPath());
+                long start = System.nanoTime();
+                sender.sendFile("bench-rx", file);
+                String result = received.poll(10, TimeUnit.MINUTES);
+                long ms = (System.nanoTime() - start) / 1_000_000;
+                if (result == null || !result.contains(" received") || target.length() != file.length()) {
+                    System.out.printf("%-8d   failed: %s%n", streams, result == null ? "timed out" : result);
+                    continue;
+                }
+                System.out.printf("%-8d %10d %10.1f%n", streams, ms, fileMb * 1000.0 / ms);
+            }
+        } finally {
+            Files.deleteIfExists(target.toPath());
+            System.exit(0);
+        }
+    }
+
+    /** Accepts on {@code port} and relays each connection to {@code target} through {@link #delay}. */
+    private static void startRelay(ExecutorService pool, int port, int target, int latencyMs, int window)
+            throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        pool.execute(() -> {
+            while (true) {
+                try {
+                    Socket client = server.accept();
+                    Socket upstream = new Socket("127.0.0.1", target);
+                    client.setTcpNoDelay(true);
+                    upstream.setTcpNoDelay(true);
+                    pool.execute(() -> delay(client, upstream, pool, latencyMs, window));
+                    pool.execute(() -> delay(upstream, client, pool, latencyMs, window));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies {@code from} to {@code to}, holding each read for the one-way
+     * latency and letting at most {@code window} bytes be in flight.
+     */
+    private static void delay(Socket from, Socket to, ExecutorService pool, int latencyMs, int window) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "relay-acks");
+            t.setDaemon(true);
+            return t;
+        });
+        LinkedBlockingQueue<Packet> inFlight = new LinkedBlockingQueue<>();
+        Semaphore credit = new Semaphore(window);
+        long latency = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        pool.execute(() -> {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Packet packet = inFlight.take();
+                    if (packet.length < 0)
+                        break;
+                    long wait = packet.dueNanos - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    out.write(packet.data, 0, packet.length);
+                    out.flush();
+                    // The acknowledgement takes another one-way trip to free the window
+                    timer.schedule(() -> credit.release(packet.length), latency, TimeUnit.NANOSECONDS);
+                }
+                to.shutdownOutput();
+            } catch (IOException | InterruptedException e) {
+                // Either side closed
+            } finally {
+                timer.shutdown();
+            }
+        });
+        try (InputStream in = from.getInputStream()) {
+            int chunk = Math.min(window, 64 * 1024);
+            while (true) {
+                credit.acquire(chunk);
+                byte[] data = new byte[chunk];
+                int n = in.read(data);
+                if (n < 0)
+                    break;
+                credit.release(chunk - n);
+                inFlight.add(new Packet(data, n, System.nanoTime() + latency));
+            }
+        } catch (IOException | InterruptedException e) {
+            // Either side closed
+        }
+        inFlight.add(new Packet(null, -1, 0));
+    }
+}
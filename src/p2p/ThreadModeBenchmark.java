@@ -0,0 +1,193 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the discovery server's threading modes under many idle
+ * connections plus a burst of global messages.
+ * <p>
+ * Each run starts the server as a child JVM so the numbers read from
+ * /proc/&lt;pid&gt; (resident memory, thread count, voluntary and involuntary
+ * context switches summed over its threads) belong to the server alone.
+ * The connections are held by one selector thread in this process.
+ * <p>
+ * Modes: "threads" (one platform thread per connection), "virtual" (the same
+ * code on virtual threads, JDK 21+) and "nio" (selector loops). Linux only.
+ * <p>
+ * Usage: ThreadModeBenchmark [--connections 1000,10000] [--messages 20]
+ * [--modes threads,virtual,nio] [--port 9700]
+ */
+public class ThreadModeBenchmark {
+
+    private record Sample(long rssKb, int threads, long contextSwitches) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> counts = List.of(1000, 10000);
+        int messages = 20;
+        String[] modes = { "threads", "virtual", "nio" };
+        int port = 9700;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--connections" -> {
+                    counts = new ArrayList<>();
+                    for (String n : args[++i].split(","))
+                        counts.add(Integer.parseInt(n.trim()));
+                }
+                case "--messages" -> messages = Integer.parseInt(args[++i]);
+                case "--modes" -> modes = args[++i].split(",");
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                default -> System.err.println("Ignoring unknown option: " + args[i]);
+            }
+        }
+
+        System.out.printf("%-8s %7s %8s %8s %10s %12s %10s %10s%n", "mode", "conns", "threads", "rss MB",
+                "KB/conn", "ctxsw/msg", "burst ms", "idle cs/s");
+        for (int count : counts) {
+            for (String mode : modes) {
+                if (mode.equals("virtual") && Runtime.version().feature() < 21) {
+                    System.out.printf("%-8s %7d   skipped: needs JDK 21+ (running %s)%n", mode, count,
+                            System.getProperty("java.version"));
+                    continue;
+                }
+                run(mode.trim(), count, messages, port++);
+            }
+        }
+    }
+
+    private static void run(String mode, int count, int messages, int port) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (mode.equals("virtual"))
+            command.add("-Dp2p.virtualThreads=true");
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "p2p.net.DiscoveryServer",
+                "--port", String.valueOf(port), "--peer-ttl", "3600", "--outbox", String.valueOf(messages * 2),
+                "--limit", "*=off", "--limit", "GLOBAL_MSG=off", "--limit", "REGISTER=off"));
+        if (mode.equals("nio"))
+            command.add("--nio");
+        Process server = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null"))).start();
+
+        List<SocketChannel> channels = new ArrayList<>(count + 1);
+        try (Selector selector = Selector.open()) {
+            awaitPort(port);
+            Sample base = sample(server.pid());
+
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                channel.write(ByteBuffer.wrap(("REGISTER bench" + i + " " + (20000 + i) + "\n")
+                        .getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                channels.add(channel);
+            }
+            SocketChannel sender = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            sender.configureBlocking(false);
+            sender.register(selector, SelectionKey.OP_READ);
+            channels.add(sender);
+
+            // Every connection gets its OK REGISTERED first
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            drain(selector, buffer, count);
+            Thread.sleep(1000);
+            Sample idleStart = sample(server.pid());
+            Thread.sleep(2000);
+            Sample idle = sample(server.pid());
+
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                sender.write(ByteBuffer.wrap(("GLOBAL_MSG bench burst " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            drain(selector, buffer, (long) (count + 1) * messages);
+            long burstMs = (System.nanoTime() - start) / 1_000_000;
+            Sample after = sample(server.pid());
+
+            long delivered = (long) (count + 1) * messages;
+            System.out.printf("%-8s %7d %8d %8.1f %10.1f %12.3f %10d %10.1f%n", mode, count, idle.threads,
+                    idle.rssKb / 1024.0, (idle.rssKb - base.rssKb) / (double) count,
+                    (after.contextSwitches - idle.contextSwitches) / (double) delivered, burstMs,
+                    (idle.contextSwitches - idleStart.contextSwitches) / 2.0);
+        } finally {
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /** Reads from every connection until {@code lines} newlines have arrived in total. */
+    private static void drain(Selector selector, ByteBuffer buffer, long lines) throws IOException {
+        long seen = 0;
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (seen < lines) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("Timed out: " + seen + " of " + lines + " lines");
+            selector.select(1000);
+            for (SelectionKey key : selector.selectedKeys()) {
+                buffer.clear();
+                int n = ((SocketChannel) key.channel()).read(buffer);
+                for (int i = 0; i < n; i++) {
+                    if (buffer.get(i) == '\n')
+                        seen++;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static Sample sample(long pid) throws IOException {
+        Path proc = Paths.get("/proc", String.valueOf(pid));
+        long rss = 0;
+        int threads = 0;
+        for (String line : Files.readAllLines(proc.resolve("status"))) {
+            if (line.startsWith("VmRSS:"))
+                rss = Long.parseLong(line.replaceAll("\\D", ""));
+            else if (line.startsWith("Threads:"))
+                threads = Integer.parseInt(line.replaceAll("\\D", ""));
+        }
+        long switches = 0;
+        try (DirectoryStream<Path> tasks = Files.newDirectoryStream(proc.resolve("task"))) {
+            for (Path task : tasks) {
+                try {
+                    for (String line : Files.readAllLines(task.resolve("status"))) {
+                        if (line.contains("ctxt_switches:"))
+                            switches += Long.parseLong(line.replaceAll("\\D", ""));
+                    }
+                } catch (IOException e) {
+                    // Thread exited while we were reading
+                }
+            }
+        }
+        return new Sample(rss, threads, switches);
+    }
+}
@@ -0,0 +1,255 @@
+package p2p.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Numbers global chat messages and keeps the most recent ones for replay.
+ * <p>
+ * Every message gets the next sequence number and is stored as its encoded
+ * "GLOBAL_MSG seq sender content" frame in one circular byte arena:
+ * {@code [seq:8][length:4][frame]}. Sequence numbers are consecutive, so the
+ * index is just two int arrays (offset and length by {@code seq & mask}) and
+ * storing a message allocates nothing beyond the frame that is broadcast
+ * anyway. The oldest messages are evicted when either the entry limit or the
+ * arena is full.
+ * <p>
+ * With a history file the arena is a memory-mapped region instead of heap,
+ * and a small header at the start of the file records where the live range
+ * begins and ends, so history (and the sequence) survives a restart.
+ * <p>
+ * The epoch identifies one run of sequence numbers. A client that comes back
+ * with a different epoch (server restarted without a history file, or a
+ * different cluster node) gets everything that is kept.
+ */
+final class ChatHistory {
+    private static final int FILE_MAGIC = 0x50324348; // "P2CH"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_HEADER = 12;
+    private static final long WRAP_MARKER = -1;
+    private static final int BYTES_PER_ENTRY = 512;
+    private static final int MIN_ARENA = 1 << 20;
+    private static final int REPLAY_BATCH_BYTES = 32 * 1024;
+
+    /** Encoded frames replayed in one batch, ending at {@code lastSeq}. */
+    record Batch(ByteBuffer frames, long lastSeq) {
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final ByteBuffer arena;
+    private final int dataStart;
+    private final boolean mapped;
+
+    private long epoch;
+    private long firstSeq = 1; // oldest kept
+    private long nextSeq = 1;
+    private int head; // where the next record goes
+
+    /**
+     * @param capacity messages to keep; 0 numbers messages without keeping any
+     * @param file     memory-mapped backing file, or null to keep history on heap
+     */
+    ChatHistory(int capacity, Path file) throws IOException {
+        this.capacity = capacity;
+        int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = slots - 1;
+        this.offsets = new int[capacity == 0 ? 0 : slots];
+        this.lengths = new int[capacity == 0 ? 0 : slots];
+        int arenaSize = capacity == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE - HEADER_SIZE,
+                Math.max(MIN_ARENA, (long) capacity * BYTES_PER_ENTRY));
+
+        if (file != null && capacity > 0) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                this.arena = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + arenaSize);
+            }
+            this.dataStart = HEADER_SIZE;
+            this.mapped = true;
+            recover();
+        } else {
+            this.arena = ByteBuffer.allocate(arenaSize);
+            this.dataStart = 0;
+            this.mapped = false;
+            this.epoch = newEpoch();
+        }
+        this.head = Math.max(head, dataStart);
+    }
+
+    synchronized long epoch() {
+        return epoch;
+    }
+
+    synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    synchronized int size() {
+        return (int) (nextSeq - firstSeq);
+    }
+
+    /**
+     * Numbers a message, stores it and hands its frame to {@code fanout}. The
+     * fanout runs under the history lock so every client sees sequence
+     * numbers in order; it must only queue, never block.
+     */
+    synchronized void append(String sender, String content, Consumer<ByteBuffer> fanout) {
+        long seq = nextSeq++;
+        ByteBuffer frame = Outbox.encode("GLOBAL_MSG " + seq + " " + sender + " " + content);
+        if (capacity > 0)
+            store(seq, frame);
+        else
+            firstSeq = nextSeq;
+        fanout.accept(frame);
+    }
+
+    /**
+     * Copies the frames after {@code afterSeq}, up to about {@code maxBytes},
+     * into a fresh buffer. Returns null once the caller is caught up.
+     */
+    synchronized Batch readAfter(long afterSeq, int maxBytes) {
+        long seq = Math.max(afterSeq + 1, firstSeq);
+        if (seq >= nextSeq)
+            return null;
+        long end = seq;
+        int total = 0;
+        while (end < nextSeq && (total == 0 || total + lengths[slot(end)] <= maxBytes)) {
+            total += lengths[slot(end)];
+            end++;
+        }
+        ByteBuffer out = ByteBuffer.allocate(total);
+        for (long s = seq; s < end; s++) {
+            int offset = offsets[slot(s)] + RECORD_HEADER;
+            out.put(arena.duplicate().limit(offset + lengths[slot(s)]).position(offset));
+        }
+        out.flip();
+        return new Batch(out, end - 1);
+    }
+
+    /**
+     * Replay for one client: every kept frame after {@code afterSeq} (all of
+     * them if {@code clientEpoch} is not ours), in batches, then
+     * "HISTORY_END epoch lastSeq" naming the last frame replayed. Messages
+     * published while the replay runs are picked up too; the client drops the
+     * copies it also got live.
+     */
+    Outbox.Backfill replay(String clientEpoch, long afterSeq) {
+        long currentEpoch = epoch();
+        long start = Long.toString(currentEpoch).equals(clientEpoch) ? afterSeq : 0;
+        return new Outbox.Backfill() {
+            private long cursor = start;
+            private boolean done;
+
+            @Override
+            public ByteBuffer next() {
+                if (done)
+                    return null;
+                Batch batch = readAfter(cursor, REPLAY_BATCH_BYTES);
+                if (batch != null) {
+                    cursor = batch.lastSeq();
+                    return batch.frames();
+                }
+                done = true;
+                return Outbox.encode("HISTORY_END " + currentEpoch + " " + cursor);
+            }
+        };
+    }
+
+    private int slot(long seq) {
+        return (int) (seq & mask);
+    }
+
+    private void store(long seq, ByteBuffer frame) {
+        int length = frame.remaining();
+        int need = RECORD_HEADER + length;
+        if (need > arena.capacity() - dataStart) {
+            // Larger than the whole arena; the index must stay consecutive, so start over
+            firstSeq = nextSeq;
+            writeHeader();
+            return;
+        }
+        if (nextSeq - 1 - firstSeq >= capacity)
+            firstSeq++;
+
+        if (head + need > arena.capacity()) {
+            // Everything between head and the end is older than what sits at the start
+            while (firstSeq < seq && offsets[slot(firstSeq)] >= head)
+                firstSeq++;
+            if (arena.capacity() - head >= 8)
+                arena.putLong(head, WRAP_MARKER);
+            head = dataStart;
+        }
+        while (firstSeq < seq && offsets[slot(firstSeq)] >= head && offsets[slot(firstSeq)] < head + need)
+            firstSeq++;
+
+        arena.putLong(head, seq);
+        arena.putInt(head + 8, length);
+        arena.put(head + RECORD_HEADER, frame, frame.position(), length);
+        offsets[slot(seq)] = head;
+        lengths[slot(seq)] = length;
+        head += need;
+        writeHeader();
+    }
+
+    // ---- Memory-mapped file ----
+
+    private void writeHeader() {
+        if (!mapped)
+            return;
+        arena.putInt(0, FILE_MAGIC);
+        arena.putInt(4, FORMAT_VERSION);
+        arena.putInt(8, arena.capacity());
+        arena.putLong(12, epoch);
+        arena.putLong(20, firstSeq);
+        arena.putLong(28, nextSeq);
+        arena.putInt(36, firstSeq < nextSeq ? offsets[slot(firstSeq)] : head);
+        arena.putInt(40, head);
+    }
+
+    /** Rebuilds the index by walking the records from the oldest one. */
+    private void recover() {
+        if (arena.getInt(0) != FILE_MAGIC || arena.getInt(4) != FORMAT_VERSION
+                || arena.getInt(8) != arena.capacity()) {
+            // New file, or sized for a different --history
+            epoch = newEpoch();
+            head = dataStart;
+            writeHeader();
+            return;
+        }
+        epoch = arena.getLong(12);
+        long first = arena.getLong(20);
+        long next = arena.getLong(28);
+        int offset = arena.getInt(36);
+        head = arena.getInt(40);
+        nextSeq = next;
+        firstSeq = Math.max(first, next - capacity);
+
+        for (long seq = first; seq < next; seq++) {
+            if (offset < dataStart || arena.capacity() - offset < RECORD_HEADER
+                    || arena.getLong(offset) == WRAP_MARKER)
+                offset = dataStart;
+            int length = arena.getInt(offset + 8);
+            if (arena.getLong(offset) != seq || length <= 0 || offset + RECORD_HEADER + length > arena.capacity()) {
+                System.err.println("Chat history damaged at seq " + seq + "; keeping what came after");
+                firstSeq = next;
+                break;
+            }
+            offsets[slot(seq)] = offset;
+            lengths[slot(seq)] = length;
+            offset += RECORD_HEADER + length;
+        }
+        writeHeader();
+    }
+
+    private static long newEpoch() {
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+}
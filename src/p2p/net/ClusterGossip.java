@@ -0,0 +1,161 @@
+package p2p.net;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replicates registrations and global chat between discovery nodes.
+ * <p>
+ * Each node dials every other node listed in --cluster on its normal client
+ * port, identifies itself with CLUSTER_HELLO and the shared --cluster-secret,
+ * and then streams:
+ * <ul>
+ * <li>GOSSIP_PEER user address port lastSeen -- entries refreshed by a local
+ * REGISTER or HEARTBEAT since the last push, every {@link #PUSH_INTERVAL_MS};
+ * plus the whole table every {@link #FULL_SYNC_INTERVAL_MS} as anti-entropy.
+ * Receivers merge last-writer-wins on lastSeen, so every node expires an
+ * entry at the same time without tombstones (this assumes node clocks are
+ * roughly in sync).</li>
+ * <li>GOSSIP_MSG sender content -- global chat from a local client, broadcast
+ * by the receiver to its own clients only (the mesh is full, so nothing is
+ * forwarded twice).</li>
+ * <li>GOSSIP_ROOM room sender content -- a room message from a local member,
+ * delivered by the receiver to its own members of that room.</li>
+ * </ul>
+ * Links never read beyond the hello reply, and a link that cannot keep up
+ * drops relayed messages rather than stalling its node.
+ */
+final class ClusterGossip {
+    private static final long PUSH_INTERVAL_MS = 1_000;
+    private static final long FULL_SYNC_INTERVAL_MS = 30_000;
+    private static final long RECONNECT_DELAY_MS = 2_000;
+    private static final int RELAY_QUEUE_SIZE = 10_000;
+
+    private final DiscoveryServer server;
+    private final String nodeId;
+    private final String secret;
+    private final List<Link> links = new ArrayList<>();
+
+    ClusterGossip(DiscoveryServer server, String nodeId, String secret, List<InetSocketAddress> members) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.secret = secret;
+        for (InetSocketAddress member : members) {
+            links.add(new Link(member));
+        }
+    }
+
+    void start() {
+        for (Link link : links) {
+            link.start();
+        }
+    }
+
+    /** True if {@code offered} is the cluster secret; compared in constant time. */
+    boolean acceptsSecret(String offered) {
+        return !secret.isEmpty() && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                offered.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Forwards a global message from a local client to every other node. */
+    void relayGlobal(String sender, String content) {
+        for (Link link : links) {
+            link.relay("GOSSIP_MSG " + sender + " " + content);
+        }
+    }
+
+    /** Forwards a room message from a local member to every other node. */
+    void relayRoom(String room, String sender, String content) {
+        for (Link link : links) {
+            link.relay("GOSSIP_ROOM " + room + " " + sender + " " + content);
+        }
+    }
+
+    private final class Link extends Thread {
+        private final InetSocketAddress address;
+        private final BlockingQueue<String> relayQueue = new LinkedBlockingQueue<>(RELAY_QUEUE_SIZE);
+
+        Link(InetSocketAddress address) {
+            super("cluster-link-" + address.getPort());
+            setDaemon(true);
+            this.address = address;
+        }
+
+        void relay(String line) {
+            // offer(), not put(): a slow node must not stall local fanout
+            relayQueue.offer(line);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, 2000);
+                    socket.setTcpNoDelay(true);
+                    PrintWriter out = new PrintWriter(new BufferedWriter(
+                            new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false);
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+                    out.println("CLUSTER_HELLO " + nodeId + " " + secret);
+                    out.flush();
+                    socket.setSoTimeout(5000);
+                    String reply = in.readLine();
+                    if (!"OK CLUSTER".equals(reply)) {
+                        System.err.println("Cluster node " + address + " refused link: " + reply);
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                        continue;
+                    }
+                    System.out.println("Cluster link up: " + nodeId + " -> " + address);
+                    stream(out);
+                } catch (IOException e) {
+                    // Node down or link broken; retry below
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void stream(PrintWriter out) throws InterruptedException, IOException {
+            // A fresh link starts with a full sync
+            long lastPush = 0;
+            long lastFullSync = 0;
+            while (true) {
+                String line = relayQueue.poll(PUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                while (line != null) {
+                    out.println(line);
+                    line = relayQueue.poll();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastPush >= PUSH_INTERVAL_MS) {
+                    boolean full = now - lastFullSync >= FULL_SYNC_INTERVAL_MS;
+                    for (DiscoveryServer.PeerInfo info : full ? server.registry().all()
+                            : server.registry().touchedSince(lastPush)) {
+                        out.println("GOSSIP_PEER " + info.username() + " " + info.address() + " " + info.port()
+                                + " " + info.lastSeen());
+                    }
+                    if (full)
+                        lastFullSync = now;
+                    lastPush = now;
+                }
+                out.flush();
+                if (out.checkError())
+                    throw new IOException("Cluster link to " + address + " closed");
+            }
+        }
+    }
+}
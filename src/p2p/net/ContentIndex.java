@@ -0,0 +1,72 @@
+package p2p.net;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Files that peers on one discovery node offer for swarm downloads: content
+ * ID -> local clients serving it, plus each client's IDs so a disconnect only
+ * touches what it advertised. Content IDs are SHA-256 hashes in lower-case
+ * hex, as {@code FILE_REQ} uses them.
+ */
+final class ContentIndex {
+    static final int MAX_PER_CLIENT = 1024;
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{64}");
+
+    private final ConcurrentHashMap<String, Set<DiscoveryServer.Client>> holders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<DiscoveryServer.Client, Set<String>> advertised = new ConcurrentHashMap<>();
+
+    static boolean isValidId(String id) {
+        return ID.matcher(id).matches();
+    }
+
+    /** @return false if the client already advertises too many files */
+    boolean add(DiscoveryServer.Client client, String id) {
+        Set<String> ids = advertised.computeIfAbsent(client, c -> ConcurrentHashMap.newKeySet());
+        if (!ids.contains(id) && ids.size() >= MAX_PER_CLIENT)
+            return false;
+        ids.add(id);
+        holders.compute(id, (k, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            set.add(client);
+            return set;
+        });
+        return true;
+    }
+
+    void remove(DiscoveryServer.Client client, String id) {
+        Set<String> ids = advertised.get(client);
+        if (ids != null)
+            ids.remove(id);
+        removeHolder(client, id);
+    }
+
+    void removeAll(DiscoveryServer.Client client) {
+        Set<String> ids = advertised.remove(client);
+        if (ids == null)
+            return;
+        for (String id : ids) {
+            removeHolder(client, id);
+        }
+    }
+
+    /** Local clients advertising {@code id}; empty if none. */
+    Set<DiscoveryServer.Client> holders(String id) {
+        Set<DiscoveryServer.Client> set = holders.get(id);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    int count() {
+        return holders.size();
+    }
+
+    private void removeHolder(DiscoveryServer.Client client, String id) {
+        holders.computeIfPresent(id, (k, set) -> {
+            set.remove(client);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
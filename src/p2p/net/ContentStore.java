@@ -0,0 +1,210 @@
+package p2p.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Received files, indexed by content ID (SHA-256 hex).
+ * <p>
+ * Finished downloads live in the store directory under their own names,
+ * numbered ("name (2).ext") when different content already has the name.
+ * Unfinished ones live in {@code .incomplete/<id>.part}, so a resume finds
+ * them whatever the file is called. The index, {@code .index}, has one line
+ * per file:
+ *
+ * <pre>
+ * id size lastUsedMillis name
+ * </pre>
+ *
+ * It is rewritten (to a temporary file, then renamed) on every change of
+ * the files in it. Lookups only mark an entry used in memory; those times
+ * reach the index with the next change or {@link #flush}. When
+ * the files together exceed the size cap, the least recently used ones are
+ * deleted. Entries whose file was deleted or changed size behind the store's
+ * back are dropped when next looked at.
+ */
+final class ContentStore {
+    private static final String INDEX = ".index";
+    private static final String HEADER = "P2PSTORE 1";
+
+    private record Entry(String id, long size, long lastUsed, String name) {
+    }
+
+    private final Path root;
+    private final Path incomplete;
+    private final long maxBytes;
+    // Guarded by this; access order, so iteration starts at the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // Entries changed in memory since the index was last written
+    private boolean dirty;
+
+    ContentStore(Path root, long maxBytes) {
+        this.root = root.toAbsolutePath();
+        this.incomplete = this.root.resolve(".incomplete");
+        this.maxBytes = maxBytes;
+    }
+
+    /** The store from {@code -Dp2p.downloads=dir} (default "downloads") and {@code -Dp2p.downloads.maxMb}. */
+    static ContentStore configured() {
+        long maxMb = Long.getLong("p2p.downloads.maxMb", 4096);
+        return new ContentStore(configuredRoot(), maxMb * 1024 * 1024);
+    }
+
+    static Path configuredRoot() {
+        return Path.of(System.getProperty("p2p.downloads", "downloads"));
+    }
+
+    /** Creates the directories and reads the index, dropping entries whose file is gone. */
+    synchronized void open() throws IOException {
+        Files.createDirectories(incomplete);
+        Path index = root.resolve(INDEX);
+        if (!Files.exists(index))
+            return;
+        List<Entry> loaded = new ArrayList<>();
+        List<String> lines = Files.readAllLines(index, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER))
+            return;
+        for (String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(" ", 4);
+            try {
+                if (parts.length == 4)
+                    loaded.add(new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+            } catch (NumberFormatException e) {
+                // Skip the damaged line
+            }
+        }
+        loaded.sort(Comparator.comparingLong(Entry::lastUsed));
+        for (Entry entry : loaded) {
+            if (isIntact(entry)) {
+                entries.put(entry.id(), entry);
+                totalBytes += entry.size();
+            }
+        }
+        if (entries.size() != loaded.size())
+            save();
+    }
+
+    /** The stored file with this content, marked as just used; null if we do not have it. */
+    synchronized File lookup(String id) throws IOException {
+        Entry entry = entries.get(id);
+        if (entry == null)
+            return null;
+        if (!isIntact(entry)) {
+            remove(entry);
+            dirty = true;
+            return null;
+        }
+        entries.put(id, new Entry(id, entry.size(), System.currentTimeMillis(), entry.name()));
+        dirty = true;
+        return root.resolve(entry.name()).toFile();
+    }
+
+    /** Writes the index if lookups changed it since it was last written. */
+    synchronized void flush() throws IOException {
+        if (dirty)
+            save();
+    }
+
+    /** Where the unfinished download of {@code id} goes; {@link PartialFile} adds ".part". */
+    File partial(String id) {
+        return incomplete.resolve(id).toFile();
+    }
+
+    /**
+     * Claims a free file name in the store for {@code name}, creating it
+     * empty so concurrent downloads of same-named files cannot collide.
+     */
+    synchronized File reserve(String name) throws IOException {
+        String base = new File(name).getName();
+        if (base.isEmpty() || base.startsWith("."))
+            base = "file" + base;
+        int dot = base.lastIndexOf('.');
+        String stem = dot > 0 ? base.substring(0, dot) : base;
+        String ext = dot > 0 ? base.substring(dot) : "";
+        for (int n = 1;; n++) {
+            Path candidate = root.resolve(n == 1 ? base : stem + " (" + n + ")" + ext);
+            try {
+                Files.createFile(candidate);
+                return candidate.toFile();
+            } catch (java.nio.file.FileAlreadyExistsException e) {
+                // Taken; try the next number
+            }
+        }
+    }
+
+    /**
+     * Records a finished, verified file. A file outside the store is moved
+     * in under {@code name}. If the content is already stored, the new copy
+     * is deleted and the existing one returned. Evicts old files past the cap.
+     */
+    synchronized File add(String id, String name, File file) throws IOException {
+        File existing = lookup(id);
+        if (existing != null) {
+            if (!existing.equals(file))
+                Files.deleteIfExists(file.toPath());
+            return existing;
+        }
+        Path placed = file.toPath();
+        if (!root.equals(placed.toAbsolutePath().getParent())) {
+            placed = reserve(name).toPath();
+            Files.move(file.toPath(), placed, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Entry entry = new Entry(id, Files.size(placed), System.currentTimeMillis(),
+                placed.getFileName().toString());
+        entries.put(id, entry);
+        totalBytes += entry.size();
+        evict(id);
+        save();
+        return placed.toFile();
+    }
+
+    /** Deletes least recently used files until the store fits its cap; never {@code keep}. */
+    private void evict(String keep) throws IOException {
+        List<Entry> victims = new ArrayList<>();
+        long bytes = totalBytes;
+        for (Entry entry : entries.values()) {
+            if (bytes <= maxBytes)
+                break;
+            if (entry.id().equals(keep))
+                continue;
+            victims.add(entry);
+            bytes -= entry.size();
+        }
+        for (Entry entry : victims) {
+            remove(entry);
+            Files.deleteIfExists(root.resolve(entry.name()));
+            System.out.println("Evicted " + entry.name() + " from " + root);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.id()) != null)
+            totalBytes -= entry.size();
+    }
+
+    private boolean isIntact(Entry entry) {
+        File file = root.resolve(entry.name()).toFile();
+        return file.isFile() && file.length() == entry.size();
+    }
+
+    private void save() throws IOException {
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : entries.values()) {
+            sb.append(entry.id()).append(' ').append(entry.size()).append(' ').append(entry.lastUsed()).append(' ')
+                    .append(entry.name()).append('\n');
+        }
+        Path tmp = root.resolve(INDEX + ".tmp");
+        Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+        Files.move(tmp, root.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+}
@@ -0,0 +1,193 @@
+package p2p.net;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Credit-based flow control for the chunks of one resumable transfer, used
+ * when both peers offer {@link #CAPABILITY}.
+ * <p>
+ * The receiver credits the chunks it has written to disk with
+ *
+ * <pre>
+ * CREDIT contentId persisted window
+ * </pre>
+ *
+ * where {@code persisted} counts the chunk bytes (frame ciphertext) written
+ * so far in this transfer and {@code window} is how many more it will take
+ * in flight, from its disk write speed ({@link Grants}). It sends one as
+ * soon as its writer has caught up with what was read, or after
+ * {@link #CREDIT_CHUNKS} chunks, whichever comes first. The sender keeps
+ * what it has sent but not had credited below both that and its own window.
+ * Its own window starts at {@link #INITIAL}, grows by the bytes credited
+ * while the round trip stays near the lowest seen, and falls back towards
+ * twice the bytes credited per lowest round trip once the round trip has
+ * doubled, i.e. chunks are queueing somewhere.
+ * A slow receiver therefore holds the sender to what it can store, and
+ * nothing piles up in socket buffers where chat would wait behind it.
+ */
+final class CreditWindow {
+    /** Token offered in CHAT_ACCEPT and HANDSHAKE_INIT. */
+    static final String CAPABILITY = "CREDIT/1";
+
+    static final long MAX_WINDOW = 32L * 1024 * 1024;
+    private static final int INITIAL_CHUNKS = 8;
+    private static final int MIN_CHUNKS = 4;
+    /** Frame bytes on top of a chunk's data: its offset and the cipher padding. */
+    private static final int CHUNK_OVERHEAD = 32;
+    /** Chunks the receiver may hold credit back for while more data is waiting. */
+    static final int CREDIT_CHUNKS = 4;
+    /** How long the receiver's window should take to write out. */
+    private static final double TARGET_SECONDS = 0.5;
+    private static final long STALL_NANOS = 30_000_000_000L;
+    /**
+     * Queueing below this much on top of the lowest round trip still counts
+     * as an idle path; sub-millisecond round trips on a busy host jitter by
+     * more than they measure.
+     */
+    private static final long QUEUE_SLACK_NANOS = 5_000_000;
+    /** How long a lowest round trip stands before a new sample may replace it. */
+    private static final long MIN_RTT_LIFETIME_NANOS = 10_000_000_000L;
+
+    private final long minWindow;
+    // Guarded by this
+    private final ArrayDeque<long[]> inFlight = new ArrayDeque<>(); // {sent after this chunk, nanoTime}
+    private long window;
+    private long advertised = MAX_WINDOW;
+    private long sent;
+    private long persisted;
+    private long minRtt = Long.MAX_VALUE;
+    private long minRttTaken;
+    private long smoothedRtt;
+    private double rate; // Bytes credited per second
+    private long rateStart;
+    private long rateBytes;
+    private long peakWindow;
+    private IOException failure;
+
+    /** A window for chunks of {@code chunkSize} bytes of data. */
+    CreditWindow(int chunkSize) {
+        this.minWindow = (long) MIN_CHUNKS * (chunkSize + CHUNK_OVERHEAD);
+        this.window = (long) INITIAL_CHUNKS * (chunkSize + CHUNK_OVERHEAD);
+        this.peakWindow = window;
+    }
+
+    /**
+     * Blocks until {@code bytes} more fit in the window, then counts them as
+     * sent. One chunk may always go out when nothing is in flight.
+     */
+    synchronized void acquire(int bytes) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + STALL_NANOS;
+        while (failure == null && sent > persisted && sent - persisted + bytes > Math.min(window, advertised)) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0)
+                throw new IOException("Receiver granted no credit for " + STALL_NANOS / 1_000_000_000 + " s");
+            wait(Math.max(1, wait / 1_000_000));
+        }
+        if (failure != null)
+            throw failure;
+        sent += bytes;
+        long now = System.nanoTime();
+        inFlight.add(new long[] { sent, now });
+        if (rateStart == 0)
+            rateStart = now;
+    }
+
+    /** Applies {@code CREDIT id persisted window}; stale or repeated credits are ignored. */
+    synchronized void grant(long persistedTotal, long receiverWindow) {
+        advertised = Math.max(minWindow, Math.min(MAX_WINDOW, receiverWindow));
+        if (persistedTotal <= persisted || persistedTotal > sent) {
+            notifyAll();
+            return;
+        }
+        long credited = persistedTotal - persisted;
+        persisted = persistedTotal;
+        long now = System.nanoTime();
+        long sentAt = 0;
+        while (!inFlight.isEmpty() && inFlight.peek()[0] <= persisted)
+            sentAt = inFlight.poll()[1];
+        if (sentAt != 0)
+            sample(now - sentAt, now);
+        rateBytes += credited;
+        long interval = now - rateStart;
+        if (minRtt != Long.MAX_VALUE && interval >= Math.max(minRtt, 10_000_000)) {
+            double measured = rateBytes * 1e9 / interval;
+            rate = rate == 0 ? measured : rate * 0.75 + measured * 0.25;
+            rateStart = now;
+            rateBytes = 0;
+        }
+        if (smoothedRtt - minRtt <= Math.max(minRtt, QUEUE_SLACK_NANOS)) {
+            // The path is not queueing: open up by what was just credited
+            window = Math.min(MAX_WINDOW, window + credited);
+        } else if (rate > 0) {
+            // Chunks are waiting somewhere: come down towards twice the bandwidth-delay
+            // product plus the queueing we tolerate anyway
+            long target = Math.max(minWindow, (long) (rate * (2 * minRtt + QUEUE_SLACK_NANOS) / 1e9));
+            if (window > target)
+                window = Math.max(target, window - credited / 2);
+        }
+        peakWindow = Math.max(peakWindow, window);
+        notifyAll();
+    }
+
+    /** Wakes a blocked sender with {@code e}, e.g. when the connection closes. */
+    synchronized void fail(IOException e) {
+        if (failure == null)
+            failure = e;
+        notifyAll();
+    }
+
+    /** "window=.. peak=.. rtt=.. minRtt=.. rate=.." for logs. */
+    synchronized String stats() {
+        return String.format("window=%dKB peak=%dKB rtt=%.1fms minRtt=%.1fms rate=%.1fMB/s", window / 1024,
+                peakWindow / 1024, smoothedRtt / 1e6, minRtt == Long.MAX_VALUE ? 0 : minRtt / 1e6, rate / 1e6);
+    }
+
+    private void sample(long rtt, long now) {
+        if (rtt < minRtt || now - minRttTaken > MIN_RTT_LIFETIME_NANOS) {
+            minRtt = rtt;
+            minRttTaken = now;
+        }
+        smoothedRtt = smoothedRtt == 0 ? rtt : smoothedRtt + (rtt - smoothedRtt) / 8;
+    }
+
+    /**
+     * The receiving side: counts what has been written and offers a window
+     * worth about half a second of its measured disk write speed.
+     */
+    static final class Grants {
+        private final int chunkBytes;
+        private final long minWindow;
+        // Guarded by this
+        private long persisted;
+        private long uncredited;
+        private double writeRate; // Bytes per second of time spent writing
+
+        Grants(int chunkSize) {
+            this.chunkBytes = chunkSize + CHUNK_OVERHEAD;
+            this.minWindow = (long) MIN_CHUNKS * chunkBytes;
+        }
+
+        /**
+         * Counts {@code bytes} written in {@code writeNanos}.
+         *
+         * @return true if enough is owed that the credit should go now
+         */
+        synchronized boolean persisted(int bytes, long writeNanos) {
+            persisted += bytes;
+            uncredited += bytes;
+            double measured = bytes * 1e9 / Math.max(1, writeNanos);
+            writeRate = writeRate == 0 ? measured : writeRate * 0.875 + measured * 0.125;
+            return uncredited >= (long) CREDIT_CHUNKS * chunkBytes;
+        }
+
+        /** The CREDIT line for {@code id} covering everything written so far; null if nothing is owed. */
+        synchronized String take(String id) {
+            if (uncredited == 0)
+                return null;
+            uncredited = 0;
+            long window = Math.max(minWindow, Math.min(MAX_WINDOW, (long) (writeRate * TARGET_SECONDS)));
+            return "CREDIT " + id + " " + persisted + " " + window;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package p2p.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A peer's line connection to the discovery cluster that survives drops.
+ * <p>
+ * When the socket closes or a write fails, the client reconnects to a random
+ * node in the list. It waits with jittered exponential backoff between
+ * attempts, 0.5s doubling up to 30s. Each wait is drawn from the upper half
+ * of the current window, so peers cut off together do not return together.
+ * After every connect, {@link Listener#onConnected} runs under the write
+ * lock before anything else is written, so the owner can register and
+ * resubscribe first. Then lines queued with {@link #sendOrQueue} while
+ * offline are flushed in order. That queue is bounded and drops its oldest
+ * line when full.
+ */
+public final class DiscoveryClient {
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    /** Callbacks, all on the client's reader thread. */
+    public interface Listener {
+        void onConnected();
+
+        void onLine(String line);
+
+        void onDisconnected();
+    }
+
+    private final List<InetSocketAddress> servers;
+    private final ExecutorService pool;
+    private final Listener listener;
+    private final int outboxLimit;
+    private final ArrayDeque<String> outbox = new ArrayDeque<>();
+    private final Object writeLock = new Object();
+    private volatile Socket socket;
+    private OutputStream out;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private long dropped;
+
+    public DiscoveryClient(List<InetSocketAddress> servers, ExecutorService pool, int outboxLimit,
+            Listener listener) {
+        this.servers = new ArrayList<>(servers);
+        this.pool = pool;
+        this.outboxLimit = outboxLimit;
+        this.listener = listener;
+    }
+
+    /**
+     * Connects once, in the caller's thread. On failure the client keeps
+     * retrying in the background if {@code retry} is set, and the error is
+     * thrown either way.
+     */
+    public void start(boolean retry) throws IOException {
+        try {
+            connect();
+        } catch (IOException e) {
+            if (retry)
+                pool.execute(() -> {
+                    if (reconnect())
+                        run();
+                });
+            else
+                closed = true;
+            throw e;
+        }
+        pool.execute(this::run);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /** Writes a line now; false if offline (the line is dropped). */
+    public boolean send(String line) {
+        synchronized (writeLock) {
+            return connected && write(line);
+        }
+    }
+
+    /** Writes a line now, or queues it for the next connection. */
+    public void sendOrQueue(String line) {
+        synchronized (writeLock) {
+            if (connected && outbox.isEmpty() && write(line))
+                return;
+            if (outbox.size() >= outboxLimit) {
+                outbox.poll();
+                dropped++;
+            }
+            outbox.add(line);
+        }
+    }
+
+    /** Lines waiting for a connection, and how many were dropped for lack of room. */
+    public String outboxStats() {
+        synchronized (writeLock) {
+            return outbox.size() + " queued, " + dropped + " dropped";
+        }
+    }
+
+    public void close() {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        // Spread peers across the cluster; fall through to the next node if one is down
+        List<InetSocketAddress> candidates = new ArrayList<>(servers);
+        Collections.shuffle(candidates);
+        IOException lastError = new IOException("No discovery servers configured");
+        for (InetSocketAddress candidate : candidates) {
+            try {
+                Socket s = new Socket(candidate.getHostString(), candidate.getPort());
+                s.setTcpNoDelay(true);
+                synchronized (writeLock) {
+                    socket = s;
+                    out = s.getOutputStream();
+                    connected = true;
+                }
+                return;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    /** Serves connections until closed: read until the socket drops, then reconnect. */
+    private void run() {
+        while (true) {
+            readUntilClosed();
+            if (closed)
+                return;
+            listener.onDisconnected();
+            if (!reconnect())
+                return;
+            System.err.println("Reconnected to discovery server " + socket.getRemoteSocketAddress());
+        }
+    }
+
+    private void readUntilClosed() {
+        Socket s = socket;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            synchronized (writeLock) {
+                // Nobody else writes until the owner has re-registered and the backlog is out
+                listener.onConnected();
+                flushOutbox();
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    listener.onLine(line);
+                } catch (RuntimeException e) {
+                    // One bad line must not end the session
+                    System.err.println("Bad discovery line: " + line + " (" + e + ")");
+                }
+            }
+        } catch (IOException e) {
+            if (!closed)
+                System.err.println("Discovery connection lost: " + e.getMessage());
+        }
+        synchronized (writeLock) {
+            connected = false;
+        }
+        try {
+            s.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /** Retries with backoff until connected (true) or closed (false). */
+    private boolean reconnect() {
+        long window = MIN_BACKOFF_MS;
+        while (!closed) {
+            long wait = window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1);
+            try {
+                Thread.sleep(wait);
+                connect();
+            } catch (InterruptedException e) {
+                return false;
+            } catch (IOException e) {
+                window = Math.min(MAX_BACKOFF_MS, window * 2);
+                continue;
+            }
+            if (closed) {
+                close();
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Caller holds writeLock. */
+    private void flushOutbox() {
+        while (connected && !outbox.isEmpty()) {
+            if (!write(outbox.peek()))
+                return;
+            outbox.poll();
+        }
+    }
+
+    /** Caller holds writeLock. A failed write closes the socket so the reader reconnects. */
+    private boolean write(String line) {
+        try {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            connected = false;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package p2p.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking front end for {@link DiscoveryServer}. One acceptor selector
+ * hands new channels round-robin to a fixed set of event-loop threads, each
+ * owning its own {@link Selector}. Lines are decoded per channel and passed to
+ * {@link DiscoveryServer#handleLine}, so both modes speak the same protocol.
+ * A client over its rate limit has OP_READ cleared until a loop timer
+ * resumes it, which leaves the backlog in the client's socket buffers.
+ */
+class DiscoveryEventLoop {
+    private static final int MAX_LINE = 64 * 1024;
+
+    private final DiscoveryServer server;
+    private final Loop[] loops;
+    private int nextLoop;
+
+    DiscoveryEventLoop(DiscoveryServer server, int loopCount) throws IOException {
+        this.server = server;
+        this.loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new Loop(i);
+        }
+    }
+
+    void serve(int port) throws IOException {
+        for (Loop loop : loops) {
+            loop.start();
+        }
+
+        try (Selector acceptSelector = Selector.open();
+                ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            System.out.println("Discovery Server (NIO, " + loops.length + " loops) started on port " + port);
+
+            while (true) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    try {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        loops[nextLoop].adopt(channel);
+                        nextLoop = (nextLoop + 1) % loops.length;
+                    } catch (IOException e) {
+                        System.err.println("Accept failed: " + e.getMessage());
+                        channel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+
+    private final class Loop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Only touched by the loop thread
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+        Loop(int index) throws IOException {
+            super("discovery-loop-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void adopt(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioClient client = new NioClient(this, channel, key);
+                    key.attach(client);
+                    server.onConnect(client);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        /** Runs {@code task} on this loop after {@code delayNanos}; loop thread only. */
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (!timers.isEmpty()) {
+                        long waitNanos = timers.peek().deadline - System.nanoTime();
+                        if (waitNanos > 0)
+                            selector.select(Math.max(1, (waitNanos + 999_999) / 1_000_000));
+                        else
+                            selector.selectNow();
+                    } else {
+                        selector.select();
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                        timers.poll().task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClient client = (NioClient) key.attachment();
+                        if (client == null || !key.isValid())
+                            continue;
+                        try {
+                            if (key.isReadable())
+                                client.onReadable(readBuffer);
+                            if (key.isValid() && key.isWritable())
+                                client.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            client.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private final class NioClient implements DiscoveryServer.Client {
+        private final Loop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String remoteAddress;
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream(256);
+        private final Outbox outbox = server.newOutbox();
+        private final Throttle throttle = server.newThrottle();
+        private ByteBuffer inFlight; // partially written frame, owned by the loop thread
+        // While throttled: the line waiting for tokens and the bytes read after it
+        private String pausedLine;
+        private ByteBuffer pausedInput;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        NioClient(Loop loop, SocketChannel channel, SelectionKey key) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        @Override
+        public Outbox outbox() {
+            return outbox;
+        }
+
+        @Override
+        public void enqueue(ByteBuffer frame, boolean droppable) {
+            if (closed.get())
+                return;
+            if (!outbox.offer(frame, droppable)) {
+                server.onSlowConsumer(this);
+                close();
+                return;
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public void backfill(Outbox.Backfill backfill) {
+            outbox.setBackfill(backfill);
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (Thread.currentThread() == loop) {
+                flush();
+                return;
+            }
+            // Coalesce wake-ups: only one flush task is outstanding per client.
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        @Override
+        public String remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            server.onDisconnect(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+
+        void onReadable(ByteBuffer buffer) throws IOException {
+            if (pausedLine != null)
+                return;
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            process(buffer);
+        }
+
+        private void process(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    byte[] bytes = partialLine.toByteArray();
+                    partialLine.reset();
+                    int len = bytes.length;
+                    if (len > 0 && bytes[len - 1] == '\r')
+                        len--;
+                    String line = new String(bytes, 0, len, StandardCharsets.UTF_8);
+                    long delay = server.admit(this, throttle, line, false);
+                    if (delay > 0) {
+                        pause(line, buffer, delay);
+                        return;
+                    }
+                    server.handleLine(this, line);
+                    if (closed.get())
+                        return;
+                } else {
+                    partialLine.write(b);
+                    if (partialLine.size() > MAX_LINE) {
+                        close();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /** Stops reading until the throttle lets {@code line} through. */
+        private void pause(String line, ByteBuffer rest, long delayNanos) {
+            pausedLine = line;
+            // The loop's read buffer is shared, so keep our own copy of what is left
+            pausedInput = ByteBuffer.allocate(rest.remaining()).put(rest).flip();
+            updateInterest();
+            loop.schedule(this::resume, delayNanos);
+        }
+
+        private void resume() {
+            if (closed.get())
+                return;
+            long delay = server.admit(this, throttle, pausedLine, true);
+            if (delay > 0) {
+                loop.schedule(this::resume, delay);
+                return;
+            }
+            String line = pausedLine;
+            ByteBuffer rest = pausedInput;
+            pausedLine = null;
+            pausedInput = null;
+            server.handleLine(this, line);
+            if (closed.get())
+                return;
+            process(rest);
+            if (!closed.get() && pausedLine == null)
+                updateInterest();
+        }
+
+        void onWritable() throws IOException {
+            flush();
+        }
+
+        private void updateInterest() {
+            try {
+                int ops = (pausedLine == null ? SelectionKey.OP_READ : 0)
+                        | (inFlight == null ? 0 : SelectionKey.OP_WRITE);
+                if (key.interestOps() != ops)
+                    key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void flush() {
+            flushScheduled.set(false);
+            if (closed.get())
+                return;
+            try {
+                while (true) {
+                    if (inFlight == null && (inFlight = outbox.poll()) == null)
+                        break;
+                    channel.write(inFlight);
+                    if (inFlight.hasRemaining())
+                        break;
+                    inFlight = null;
+                }
+                updateInterest();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+    }
+}
@@ -2,18 +2,159 @@ package p2p.net;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DiscoveryServer {
-    private static final int PORT = 8888;
-    private static final ConcurrentHashMap<String, PeerInfo> peers = new ConcurrentHashMap<>();
-    private static final List<PrintWriter> connectedClients = new CopyOnWriteArrayList<>();
+    private static final int DEFAULT_PORT = 8888;
+    private static final long LAG_REPORT_INTERVAL_MS = 10_000;
+    private static final long REAPER_TICK_MS = 250;
+    private static final int REAPER_WHEEL_SIZE = 512;
+    private static final int MAX_PAGE = 500;
 
+    private final int port;
+    private final PeerRegistry registry = new PeerRegistry();
+    private final List<Client> connectedClients = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<Client, String> clientNames = new ConcurrentHashMap<>();
+    // Blocking-mode client loops and their writers; virtual threads with -Dp2p.virtualThreads
+    private final ExecutorService pool = Threads.newIoExecutor("discovery-client");
+    private final AtomicLong slowDisconnects = new AtomicLong();
+
+    private int outboxCapacity = 1024;
+    private Outbox.OverflowPolicy overflowPolicy = Outbox.OverflowPolicy.DROP_OLDEST;
+    private long peerTtlMs = 30_000;
+    private final TimingWheel<String> expiryWheel;
+    private final Set<Client> clusterClients = ConcurrentHashMap.newKeySet();
+    private ClusterGossip cluster;
+    private java.nio.file.Path dataDir;
+    private int historySize = 1000;
+    private java.nio.file.Path historyFile;
+    private ChatHistory history;
+    private final Rooms rooms = new Rooms();
+    private final ContentIndex content = new ContentIndex();
+    private final Throttle.Limits limits = new Throttle.Limits();
+    private final ConcurrentHashMap<String, LongAdder> throttleEvents = new ConcurrentHashMap<>();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    public DiscoveryServer(int port) {
+        this.port = port;
+        this.expiryWheel = new TimingWheel<>(REAPER_TICK_MS, REAPER_WHEEL_SIZE, System.currentTimeMillis(),
+                this::checkExpiry);
+    }
+
+    /**
+     * Usage: DiscoveryServer [--port N] [--nio] [--loops N] [--outbox N]
+     * [--overflow drop-oldest|disconnect|coalesce] [--peer-ttl seconds]
+     * [--node-id ID] [--cluster host:port,...] [--cluster-secret S] [--data-dir DIR]
+     * [--history N] [--history-file FILE] [--limit COMMAND=rate/burst]...
+     * <p>
+     * The default mode hands each connection to its own thread. With --nio a
+     * small number of selector threads serve every connection instead.
+     * Registrations not refreshed by HEARTBEAT within the TTL are dropped.
+     * With --cluster the node gossips registrations and global chat with the
+     * listed nodes (list every other node on every node); every node needs the
+     * same --cluster-secret. With --data-dir the
+     * registry survives restarts. The last --history global messages are kept
+     * for HISTORY replay, in a memory-mapped --history-file if one is given.
+     * Each --limit sets a per-connection token bucket for one command, or for
+     * every line with "*"; "off" removes it. A client over its limit is not
+     * read from until the bucket refills.
+     */
     public static void main(String[] args) {
-        ExecutorService pool = Executors.newCachedThreadPool();
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Discovery Server started on port " + PORT);
+        int port = DEFAULT_PORT;
+        boolean nio = false;
+        int loops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int outbox = 1024;
+        Outbox.OverflowPolicy overflow = Outbox.OverflowPolicy.DROP_OLDEST;
+        long peerTtl = 30;
+        String nodeId = null;
+        String clusterSpec = "";
+        String clusterSecret = "";
+        String dataDir = null;
+        int history = 1000;
+        String historyFile = null;
+        List<String> limitSpecs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--nio" -> nio = true;
+                case "--loops" -> loops = Integer.parseInt(args[++i]);
+                case "--outbox" -> outbox = Integer.parseInt(args[++i]);
+                case "--overflow" -> overflow = Outbox.OverflowPolicy.parse(args[++i]);
+                case "--peer-ttl" -> peerTtl = Long.parseLong(args[++i]);
+                case "--node-id" -> nodeId = args[++i];
+                case "--cluster" -> clusterSpec = args[++i];
+                case "--cluster-secret" -> clusterSecret = args[++i];
+                case "--data-dir" -> dataDir = args[++i];
+                case "--history" -> history = Integer.parseInt(args[++i]);
+                case "--history-file" -> historyFile = args[++i];
+                case "--limit" -> limitSpecs.add(args[++i]);
+                default -> System.err.println("Ignoring unknown option: " + args[i]);
+            }
+        }
+
+        DiscoveryServer server = new DiscoveryServer(port);
+        server.outboxCapacity = outbox;
+        server.overflowPolicy = overflow;
+        server.peerTtlMs = peerTtl * 1000;
+        if (dataDir != null)
+            server.dataDir = java.nio.file.Paths.get(dataDir);
+        server.historySize = Math.max(0, history);
+        if (historyFile != null)
+            server.historyFile = java.nio.file.Paths.get(historyFile);
+        for (String spec : limitSpecs)
+            server.limits.set(spec);
+        if (!clusterSpec.isEmpty()) {
+            if (clusterSecret.isEmpty()) {
+                // Cluster links skip rate limits and write into the registry
+                System.err.println("--cluster needs --cluster-secret");
+                return;
+            }
+            server.cluster = new ClusterGossip(server, nodeId != null ? nodeId : "node-" + port, clusterSecret,
+                    parseAddresses(clusterSpec));
+        }
+        try {
+            if (nio) {
+                server.serveNio(loops);
+            } else {
+                server.serveBlocking();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Parses "host:port,host:port" into addresses. */
+    public static List<InetSocketAddress> parseAddresses(String spec) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty())
+                continue;
+            int colon = part.lastIndexOf(':');
+            result.add(new InetSocketAddress(part.substring(0, colon), Integer.parseInt(part.substring(colon + 1))));
+        }
+        return result;
+    }
+
+    PeerRegistry registry() {
+        return registry;
+    }
+
+    public void serveBlocking() throws IOException {
+        restoreRegistry();
+        openHistory();
+        startLagReporter();
+        startReaper();
+        startCluster();
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Discovery Server started on port " + port);
 
             while (true) {
                 try {
@@ -23,85 +164,578 @@ public class DiscoveryServer {
                     System.err.println("Accept failed: " + e.getMessage());
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    private static void broadcast(String msg) {
-        for (PrintWriter writer : connectedClients) {
+    public void serveNio(int loops) throws IOException {
+        restoreRegistry();
+        openHistory();
+        startLagReporter();
+        startReaper();
+        startCluster();
+        new DiscoveryEventLoop(this, loops).serve(port);
+    }
+
+    void onConnect(Client client) {
+        connectedClients.add(client);
+    }
+
+    void onDisconnect(Client client) {
+        connectedClients.remove(client);
+        clientNames.remove(client);
+        clusterClients.remove(client);
+        registry.unsubscribe(client);
+        rooms.leaveAll(client);
+        content.removeAll(client);
+    }
+
+    Outbox newOutbox() {
+        return new Outbox(outboxCapacity, overflowPolicy);
+    }
+
+    Throttle newThrottle() {
+        return new Throttle(limits);
+    }
+
+    /**
+     * Charges one line against the client's rate limits. Returns 0 when it may
+     * be handled now, otherwise how many nanoseconds to stop reading from the
+     * client before asking again ({@code retry}). Cluster links are exempt.
+     */
+    long admit(Client client, Throttle throttle, String line, boolean retry) {
+        if (clusterClients.contains(client))
+            return 0;
+        String command = Throttle.command(line);
+        long delay = throttle.admit(command, System.nanoTime());
+        if (delay > 0) {
+            if (!retry)
+                throttleEvents.computeIfAbsent(limits.category(command), c -> new LongAdder()).increment();
+            throttledNanos.add(delay);
+        }
+        return delay;
+    }
+
+    /** Called by a client whose outbox rejected a frame before it closes itself. */
+    void onSlowConsumer(Client client) {
+        slowDisconnects.incrementAndGet();
+        System.err.println("Disconnecting slow consumer " + describe(client));
+    }
+
+    /**
+     * Handles one protocol line from a client. Shared by the blocking handlers
+     * and the NIO event loops, so it must not block.
+     */
+    void handleLine(Client client, String inputLine) {
+        String[] parts = inputLine.split(" ", 3); // Limit split for message content
+        String command = parts[0];
+
+        if ("REGISTER".equalsIgnoreCase(command) && parts.length >= 3) {
+            String username = parts[1];
+            int port;
+            try {
+                port = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                client.send("ERROR BAD_PORT");
+                return;
+            }
+            String remoteAddress = client.remoteAddress();
+            long now = System.currentTimeMillis();
+            registry.register(new PeerInfo(username, remoteAddress, port, now));
+            expiryWheel.schedule(username, now + peerTtlMs);
+            System.out.println("Registered: " + username + " at " + remoteAddress + ":" + port);
+            clientNames.put(client, username);
+            client.send("OK REGISTERED");
+        } else if ("GET_PEERS".equalsIgnoreCase(command)) {
+            client.send("PEERS " + registry.list());
+        } else if ("LIST_PEERS".equalsIgnoreCase(command)) {
+            // LIST_PEERS reqId cursor|- limit -> PEER_PAGE reqId nextCursor|- user:addr:port,...
+            String[] args = inputLine.split(" ");
+            if (args.length < 4) {
+                client.send("ERROR BAD_ARGS");
+                return;
+            }
+            String cursor = "-".equals(args[2]) ? null : args[2];
+            int limit = parseLimit(args[3]);
+            List<PeerInfo> page = registry.page(cursor, limit);
+            String next = page.size() < limit ? "-" : page.get(page.size() - 1).username();
+            client.send("PEER_PAGE " + args[1] + " " + next + " " + join(page));
+        } else if ("SEARCH_PEERS".equalsIgnoreCase(command)) {
+            // SEARCH_PEERS reqId prefix|contains limit query -> SEARCH_RESULT reqId user:addr:port,...
+            String[] args = inputLine.split(" ", 5);
+            if (args.length < 5) {
+                client.send("ERROR BAD_ARGS");
+                return;
+            }
+            int limit = parseLimit(args[3]);
+            List<PeerInfo> found = "prefix".equalsIgnoreCase(args[2]) ? registry.searchPrefix(args[4], limit)
+                    : registry.searchContains(args[4], limit);
+            client.send("SEARCH_RESULT " + args[1] + " " + join(found));
+        } else if ("SUBSCRIBE_PEERS".equalsIgnoreCase(command)) {
+            // SUBSCRIBE_PEERS [epoch version] -- omit both for a fresh snapshot
+            String epoch = parts.length >= 3 ? parts[1] : "";
+            long version = -1;
+            if (parts.length >= 3) {
+                try {
+                    version = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    // Fall through to a snapshot
+                }
+            }
+            registry.subscribe(client, epoch, version);
+        } else if ("HEARTBEAT".equalsIgnoreCase(command) && parts.length >= 2) {
+            String username = parts[1];
+            PeerInfo refreshed = registry.touch(username, System.currentTimeMillis());
+            if (refreshed != null) {
+                client.send("OK HEARTBEAT");
+            } else {
+                // Expired (or never registered): tell the peer to REGISTER again
+                client.send("ERROR NOT_REGISTERED");
+            }
+        } else if ("GLOBAL_MSG".equalsIgnoreCase(command) && parts.length == 3) {
+            String sender = parts[1];
+            String content = parts[2];
+            history.append(sender, content, this::broadcast);
+            if (cluster != null)
+                cluster.relayGlobal(sender, content);
+        } else if ("JOIN_ROOM".equalsIgnoreCase(command) && parts.length >= 2) {
+            String room = Rooms.normalize(parts[1]);
+            if (room == null) {
+                client.send("ROOM_ERROR " + parts[1] + " BAD_NAME");
+            } else if (!rooms.join(client, room)) {
+                client.send("ROOM_ERROR " + room + " TOO_MANY_ROOMS");
+            } else {
+                client.send("OK JOINED " + room);
+            }
+        } else if ("LEAVE_ROOM".equalsIgnoreCase(command) && parts.length >= 2) {
+            String room = Rooms.normalize(parts[1]);
+            if (room != null)
+                rooms.leave(client, room);
+            client.send("OK LEFT " + (room != null ? room : parts[1]));
+        } else if ("ROOM_MSG".equalsIgnoreCase(command)) {
+            // ROOM_MSG room sender content; only members may post
+            String[] args = inputLine.split(" ", 4);
+            String room = args.length == 4 ? Rooms.normalize(args[1]) : null;
+            if (room == null || !rooms.isMember(client, room)) {
+                client.send("ROOM_ERROR " + (args.length > 1 ? args[1] : "-") + " NOT_JOINED");
+                return;
+            }
+            roomBroadcast(room, args[2], args[3]);
+            if (cluster != null)
+                cluster.relayRoom(room, args[2], args[3]);
+        } else if ("HISTORY".equalsIgnoreCase(command)) {
+            // HISTORY [epoch afterSeq] -> GLOBAL_MSG seq ... lines, then HISTORY_END epoch lastSeq
+            String epoch = parts.length == 3 ? parts[1] : "";
+            long afterSeq = 0;
+            if (parts.length == 3) {
+                try {
+                    afterSeq = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    // Replay everything
+                }
+            }
+            client.backfill(history.replay(epoch, afterSeq));
+        } else if ("ADVERTISE".equalsIgnoreCase(command) && parts.length >= 2) {
+            // ADVERTISE id[,id...] -- files this (registered) client serves for swarm downloads
+            if (!clientNames.containsKey(client)) {
+                client.send("ERROR NOT_REGISTERED");
+                return;
+            }
+            for (String id : parts[1].split(",")) {
+                if (!ContentIndex.isValidId(id)) {
+                    client.send("ERROR BAD_CONTENT_ID");
+                    return;
+                }
+                if (!content.add(client, id)) {
+                    client.send("ERROR TOO_MANY_ADVERTISED");
+                    return;
+                }
+            }
+        } else if ("UNADVERTISE".equalsIgnoreCase(command) && parts.length >= 2) {
+            for (String id : parts[1].split(","))
+                content.remove(client, id);
+        } else if ("WHO_HAS".equalsIgnoreCase(command)) {
+            // WHO_HAS reqId contentId -> HOLDERS reqId contentId user:addr:port,...
+            if (parts.length < 3) {
+                client.send("ERROR BAD_ARGS");
+                return;
+            }
+            List<PeerInfo> found = new ArrayList<>();
+            for (Client holder : content.holders(parts[2])) {
+                String name = clientNames.get(holder);
+                PeerInfo info = name == null || holder == client ? null : registry.get(name);
+                if (info != null)
+                    found.add(info);
+            }
+            client.send("HOLDERS " + parts[1] + " " + parts[2] + " " + join(found));
+        } else if ("CLUSTER_HELLO".equalsIgnoreCase(command) && parts.length >= 2) {
+            if (cluster == null || !cluster.acceptsSecret(parts.length == 3 ? parts[2] : "")) {
+                client.send("ERROR CLUSTER_REFUSED");
+                return;
+            }
+            // Node links are not chat clients: no broadcasts, no membership pushes
+            connectedClients.remove(client);
+            registry.unsubscribe(client);
+            clusterClients.add(client);
+            System.out.println("Cluster node connected: " + parts[1] + " from " + client.remoteAddress());
+            client.send("OK CLUSTER");
+        } else if (command.startsWith("GOSSIP_") && clusterClients.contains(client)) {
+            handleGossip(inputLine);
+        } else if ("STATS".equalsIgnoreCase(command)) {
+            client.send(stats());
+        } else {
+            client.send("ERROR UNKNOWN_COMMAND");
+        }
+    }
+
+    /** Lines from other cluster nodes; never answered so links need not read. */
+    private void handleGossip(String line) {
+        if (line.startsWith("GOSSIP_PEER ")) {
+            // GOSSIP_PEER user address port lastSeen
+            String[] args = line.split(" ");
+            if (args.length != 5)
+                return;
+            try {
+                PeerInfo info = new PeerInfo(args[1], args[2], Integer.parseInt(args[3]), Long.parseLong(args[4]));
+                if (info.lastSeen() + peerTtlMs <= System.currentTimeMillis())
+                    return; // Already expired; don't resurrect it
+                if (registry.merge(info))
+                    expiryWheel.schedule(info.username(), info.lastSeen() + peerTtlMs);
+            } catch (NumberFormatException e) {
+                System.err.println("Bad gossip: " + line);
+            }
+        } else if (line.startsWith("GOSSIP_MSG ")) {
+            String[] args = line.split(" ", 3);
+            if (args.length == 3)
+                history.append(args[1], args[2], this::broadcast);
+        } else if (line.startsWith("GOSSIP_ROOM ")) {
+            // GOSSIP_ROOM room sender content
+            String[] args = line.split(" ", 4);
+            String room = args.length == 4 ? Rooms.normalize(args[1]) : null;
+            if (room != null)
+                roomBroadcast(room, args[2], args[3]);
+        }
+    }
+
+    /**
+     * Reloads the registry from --data-dir and starts journaling. Each entry
+     * keeps the TTL it had left when the server stopped (the clock is paused
+     * for the downtime), so entries that were already stale are dropped and
+     * live ones get their remaining time to heartbeat again.
+     */
+    private void restoreRegistry() throws IOException {
+        if (dataDir == null)
+            return;
+        long start = System.nanoTime();
+        RegistryJournal journal = new RegistryJournal(dataDir);
+        RegistryJournal.Restored restored = journal.load();
+        long now = System.currentTimeMillis();
+        long downtime = restored.lastWrite() > 0 ? Math.max(0, now - restored.lastWrite()) : 0;
+        List<PeerInfo> live = new ArrayList<>(restored.entries().size());
+        for (PeerInfo info : restored.entries()) {
+            if (restored.lastWrite() > 0 && info.lastSeen() + peerTtlMs <= restored.lastWrite())
+                continue;
+            PeerInfo shifted = new PeerInfo(info.username(), info.address(), info.port(),
+                    Math.min(now, info.lastSeen() + downtime));
+            live.add(shifted);
+            expiryWheel.schedule(shifted.username(), shifted.lastSeen() + peerTtlMs);
+        }
+        registry.restore(live);
+        System.out.println("Restored " + live.size() + " peers (" + (restored.entries().size() - live.size())
+                + " already stale) from " + dataDir + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        registry.setJournal(journal);
+        journal.start(registry);
+    }
+
+    private void openHistory() throws IOException {
+        history = new ChatHistory(historySize, historyFile);
+        if (historyFile != null)
+            System.out.println("Chat history: " + history.size() + " messages (up to seq " + history.lastSeq()
+                    + ") in " + historyFile);
+    }
+
+    private void startCluster() {
+        if (cluster != null)
+            cluster.start();
+    }
+
+    private static int parseLimit(String s) {
+        try {
+            return Math.max(1, Math.min(MAX_PAGE, Integer.parseInt(s)));
+        } catch (NumberFormatException e) {
+            return MAX_PAGE;
+        }
+    }
+
+    private static String join(List<PeerInfo> infos) {
+        StringBuilder sb = new StringBuilder();
+        for (PeerInfo info : infos) {
+            if (sb.length() > 0)
+                sb.append(",");
+            sb.append(PeerRegistry.format(info));
+        }
+        return sb.toString();
+    }
+
+    private void broadcast(ByteBuffer frame) {
+        // Encoded once; every outbox queues the same bytes.
+        for (Client client : connectedClients) {
             try {
-                writer.println(msg);
+                client.sendShared(frame);
             } catch (Exception e) {
                 // Ignore errors, will be cleaned up
             }
         }
     }
 
+    /** Fans a room message out to that room's local members only. */
+    private void roomBroadcast(String room, String sender, String content) {
+        Set<Client> members = rooms.members(room);
+        if (members.isEmpty())
+            return;
+        ByteBuffer frame = Outbox.encode("ROOM_MSG " + room + " " + sender + " " + content);
+        for (Client client : members) {
+            client.sendShared(frame);
+        }
+    }
+
+    /**
+     * One-line summary of server and fanout health:
+     * STATS clients=N peers=P rooms=R content=C history=H lastSeq=Q heapUsedMb=U heapMaxMb=X threads=T
+     * lagging=M dropped=D slowDisconnects=S throttled=T throttledMs=MS throttledBy=COMMAND:n,...
+     * laggers=name@addr:depth/dropped,...
+     */
+    private String stats() {
+        int lagging = 0;
+        long dropped = 0;
+        StringBuilder laggers = new StringBuilder();
+        for (Client client : connectedClients) {
+            Outbox outbox = client.outbox();
+            dropped += outbox.dropped();
+            if (outbox.isLagging()) {
+                lagging++;
+                if (laggers.length() > 0)
+                    laggers.append(",");
+                laggers.append(describe(client)).append(":").append(outbox.depth()).append("/")
+                        .append(outbox.dropped());
+            }
+        }
+        return "STATS clients=" + connectedClients.size() + " peers=" + registry.size() + " rooms=" + rooms.count()
+                + " content=" + content.count() + " history=" + history.size() + " lastSeq=" + history.lastSeq()
+                + jvmStats() + " lagging=" + lagging + " dropped=" + dropped
+                + " slowDisconnects=" + slowDisconnects.get() + throttleStats() + " laggers=" + laggers;
+    }
+
+    private static String jvmStats() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return " heapUsedMb=" + used / (1024 * 1024) + " heapMaxMb=" + runtime.maxMemory() / (1024 * 1024)
+                + " threads=" + java.lang.management.ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private String throttleStats() {
+        long total = 0;
+        StringBuilder byCommand = new StringBuilder();
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(throttleEvents).entrySet()) {
+            long n = entry.getValue().sum();
+            total += n;
+            if (byCommand.length() > 0)
+                byCommand.append(",");
+            byCommand.append(entry.getKey()).append(":").append(n);
+        }
+        return " throttled=" + total + " throttledMs=" + throttledNanos.sum() / 1_000_000 + " throttledBy=" + byCommand;
+    }
+
+    private String describe(Client client) {
+        return clientNames.getOrDefault(client, "?") + "@" + client.remoteAddress();
+    }
+
+    /**
+     * Wheel callback for a registration whose deadline came up. Returns the
+     * next deadline if a heartbeat arrived in the meantime, or -1 once the
+     * entry is gone.
+     */
+    private long checkExpiry(String username) {
+        PeerInfo info = registry.get(username);
+        if (info == null)
+            return -1;
+        long now = System.currentTimeMillis();
+        long due = info.lastSeen() + peerTtlMs;
+        if (due > now)
+            return due;
+        if (registry.removeIfStale(username, now - peerTtlMs)) {
+            System.out.println("Expired: " + username);
+            return -1;
+        }
+        // Refreshed between the check and the removal
+        PeerInfo current = registry.get(username);
+        return current == null ? -1 : current.lastSeen() + peerTtlMs;
+    }
+
+    private void startReaper() {
+        Thread reaper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(REAPER_TICK_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                expiryWheel.advanceTo(System.currentTimeMillis());
+            }
+        }, "discovery-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private void startLagReporter() {
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(LAG_REPORT_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Client client : connectedClients) {
+                    Outbox outbox = client.outbox();
+                    if (outbox.isLagging()) {
+                        System.out.println("Lagging client " + describe(client) + " depth=" + outbox.depth()
+                                + " dropped=" + outbox.dropped() + " highWater=" + outbox.highWater());
+                    }
+                }
+            }
+        }, "discovery-lag-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
     public record PeerInfo(String username, String address, int port, long lastSeen) {
     }
 
-    private static class ClientHandler implements Runnable {
+    /**
+     * A connected discovery client, independent of how its socket is served.
+     * {@link #send(String)} and {@link #sendShared(ByteBuffer)} may be called
+     * from any thread and never block on the network.
+     */
+    interface Client {
+        /**
+         * Queues an encoded frame. Droppable frames are subject to the overflow
+         * policy; the buffer may be shared and must not be modified.
+         */
+        void enqueue(ByteBuffer frame, boolean droppable);
+
+        /** Queues a direct reply; never dropped by the overflow policy. */
+        default void send(String line) {
+            enqueue(Outbox.encode(line), false);
+        }
+
+        /** Queues a shared broadcast frame; subject to the overflow policy. */
+        default void sendShared(ByteBuffer frame) {
+            enqueue(frame, true);
+        }
+
+        /** Streams {@code backfill} whenever nothing else is queued; replaces any running one. */
+        void backfill(Outbox.Backfill backfill);
+
+        Outbox outbox();
+
+        String remoteAddress();
+
+        void close();
+    }
+
+    private class ClientHandler implements Runnable, Client {
         private final Socket socket;
-        private PrintWriter out;
+        private final Outbox outbox = newOutbox();
+        private final Throttle throttle = newThrottle();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private OutputStream out;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
         }
 
+        @Override
+        public Outbox outbox() {
+            return outbox;
+        }
+
+        @Override
+        public void enqueue(ByteBuffer frame, boolean droppable) {
+            if (socket.isClosed())
+                return;
+            if (!outbox.offer(frame, droppable)) {
+                onSlowConsumer(this);
+                close();
+                return;
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void backfill(Outbox.Backfill backfill) {
+            outbox.setBackfill(backfill);
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            // At most one writer task per client; a stalled socket only parks that task.
+            if (draining.compareAndSet(false, true)) {
+                pool.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                do {
+                    ByteBuffer frame;
+                    while ((frame = outbox.poll()) != null) {
+                        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    }
+                    out.flush();
+                    draining.set(false);
+                } while (!outbox.isEmpty() && draining.compareAndSet(false, true));
+            } catch (IOException e) {
+                draining.set(false);
+                close();
+            }
+        }
+
+        @Override
+        public String remoteAddress() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+
         @Override
         public void run() {
             try (
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));) {
-                this.out = new PrintWriter(socket.getOutputStream(), true);
-                connectedClients.add(out);
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));) {
+                this.out = new BufferedOutputStream(socket.getOutputStream());
+                onConnect(this);
 
                 String inputLine;
                 while ((inputLine = in.readLine()) != null) {
-                    String[] parts = inputLine.split(" ", 3); // Limit split for message content
-                    String command = parts[0];
-
-                    if ("REGISTER".equalsIgnoreCase(command) && parts.length >= 3) {
-                        String username = parts[1];
-                        int port = Integer.parseInt(parts[2]);
-                        String remoteAddress = socket.getInetAddress().getHostAddress();
-                        peers.put(username, new PeerInfo(username, remoteAddress, port, System.currentTimeMillis()));
-                        System.out.println("Registered: " + username + " at " + remoteAddress + ":" + port);
-                        out.println("OK REGISTERED");
-                    } else if ("GET_PEERS".equalsIgnoreCase(command)) {
-                        StringBuilder peerList = new StringBuilder();
-                        for (PeerInfo info : peers.values()) {
-                            peerList.append(info.username).append(":").append(info.address).append(":")
-                                    .append(info.port).append(",");
-                        }
-                        if (peerList.length() > 0)
-                            peerList.setLength(peerList.length() - 1);
-                        out.println("PEERS " + peerList.toString());
-                    } else if ("HEARTBEAT".equalsIgnoreCase(command) && parts.length >= 2) {
-                        String username = parts[1];
-                        if (peers.containsKey(username)) {
-                            PeerInfo old = peers.get(username);
-                            peers.put(username,
-                                    new PeerInfo(old.username, old.address, old.port, System.currentTimeMillis()));
-                            out.println("OK HEARTBEAT");
-                        }
-                    } else if ("GLOBAL_MSG".equalsIgnoreCase(command) && parts.length == 3) {
-                        String sender = parts[1];
-                        String content = parts[2];
-                        broadcast("GLOBAL_MSG " + sender + " " + content);
-                    } else {
-                        out.println("ERROR UNKNOWN_COMMAND");
+                    long delay = admit(this, throttle, inputLine, false);
+                    while (delay > 0) {
+                        // Backpressure: stop reading until the bucket refills
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                        delay = admit(this, throttle, inputLine, true);
                     }
+                    handleLine(this, inputLine);
                 }
             } catch (Exception e) {
                 // System.err.println("Handler error: " + e.getMessage());
             } finally {
                 if (out != null)
-                    connectedClients.remove(out);
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                }
+                    onDisconnect(this);
+                close();
             }
         }
     }
@@ -0,0 +1,235 @@
+package p2p.net;
+
+import p2p.security.SecurityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Sends one file as a three-stage pipeline so disk, CPU and network overlap:
+ * <pre>
+ * read (direct buffers) -> encrypt (one cached Cipher) -> write (caller's thread)
+ * </pre>
+ * The stages are loops that mostly wait on each other, so they run on the
+ * I/O pool; each chunk's encryption goes through {@link Threads#compute}.
+ * Buffers circulate through fixed pools, so the stages can run at most
+ * {@link #DEPTH} chunks ahead of the socket and nothing is allocated per
+ * chunk in frame mode. Legacy peers get the same pipeline, but the encrypt
+ * stage builds the Base64 "ENC" line they expect.
+ * <p>
+ * For a resumable transfer the sender is given the chunk indexes the
+ * receiver still needs. Each chunk then starts with its 8-byte file offset
+ * (in frames), or carries it as "FILE_CHUNK offset base64" (in lines).
+ */
+final class FileSender {
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    static final int MIN_CHUNK_SIZE = 1024;
+    static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    /** Chunks each stage may run ahead of the next. */
+    private static final int DEPTH = 4;
+
+    /**
+     * Where sealed chunks go; {@code more} says another is ready, so flushing
+     * can wait. The sink may queue the chunk, but must run {@code written}
+     * once {@code data} is no longer needed.
+     */
+    interface Sink {
+        void write(byte[] data, int length, boolean frame, boolean more, Runnable written) throws IOException;
+    }
+
+    private record Sealed(byte[] data, int length, boolean pooled) {
+    }
+
+    private static final ByteBuffer END_OF_FILE = ByteBuffer.allocate(0);
+    private static final Sealed END = new Sealed(new byte[0], 0, false);
+
+    private final File file;
+    private final int chunkSize;
+    private final SecretKey key;
+    private final boolean framed;
+    private final ExecutorService pool;
+    private final Sink sink;
+    // Chunk indexes to send with their offsets, or null for the whole file in order without them
+    private final BitSet chunks;
+    private final int prefix;
+
+    private final BlockingQueue<ByteBuffer> freePlain = new ArrayBlockingQueue<>(DEPTH + 1);
+    private final BlockingQueue<ByteBuffer> plain = new ArrayBlockingQueue<>(DEPTH + 1);
+    private final BlockingQueue<byte[]> freeSealed = new ArrayBlockingQueue<>(DEPTH + 1);
+    private final BlockingQueue<Sealed> sealed = new ArrayBlockingQueue<>(DEPTH + 1);
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    FileSender(File file, int chunkSize, SecretKey key, boolean framed, ExecutorService pool, Sink sink) {
+        this(file, chunkSize, null, key, framed, pool, sink);
+    }
+
+    /** Sends only {@code chunks}, each tagged with its offset; null sends everything untagged. */
+    FileSender(File file, int chunkSize, BitSet chunks, SecretKey key, boolean framed, ExecutorService pool,
+            Sink sink) {
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.chunks = chunks;
+        this.prefix = chunks == null ? 0 : 8;
+        this.key = key;
+        this.framed = framed;
+        this.pool = pool;
+        this.sink = sink;
+    }
+
+    /** Chunk size from {@code -Dp2p.chunkSize=bytes}, clamped to 1 KB .. 8 MB. */
+    static int configuredChunkSize() {
+        int size = Integer.getInteger("p2p.chunkSize", DEFAULT_CHUNK_SIZE);
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+    }
+
+    /** Streams for striped transfers from {@code -Dp2p.streams=N}, 1 (off) to 16. */
+    static int configuredStreams() {
+        return Math.max(1, Math.min(16, Integer.getInteger("p2p.streams", 1)));
+    }
+
+    /**
+     * Deals {@code chunks} out to {@code streams} senders in runs of
+     * {@code stripe} consecutive chunks, round robin, so every stream reads
+     * its share of the file mostly sequentially and all finish together.
+     */
+    static List<BitSet> stripe(BitSet chunks, int streams, int stripe) {
+        List<BitSet> parts = new ArrayList<>(streams);
+        for (int i = 0; i < streams; i++)
+            parts.add(new BitSet());
+        int ordinal = 0;
+        for (int index = chunks.nextSetBit(0); index >= 0; index = chunks.nextSetBit(index + 1))
+            parts.get(ordinal++ / stripe % streams).set(index);
+        return parts;
+    }
+
+    /**
+     * Sends the whole file. Reading and encryption run on the pool while the
+     * calling thread hands chunks to the sink.
+     */
+    void send() throws Exception {
+        for (int i = 0; i <= DEPTH; i++) {
+            freePlain.add(ByteBuffer.allocateDirect(prefix + chunkSize));
+            if (framed)
+                freeSealed.add(new byte[prefix + chunkSize + 16]); // PKCS5 adds at most one block
+        }
+        Future<?> reader = pool.submit(this::readStage);
+        Future<?> encrypter = pool.submit(this::encryptStage);
+        try {
+            while (true) {
+                Sealed chunk = sealed.take();
+                if (chunk == END)
+                    break;
+                sink.write(chunk.data, chunk.length, framed, !sealed.isEmpty(),
+                        chunk.pooled ? () -> freeSealed.add(chunk.data) : () -> {
+                        });
+            }
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            reader.cancel(true);
+            encrypter.cancel(true);
+        }
+        Exception e = failure.get();
+        if (e != null)
+            throw e;
+    }
+
+    private void readStage() {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (chunks != null) {
+                for (int index = chunks.nextSetBit(0); index >= 0; index = chunks.nextSetBit(index + 1)) {
+                    long offset = (long) index * chunkSize;
+                    if (offset >= file.length())
+                        break;
+                    ByteBuffer buffer = freePlain.take();
+                    buffer.clear();
+                    buffer.putLong(offset);
+                    buffer.limit(prefix + (int) Math.min(chunkSize, file.length() - offset));
+                    while (buffer.hasRemaining()) {
+                        int n = channel.read(buffer, offset + buffer.position() - prefix);
+                        if (n < 0)
+                            throw new IOException("File shrank while sending: " + file);
+                    }
+                    buffer.flip();
+                    plain.put(buffer);
+                }
+            } else {
+                while (true) {
+                    ByteBuffer buffer = freePlain.take();
+                    buffer.clear();
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                        // Fill the chunk unless the file ends
+                    }
+                    if (buffer.position() == 0)
+                        break;
+                    buffer.flip();
+                    plain.put(buffer);
+                    if (buffer.limit() < chunkSize)
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        }
+        try {
+            plain.put(END_OF_FILE);
+        } catch (InterruptedException e) {
+            // Cancelled; the writer is gone
+        }
+    }
+
+    private void encryptStage() {
+        try {
+            Cipher cipher = SecurityUtils.aesCipher(Cipher.ENCRYPT_MODE, key);
+            while (true) {
+                ByteBuffer buffer = plain.take();
+                if (buffer == END_OF_FILE)
+                    break;
+                if (framed) {
+                    byte[] out = freeSealed.take();
+                    int length = Threads.compute(() -> cipher.doFinal(buffer, ByteBuffer.wrap(out)));
+                    freePlain.put(buffer);
+                    sealed.put(new Sealed(out, length, true));
+                } else {
+                    String offset = chunks == null ? "" : buffer.getLong() + " ";
+                    byte[] chunk = new byte[buffer.remaining()];
+                    buffer.get(chunk);
+                    freePlain.put(buffer);
+                    byte[] line = Threads.compute(() -> {
+                        byte[] command = ("FILE_CHUNK " + offset + Base64.getEncoder().encodeToString(chunk))
+                                .getBytes();
+                        return ("ENC " + Base64.getEncoder().encodeToString(cipher.doFinal(command)) + "\n")
+                                .getBytes(StandardCharsets.UTF_8);
+                    });
+                    sealed.put(new Sealed(line, line.length, false));
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        }
+        try {
+            sealed.put(END);
+        } catch (InterruptedException e) {
+            // Cancelled; the writer is gone
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package p2p.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary framing for peer connections, used once both sides have offered
+ * {@link #CAPABILITY} during the handshake:
+ *
+ * <pre>
+ * [length:4][type:1][flags:1][payload:length]
+ * </pre>
+ *
+ * Lengths are big-endian and count the payload only. After the handshake
+ * every payload is AES ciphertext carried as raw bytes, so nothing on the
+ * wire is Base64 any more. {@link Reader} reads the text lines of the
+ * handshake and the frames after it from the same buffer, so no bytes are
+ * lost at the switch.
+ */
+final class Frames {
+    /** Token offered in CHAT_ACCEPT and HANDSHAKE_INIT; bump the version for incompatible changes. */
+    static final String CAPABILITY = "FRAMES/1";
+
+    /** Encrypted command text, the payload of a legacy "ENC" line. */
+    static final int COMMAND = 1;
+    /** Encrypted raw file bytes. */
+    static final int FILE_CHUNK = 2;
+    /** [stream:4] then encrypted file bytes, for one of several transfers on a multiplexed connection. */
+    static final int STREAM_CHUNK = 3;
+    /** Several commands encrypted together: [count:4] then [length:4][command text] each, in order. */
+    static final int BATCH = 4;
+
+    /** Payload is AES ciphertext. */
+    static final int FLAG_ENCRYPTED = 1;
+
+    static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    private static final int MAX_LINE = 16 * 1024 * 1024;
+
+    record Frame(int type, int flags, byte[] payload) {
+    }
+
+    private Frames() {
+    }
+
+    /** Writes one frame; the caller serialises writers and flushes. */
+    static void write(DataOutputStream out, int type, int flags, byte[] payload) throws IOException {
+        write(out, type, flags, payload, payload.length);
+    }
+
+    /** Writes one frame whose payload is the first {@code length} bytes of {@code payload}. */
+    static void write(DataOutputStream out, int type, int flags, byte[] payload, int length) throws IOException {
+        out.writeInt(length);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.write(payload, 0, length);
+    }
+
+    /** Writes a {@link #STREAM_CHUNK} frame for {@code stream}; the ciphertext is the first {@code length} bytes. */
+    static void writeStream(DataOutputStream out, int stream, byte[] ciphertext, int length) throws IOException {
+        out.writeInt(length + 4);
+        out.writeByte(STREAM_CHUNK);
+        out.writeByte(FLAG_ENCRYPTED);
+        out.writeInt(stream);
+        out.write(ciphertext, 0, length);
+    }
+
+    /** The plaintext of a {@link #BATCH} frame holding {@code commands}, each in UTF-8. */
+    static byte[] packBatch(List<byte[]> commands) {
+        int length = 4;
+        for (byte[] command : commands)
+            length += 4 + command.length;
+        ByteBuffer batch = ByteBuffer.allocate(length).putInt(commands.size());
+        for (byte[] command : commands)
+            batch.putInt(command.length).put(command);
+        return batch.array();
+    }
+
+    /** The commands of a decrypted {@link #BATCH} frame, in the order they were sent. */
+    static List<String> unpackBatch(byte[] plain) throws IOException {
+        ByteBuffer batch = ByteBuffer.wrap(plain);
+        try {
+            int count = batch.getInt();
+            if (count < 0 || count > plain.length / 4)
+                throw new IOException("Bad batch of " + count + " commands");
+            List<String> commands = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = batch.getInt();
+                if (length < 0 || length > batch.remaining())
+                    throw new IOException("Bad command length " + length + " in batch");
+                commands.add(new String(plain, batch.position(), length, StandardCharsets.UTF_8));
+                batch.position(batch.position() + length);
+            }
+            return commands;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated batch");
+        }
+    }
+
+    /** Writes one UTF-8 text line of the handshake or the legacy protocol. */
+    static void writeLine(DataOutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    /** Buffered reader that hands out text lines or frames from one stream. */
+    static final class Reader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int pos;
+        private int limit;
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /** The next line without its terminator, or null at end of stream. */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = null;
+            while (true) {
+                if (pos == limit && !fill())
+                    return line == null || line.size() == 0 ? null : decode(line.toByteArray(), line.size());
+                int start = pos;
+                while (pos < limit && buffer[pos] != '\n')
+                    pos++;
+                if (pos < limit) {
+                    int end = pos++;
+                    if (line == null)
+                        return decode(buffer, start, end);
+                    line.write(buffer, start, end - start);
+                    return decode(line.toByteArray(), line.size());
+                }
+                if (line == null)
+                    line = new ByteArrayOutputStream(Math.max(256, (pos - start) * 2));
+                line.write(buffer, start, pos - start);
+                if (line.size() > MAX_LINE)
+                    throw new IOException("Line too long");
+            }
+        }
+
+        /** The next frame, or null if the stream ends cleanly between frames. */
+        Frame readFrame() throws IOException {
+            if (pos == limit && !fill())
+                return null;
+            int length = readInt();
+            int type = readByte();
+            int flags = readByte();
+            if (length < 0 || length > MAX_PAYLOAD)
+                throw new IOException("Bad frame length " + length);
+            byte[] payload = new byte[length];
+            int filled = Math.min(length, limit - pos);
+            System.arraycopy(buffer, pos, payload, 0, filled);
+            pos += filled;
+            while (filled < length) {
+                // Large payloads bypass the buffer
+                int n = in.read(payload, filled, length - filled);
+                if (n < 0)
+                    throw new EOFException("Stream ended inside a frame");
+                filled += n;
+            }
+            return new Frame(type, flags, payload);
+        }
+
+        private int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private int readByte() throws IOException {
+            if (pos == limit && !fill())
+                throw new EOFException("Stream ended inside a frame header");
+            return buffer[pos++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buffer, 0, buffer.length);
+            if (n <= 0)
+                return false;
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        private static String decode(byte[] bytes, int length) {
+            return decode(bytes, 0, length);
+        }
+
+        private static String decode(byte[] bytes, int start, int end) {
+            if (end > start && bytes[end - 1] == '\r')
+                end--;
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package p2p.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serverless peer discovery on the local network. Every peer multicasts
+ * {@code LAN_HELLO user port} to a group at a fixed interval and keeps a
+ * table of the peers it has heard from, each entry expiring after a few
+ * missed announcements. A peer that hears a newcomer answers early, so a
+ * fresh node fills its table within one round trip instead of one interval;
+ * {@code LAN_BYE user} removes a peer at once when it stops cleanly.
+ * <p>
+ * Announcements use multicast TTL 1 and loop back to the sending host, so
+ * several peers on one machine find each other (pick the loopback interface
+ * with {@code -Dp2p.lan.interface=lo} when there is no other network).
+ */
+public final class MulticastDiscovery {
+    public static final String DEFAULT_GROUP = "239.255.42.99:4446";
+    private static final int MAX_PACKET = 512;
+
+    private final String username;
+    private final int port;
+    private final InetSocketAddress group;
+    private final NetworkInterface networkInterface;
+    private final long intervalMs;
+    private final long ttlNanos;
+    private final Runnable onChange;
+    // username -> entry; values are "user:host:port" like the discovery server's
+    private final ConcurrentHashMap<String, Entry> peers = new ConcurrentHashMap<>();
+    private volatile MulticastSocket socket;
+    private volatile boolean running;
+    private volatile long lastEarlyAnnounce;
+
+    private record Entry(String peer, long expiresAt) {
+    }
+
+    /**
+     * @param networkInterface interface to join the group on, or null for the
+     *                         system default
+     * @param onChange         called from the receive or timer thread whenever
+     *                         a peer appears, moves or expires
+     */
+    public MulticastDiscovery(String username, int port, InetSocketAddress group, NetworkInterface networkInterface,
+            long intervalMs, Runnable onChange) {
+        this.username = username;
+        this.port = port;
+        this.group = group;
+        this.networkInterface = networkInterface;
+        this.intervalMs = intervalMs;
+        // Survive two lost announcements
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs * 3 + intervalMs / 2);
+        this.onChange = onChange;
+    }
+
+    /** Group from {@code -Dp2p.lan.group=addr:port}, or {@link #DEFAULT_GROUP}. */
+    public static InetSocketAddress configuredGroup() {
+        return DiscoveryServer.parseAddresses(System.getProperty("p2p.lan.group", DEFAULT_GROUP)).get(0);
+    }
+
+    /** Interface from {@code -Dp2p.lan.interface=name}, or null for the default. */
+    public static NetworkInterface configuredInterface() throws SocketException {
+        String name = System.getProperty("p2p.lan.interface");
+        if (name == null || name.isEmpty())
+            return null;
+        NetworkInterface nif = NetworkInterface.getByName(name);
+        if (nif == null)
+            throw new SocketException("No network interface named " + name);
+        return nif;
+    }
+
+    /** Joins the group and starts announcing; receiving runs on {@code pool}, announcing on {@code timer}. */
+    public void start(ExecutorService pool, ScheduledExecutorService timer) throws IOException {
+        MulticastSocket s = new MulticastSocket(group.getPort());
+        s.setTimeToLive(1);
+        s.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        if (networkInterface != null)
+            s.setNetworkInterface(networkInterface);
+        s.joinGroup(group, networkInterface);
+        socket = s;
+        running = true;
+        pool.execute(this::receiveLoop);
+        timer.scheduleAtFixedRate(this::tick, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Says goodbye and leaves the group. */
+    public void stop() {
+        if (!running)
+            return;
+        running = false;
+        send("LAN_BYE " + username);
+        socket.close();
+    }
+
+    /** Live LAN peers as "user:host:port". */
+    public List<String> peers() {
+        long now = System.nanoTime();
+        List<String> list = new ArrayList<>(peers.size());
+        for (Entry entry : peers.values()) {
+            if (entry.expiresAt - now > 0)
+                list.add(entry.peer);
+        }
+        return list;
+    }
+
+    /** The LAN entry for {@code user}, or null. */
+    public String peer(String user) {
+        Entry entry = peers.get(user);
+        return entry == null || entry.expiresAt - System.nanoTime() <= 0 ? null : entry.peer;
+    }
+
+    private void tick() {
+        if (!running)
+            return;
+        announce();
+        long now = System.nanoTime();
+        if (peers.values().removeIf(entry -> entry.expiresAt - now <= 0))
+            onChange.run();
+    }
+
+    private void announce() {
+        send("LAN_HELLO " + username + " " + port);
+    }
+
+    private void send(String message) {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(data, data.length, group));
+        } catch (IOException e) {
+            if (running)
+                System.err.println("LAN announce failed: " + e.getMessage());
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_PACKET];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (running)
+                    System.err.println("LAN discovery stopped: " + e.getMessage());
+                return;
+            }
+            handle(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8), packet.getAddress());
+        }
+    }
+
+    private void handle(String message, InetAddress from) {
+        String[] parts = message.trim().split(" ");
+        if (parts.length < 2 || parts[1].equals(username))
+            return;
+        String user = parts[1];
+        if (parts[0].equals("LAN_HELLO") && parts.length == 3) {
+            int peerPort;
+            try {
+                peerPort = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            String peer = user + ":" + from.getHostAddress() + ":" + peerPort;
+            Entry previous = peers.put(user, new Entry(peer, System.nanoTime() + ttlNanos));
+            if (previous == null || !previous.peer.equals(peer)) {
+                onChange.run();
+                // Let the newcomer see us now rather than at our next tick
+                long now = System.nanoTime();
+                if (now - lastEarlyAnnounce > TimeUnit.MILLISECONDS.toNanos(intervalMs / 4)) {
+                    lastEarlyAnnounce = now;
+                    announce();
+                }
+            }
+        } else if (parts[0].equals("LAN_BYE")) {
+            if (peers.remove(user) != null)
+                onChange.run();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package p2p.net;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The single writer of one peer connection.
+ * <p>
+ * Interactive writes (handshake lines, chat and control commands) have
+ * strict priority: they go out before any bulk data that is not already on
+ * the wire. Bulk writes (file chunks) are shared among their streams by
+ * deficit round robin, so each transfer gets an equal share of the bytes
+ * whatever its chunk size. A stream may have {@link #BACKLOG} chunks
+ * waiting, so it can use its whole turn, and keeps what it did not spend of
+ * its turn until {@link #finish} ends it. Each chunk's callback runs once
+ * it is written, which lets its writer hand over pooled buffers without
+ * copying; interactive writers never block. The stream is flushed whenever
+ * nothing else is waiting.
+ */
+final class OutboundScheduler {
+    /** Bytes a bulk stream may send per round. */
+    static final int QUANTUM = 256 * 1024;
+    /** Chunks a bulk stream may have waiting before its writer blocks. */
+    static final int BACKLOG = 4;
+
+    /** One write; runs on the scheduler's thread. */
+    interface Write {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Bulk {
+        final Stream stream;
+        final Write write;
+        final int bytes;
+        final Runnable written;
+
+        Bulk(Stream stream, Write write, int bytes, Runnable written) {
+            this.stream = stream;
+            this.write = write;
+            this.bytes = bytes;
+            this.written = written;
+        }
+    }
+
+    private static final class Stream {
+        final ArrayDeque<Bulk> queue = new ArrayDeque<>();
+        long deficit;
+        int pending; // Queued or being written
+        IOException failure;
+    }
+
+    private final DataOutputStream out;
+    // Guarded by this
+    private final ArrayDeque<Write> interactive = new ArrayDeque<>();
+    // Every stream until it is finished, with its deficit
+    private final HashMap<Integer, Stream> streams = new HashMap<>();
+    // Streams with queued chunks, in round-robin order
+    private final LinkedHashMap<Integer, Stream> active = new LinkedHashMap<>();
+    private IOException failure;
+    private boolean closed;
+    private long interactiveWrites;
+    private long bulkBytes;
+
+    OutboundScheduler(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /** Starts the writer loop on {@code pool}. */
+    void start(ExecutorService pool) {
+        pool.execute(this::run);
+    }
+
+    /** Queues a write ahead of all bulk data; reports nothing if it fails later. */
+    synchronized void interactive(Write write) throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("Connection closed");
+        interactive.add(write);
+        notifyAll();
+    }
+
+    /**
+     * Queues {@code bytes} of bulk data for {@code stream}, to be written in
+     * its turn; {@code written} runs on the scheduler's thread once it is
+     * written or dropped. Blocks while the stream already has
+     * {@link #BACKLOG} chunks waiting.
+     */
+    synchronized void bulk(int stream, int bytes, Write write, Runnable written)
+            throws IOException, InterruptedException {
+        Stream state = streams.computeIfAbsent(stream, s -> new Stream());
+        while (!closed && state.failure == null && state.queue.size() >= BACKLOG)
+            wait();
+        if (state.failure != null)
+            throw state.failure;
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("Connection closed");
+        if (state.queue.isEmpty())
+            active.put(stream, state);
+        state.queue.add(new Bulk(state, write, bytes, written));
+        state.pending++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until everything queued for {@code stream} is written, then
+     * forgets the stream and the rest of its turn. Throws if any of its
+     * chunks could not be written.
+     */
+    synchronized void finish(int stream) throws IOException, InterruptedException {
+        Stream state = streams.get(stream);
+        if (state == null)
+            return;
+        while (state.pending > 0 && state.failure == null)
+            wait();
+        streams.remove(stream, state);
+        if (state.failure != null)
+            throw state.failure;
+    }
+
+    /** Stops the writer; queued writes are dropped and blocked bulk writers fail. */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /** "interactive=N bulkBytes=M" so far. */
+    synchronized String stats() {
+        return "interactive=" + interactiveWrites + " bulkBytes=" + bulkBytes;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Write next;
+                Bulk bulk = null;
+                synchronized (this) {
+                    while (!closed && interactive.isEmpty() && active.isEmpty())
+                        wait();
+                    if (closed)
+                        break;
+                    next = interactive.poll();
+                    if (next != null) {
+                        interactiveWrites++;
+                    } else {
+                        bulk = nextBulk();
+                        next = bulk.write;
+                        bulkBytes += bulk.bytes;
+                    }
+                }
+                IOException error = null;
+                try {
+                    next.writeTo(out);
+                    if (isIdle())
+                        out.flush();
+                } catch (IOException e) {
+                    error = e;
+                }
+                if (bulk != null)
+                    bulk.written.run();
+                synchronized (this) {
+                    if (bulk != null) {
+                        bulk.stream.pending--;
+                        if (error != null)
+                            bulk.stream.failure = error;
+                        notifyAll();
+                    }
+                    if (error != null) {
+                        failure = error;
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+        List<Bulk> dropped = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            IOException error = failure != null ? failure : new IOException("Connection closed");
+            for (Stream stream : streams.values()) {
+                dropped.addAll(stream.queue);
+                stream.queue.clear();
+                stream.pending = 0;
+                if (stream.failure == null)
+                    stream.failure = error;
+            }
+            active.clear();
+            interactive.clear();
+            notifyAll();
+        }
+        for (Bulk bulk : dropped)
+            bulk.written.run();
+    }
+
+    private synchronized boolean isIdle() {
+        return interactive.isEmpty() && active.isEmpty();
+    }
+
+    /**
+     * Deficit round robin: the stream at the head of the rotation sends while
+     * its deficit covers the next chunk, then moves to the back with
+     * whatever it did not spend. A stream that runs out of queued chunks
+     * leaves the rotation but keeps its deficit, as its writer is usually
+     * only a moment behind. Caller holds the lock; {@code active} is not
+     * empty.
+     */
+    private Bulk nextBulk() {
+        while (true) {
+            Iterator<Map.Entry<Integer, Stream>> it = active.entrySet().iterator();
+            Map.Entry<Integer, Stream> head = it.next();
+            Stream stream = head.getValue();
+            Bulk bulk = stream.queue.peek();
+            if (bulk.bytes <= stream.deficit) {
+                stream.deficit -= bulk.bytes;
+                stream.queue.poll();
+                if (stream.queue.isEmpty())
+                    it.remove();
+                // Room for the stream's writer
+                notifyAll();
+                return bulk;
+            }
+            // Out of credit this round: top up and go to the back
+            stream.deficit += QUANTUM;
+            it.remove();
+            active.put(head.getKey(), stream);
+        }
+    }
+}
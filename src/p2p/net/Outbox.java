@@ -0,0 +1,191 @@
+package p2p.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Bounded outbound queue for one discovery client.
+ * <p>
+ * Broadcast frames are encoded once by the server and the same buffer is
+ * queued for every recipient; {@link #poll()} hands out a duplicate so each
+ * client keeps its own write position. Direct replies (OK, PEERS, ...) are
+ * never dropped by the overflow policy, but a client that lets them pile up
+ * past twice the capacity is treated as dead.
+ * <p>
+ * A {@link Backfill} (e.g. a history replay) is a low-priority lane: it is
+ * only asked for its next frame when the queue is empty, so it never counts
+ * against the capacity and never delays live frames.
+ */
+final class Outbox {
+
+    enum OverflowPolicy {
+        /** Drop the oldest queued broadcast to make room. */
+        DROP_OLDEST,
+        /** Disconnect the client as soon as its queue is full. */
+        DISCONNECT,
+        /** Collapse every queued broadcast into a single "LAGGED n" notice. */
+        COALESCE;
+
+        static OverflowPolicy parse(String s) {
+            return valueOf(s.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /** Frames produced on demand, only while nothing else is queued. */
+    interface Backfill {
+        /** Returns the next frame, or null when finished. Called by the writer only. */
+        ByteBuffer next();
+    }
+
+    private record Entry(ByteBuffer frame, boolean droppable) {
+    }
+
+    // Placeholder for frames removed by COALESCE; rendered lazily in poll().
+    private static final Entry LAG_MARKER = new Entry(null, false);
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private int droppableCount;
+    private long markerCount;
+    private boolean markerQueued;
+    private Backfill backfill;
+
+    private long enqueued;
+    private long dropped;
+    private int highWater;
+
+    Outbox(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues a frame. The buffer may be shared between outboxes and must not be
+     * modified afterwards.
+     *
+     * @return false if the client should be disconnected
+     */
+    synchronized boolean offer(ByteBuffer frame, boolean droppable) {
+        if (queue.size() >= capacity * 2) {
+            return false;
+        }
+        if (droppable && droppableCount >= capacity) {
+            switch (policy) {
+                case DISCONNECT:
+                    return false;
+                case DROP_OLDEST:
+                    removeOldestDroppable();
+                    break;
+                case COALESCE:
+                    coalesce();
+                    break;
+            }
+        }
+        queue.add(new Entry(frame, droppable));
+        if (droppable)
+            droppableCount++;
+        enqueued++;
+        highWater = Math.max(highWater, queue.size());
+        return true;
+    }
+
+    /** Replaces any running backfill; the client must then be flushed. */
+    synchronized void setBackfill(Backfill backfill) {
+        this.backfill = backfill;
+    }
+
+    /** Returns the next frame to write, or null when the queue is empty. */
+    ByteBuffer poll() {
+        Backfill source;
+        synchronized (this) {
+            Entry e = queue.poll();
+            if (e == LAG_MARKER) {
+                markerQueued = false;
+                long n = markerCount;
+                markerCount = 0;
+                return encode("LAGGED " + n);
+            }
+            if (e != null) {
+                if (e.droppable)
+                    droppableCount--;
+                return e.frame.duplicate();
+            }
+            source = backfill;
+        }
+        if (source == null)
+            return null;
+        // Outside the lock: the source may take locks that are held while offering to us
+        ByteBuffer frame = source.next();
+        if (frame == null) {
+            synchronized (this) {
+                if (backfill == source)
+                    backfill = null;
+            }
+        }
+        return frame;
+    }
+
+    synchronized boolean isEmpty() {
+        return queue.isEmpty() && backfill == null;
+    }
+
+    synchronized int depth() {
+        return queue.size();
+    }
+
+    /** A client counts as lagging once half its queue is used or it has lost frames. */
+    synchronized boolean isLagging() {
+        return droppableCount >= capacity / 2 || dropped > 0;
+    }
+
+    synchronized long enqueued() {
+        return enqueued;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    synchronized int highWater() {
+        return highWater;
+    }
+
+    private void removeOldestDroppable() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().droppable) {
+                it.remove();
+                droppableCount--;
+                dropped++;
+                return;
+            }
+        }
+    }
+
+    private void coalesce() {
+        long removed = 0;
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.droppable) {
+                it.remove();
+                removed++;
+            }
+        }
+        droppableCount = 0;
+        dropped += removed;
+        markerCount += removed;
+        if (!markerQueued) {
+            markerQueued = true;
+            queue.add(LAG_MARKER);
+        }
+    }
+}
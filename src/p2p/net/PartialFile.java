@@ -0,0 +1,274 @@
+package p2p.net;
+
+import p2p.security.SecurityUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * A download in progress that survives dropped connections and restarts.
+ * <p>
+ * Data goes to {@code <target>.part}, preallocated to the full size and
+ * written with positional writes, so chunks may arrive in any order. Which
+ * chunks are complete is kept in a bitmap in {@code <target>.part.map}:
+ *
+ * <pre>
+ * [magic:4][version:4][size:8][chunkSize:4][contentId:64 hex][bitmap]
+ * </pre>
+ *
+ * The bitmap is written only after the data it covers has been forced to
+ * disk, so a crash can lose recent chunks but never mark missing ones as
+ * present. Opening the same target for the same content ID resumes where it
+ * stopped; anything else starts over.
+ * <p>
+ * Several connections may write chunks at once (striped transfers); the
+ * data writes themselves run in parallel.
+ */
+final class PartialFile implements Closeable {
+    private static final int MAGIC = 0x50325046; // "P2PF"
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 + 4 + 8 + 4 + 64;
+    /** Chunks received between bitmap saves, and no more often than every {@link #SAVE_NANOS}. */
+    private static final int SAVE_EVERY = 32;
+    /** Each save forces the data to disk, which stalls the writer; a second's worth at most is redone. */
+    private static final long SAVE_NANOS = 1_000_000_000L;
+
+    private final File target;
+    private final File part;
+    private final File map;
+    private final String contentId;
+    private final long size;
+    private final int chunkSize;
+    private final int chunks;
+    private final BitSet done;
+    private final FileChannel data;
+    private final FileChannel bitmap;
+    private int unsaved;
+    private long savedAt;
+
+    private PartialFile(File target, String contentId, long size, int chunkSize, BitSet done) throws IOException {
+        this.target = target;
+        this.part = new File(target.getPath() + ".part");
+        this.map = new File(target.getPath() + ".part.map");
+        this.contentId = contentId;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+        this.done = done;
+        this.data = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.bitmap = FileChannel.open(map.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the partial download of {@code contentId} into {@code target},
+     * resuming an earlier one if its map matches and starting afresh if not.
+     */
+    static PartialFile open(File target, String contentId, long size, int chunkSize) throws IOException {
+        if (size < 0 || chunkSize <= 0 || contentId.length() != 64)
+            throw new IOException("Bad transfer parameters");
+        File part = new File(target.getPath() + ".part");
+        File map = new File(target.getPath() + ".part.map");
+        BitSet done = part.length() == size ? readMap(map, contentId, size, chunkSize) : null;
+        boolean resumed = done != null;
+        if (!resumed) {
+            done = new BitSet();
+            Files.deleteIfExists(part.toPath());
+        }
+        PartialFile file = new PartialFile(target, contentId, size, chunkSize, done);
+        if (!resumed) {
+            // Reserve the whole file now; the FS may keep it sparse
+            file.data.write(ByteBuffer.allocate(1), Math.max(0, size - 1));
+            file.data.truncate(size);
+            file.saveMap();
+        }
+        return file;
+    }
+
+    private static BitSet readMap(File map, String contentId, long size, int chunkSize) {
+        try {
+            byte[] bytes = Files.readAllBytes(map.toPath());
+            if (bytes.length < HEADER)
+                return null;
+            ByteBuffer header = ByteBuffer.wrap(bytes);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != size
+                    || header.getInt() != chunkSize)
+                return null;
+            String id = new String(bytes, header.position(), 64, StandardCharsets.US_ASCII);
+            if (!id.equals(contentId))
+                return null;
+            BitSet done = BitSet.valueOf(ByteBuffer.wrap(bytes, HEADER, bytes.length - HEADER));
+            int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+            if (done.length() > chunks)
+                done.clear(chunks, done.length());
+            return done;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    String contentId() {
+        return contentId;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /** Bytes already on disk. */
+    synchronized long received() {
+        long bytes = (long) done.cardinality() * chunkSize;
+        if (chunks > 0 && done.get(chunks - 1))
+            bytes -= (long) chunks * chunkSize - size;
+        return bytes;
+    }
+
+    synchronized boolean isComplete() {
+        return done.cardinality() == chunks;
+    }
+
+    /** Chunk indexes still needed. */
+    synchronized BitSet missing() {
+        BitSet missing = new BitSet(chunks);
+        missing.set(0, chunks);
+        missing.andNot(done);
+        return missing;
+    }
+
+    /**
+     * Stores one whole chunk at {@code offset}, which must be chunk-aligned.
+     * Chunks already held are ignored.
+     */
+    void write(long offset, ByteBuffer chunk) throws IOException {
+        if (offset < 0 || offset % chunkSize != 0 || offset >= size)
+            throw new IOException("Misaligned chunk at " + offset);
+        int index = (int) (offset / chunkSize);
+        long expected = Math.min(chunkSize, size - offset);
+        if (chunk.remaining() != expected)
+            throw new IOException("Chunk " + index + " has " + chunk.remaining() + " bytes, expected " + expected);
+        synchronized (this) {
+            if (done.get(index))
+                return;
+        }
+        while (chunk.hasRemaining())
+            offset += data.write(chunk, offset);
+        synchronized (this) {
+            done.set(index);
+            if (++unsaved >= SAVE_EVERY && System.nanoTime() - savedAt >= SAVE_NANOS)
+                saveMap();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the last chunks, which may still be in flight on other
+     * connections. Gives up once {@code idleMillis} pass with no progress.
+     */
+    synchronized boolean awaitComplete(long idleMillis) throws InterruptedException {
+        int seen = done.cardinality();
+        long deadline = System.currentTimeMillis() + idleMillis;
+        while (!isComplete()) {
+            long left = deadline - System.currentTimeMillis();
+            if (done.cardinality() != seen) {
+                seen = done.cardinality();
+                deadline = System.currentTimeMillis() + idleMillis;
+            } else if (left <= 0) {
+                return false;
+            }
+            wait(Math.max(1, Math.min(left, 100)));
+        }
+        return true;
+    }
+
+    /**
+     * Checks the content against its ID, moves it to the target name and
+     * removes the map. On a mismatch the partial data is discarded.
+     */
+    synchronized File finish() throws IOException {
+        if (!isComplete())
+            throw new IOException("Transfer incomplete: " + missing().cardinality() + " chunks missing");
+        data.force(true);
+        String actual = SecurityUtils.sha256Hex(part);
+        close();
+        if (!actual.equals(contentId)) {
+            discard();
+            throw new IOException("Content check failed for " + target.getName());
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(map.toPath());
+        return target;
+    }
+
+    /** Saves progress; a later {@link #open} with the same ID resumes from here. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!data.isOpen())
+            return;
+        try {
+            saveMap();
+        } finally {
+            data.close();
+            bitmap.close();
+        }
+    }
+
+    private void discard() throws IOException {
+        Files.deleteIfExists(part.toPath());
+        Files.deleteIfExists(map.toPath());
+    }
+
+    private void saveMap() throws IOException {
+        // Data first, so the map never claims a chunk the disk does not have
+        data.force(false);
+        byte[] bits = done.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + (chunks + 7) / 8);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(size).putInt(chunkSize);
+        buffer.put(contentId.getBytes(StandardCharsets.US_ASCII));
+        buffer.put(bits);
+        // Zero the rest so a map left by other content never leaks stale bits
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        while (buffer.hasRemaining())
+            bitmap.write(buffer, buffer.position());
+        bitmap.force(false);
+        unsaved = 0;
+        savedAt = System.nanoTime();
+    }
+
+    /** "a-b,c-d" with inclusive chunk indexes, or "-" for none. */
+    static String encodeRanges(BitSet chunks) {
+        StringBuilder sb = new StringBuilder();
+        for (int start = chunks.nextSetBit(0); start >= 0; start = chunks.nextSetBit(start)) {
+            int end = chunks.nextClearBit(start);
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(start).append('-').append(end - 1);
+            start = end;
+        }
+        return sb.length() == 0 ? "-" : sb.toString();
+    }
+
+    /** Parses {@link #encodeRanges} output; every index must be below {@code limit}. */
+    static BitSet decodeRanges(String ranges, int limit) {
+        BitSet chunks = new BitSet();
+        if (ranges.equals("-"))
+            return chunks;
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            int start = Integer.parseInt(range.substring(0, dash));
+            int end = Integer.parseInt(range.substring(dash + 1));
+            if (start < 0 || end < start || end >= limit)
+                throw new IllegalArgumentException("Bad range " + range);
+            chunks.set(start, end + 1);
+        }
+        return chunks;
+    }
+}
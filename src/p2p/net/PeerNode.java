@@ -6,23 +6,50 @@ package p2p.net;
 import p2p.security.SecurityUtils;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 // import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import javax.crypto.SecretKey;
 
 public class PeerNode {
+    // Well inside the server's default 30s registration TTL
+    private static final long HEARTBEAT_INTERVAL_MS = 10_000;
+    // How often peer connections are checked for silence and idleness
+    private static final long LIVENESS_CHECK_MS = 5_000;
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+    // How often use times recorded by store lookups are written to its index
+    private static final long STORE_FLUSH_MS = 60_000;
+
     private final String username;
     private final int port;
+    // Port other peers should dial, if a forwarder sits in front of ours
+    private volatile int advertisedPort;
+    // Any node of a discovery cluster will do; override with -Dp2p.discovery=host:port,host:port
+    private List<InetSocketAddress> discoveryServers = DiscoveryServer
+            .parseAddresses(System.getProperty("p2p.discovery", "localhost:8888"));
+    // LAN multicast discovery: "off", "on" (alongside the server, and instead of
+    // it while it is unreachable) or "only" (no server at all); -Dp2p.lan=...
+    private String lanMode = System.getProperty("p2p.lan", "off").toLowerCase(Locale.ROOT);
+    private static final long LAN_INTERVAL_MS = 2_000;
+    private MulticastDiscovery lan;
     private final KeyPair keyPair;
-    private Socket discoverySocket;
-    private PrintWriter discoveryOut;
-    private BufferedReader discoveryIn;
+    // Global messages kept for the server while it is unreachable
+    private static final int GLOBAL_OUTBOX = 100;
+    private volatile DiscoveryClient discovery;
     private ServerSocket serverSocket;
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    // Socket loops and file senders; virtual threads with -Dp2p.virtualThreads
+    private final ExecutorService pool = Threads.newIoExecutor("peer-io");
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "peer-timer");
+        t.setDaemon(true);
+        return t;
+    });
     private final ConcurrentHashMap<String, PeerConnection> activeConnections = new ConcurrentHashMap<>();
     private final Consumer<String> onMessageReceived;
     private final java.util.function.BiConsumer<String, Consumer<Boolean>> onChatRequest;
@@ -33,6 +60,54 @@ public class PeerNode {
     private final java.util.function.BiConsumer<String, Integer> onFileProgress;
     private final List<Consumer<List<String>>> peerCallbacks = new CopyOnWriteArrayList<>();
 
+    // Local copy of the discovery peer table (username -> "user:host:port"),
+    // kept current by the PEER_JOIN / PEER_UPDATE / PEER_LEAVE push stream.
+    private final ConcurrentHashMap<String, String> peerTable = new ConcurrentHashMap<>();
+    private final List<Consumer<List<String>>> peerListeners = new CopyOnWriteArrayList<>();
+    private volatile String peerEpoch = "";
+    private volatile long peerVersion = -1;
+    private volatile boolean peersSynced;
+    private volatile boolean resyncPending;
+    // Set while the server is unreachable: the table is the last one we saw
+    private volatile boolean peersStale;
+
+    // Directory queries (LIST_PEERS / SEARCH_PEERS) waiting for their reply, by request id,
+    // and sent again if the connection drops first
+    private final ConcurrentHashMap<Long, Query> pendingQueries = new ConcurrentHashMap<>();
+    private final java.util.concurrent.atomic.AtomicLong nextQueryId = new java.util.concurrent.atomic.AtomicLong();
+
+    // Global chat is numbered by the discovery server. While a HISTORY replay is
+    // in flight (historyReplay != null) live and replayed messages are buffered
+    // and then delivered once, in sequence order.
+    private final Object globalLock = new Object();
+    private String historyEpoch = "";
+    private long lastGlobalSeq;
+    private TreeMap<Long, String[]> historyReplay;
+
+    // Rooms we have joined (lower-cased, as the server names them)
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+
+    // Received files by content ID; -Dp2p.downloads=dir, -Dp2p.downloads.maxMb=N
+    private final ContentStore store = ContentStore.configured();
+
+    // Files we serve to swarm downloads, by content ID
+    private final ConcurrentHashMap<String, SharedFile> shared = new ConcurrentHashMap<>();
+
+    // Where peers listen and the tickets to resume sessions with them; -Dp2p.sessions=file
+    private final SessionCache sessions = SessionCache.configured();
+    // Users being reconnected to, with what to run once each connection is up; guarded by itself
+    private final Map<String, List<Consumer<PeerConnection>>> reconnecting = new HashMap<>();
+
+    private record SharedFile(java.io.File file, SwarmDownload.Manifest manifest) {
+    }
+
+    private record Query(String line, Consumer<String[]> callback) {
+    }
+
+    /** One page of the discovery directory; nextCursor is null on the last page. */
+    public record PeerPage(List<String> peers, String nextCursor) {
+    }
+
     public PeerNode(String username, int port, Consumer<String> onMessageReceived,
             java.util.function.BiConsumer<String, Consumer<Boolean>> onChatRequest,
             java.util.function.BiConsumer<String, Boolean> onChatFeedback,
@@ -40,63 +115,149 @@ public class PeerNode {
             java.util.function.BiConsumer<String, Integer> onFileProgress) throws Exception {
         this.username = username;
         this.port = port;
+        this.advertisedPort = port;
         this.onMessageReceived = onMessageReceived;
         this.onChatRequest = onChatRequest;
         this.onChatFeedback = onChatFeedback;
         this.onFileRequest = onFileRequest;
         this.onFileProgress = onFileProgress;
-        this.keyPair = SecurityUtils.generateRSAKeyPair();
+        this.keyPair = Threads.compute(SecurityUtils::generateRSAKeyPair);
     }
 
     public void start() throws IOException {
+        store.open();
+        sessions.open();
+
         // Start Server Socket for collecting P2P connections
         serverSocket = new ServerSocket(port);
         pool.execute(this::listenForPeers);
+        timer.scheduleWithFixedDelay(this::checkConnections, LIVENESS_CHECK_MS, LIVENESS_CHECK_MS,
+                TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::flushStore, STORE_FLUSH_MS, STORE_FLUSH_MS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushStore, "store-flush"));
+        preconnect();
 
-        // Connect to Discovery Server
-        connectToDiscoveryServer();
-    }
+        if (!lanMode.equals("off")) {
+            lan = new MulticastDiscovery(username, advertisedPort, MulticastDiscovery.configuredGroup(),
+                    MulticastDiscovery.configuredInterface(), LAN_INTERVAL_MS, this::notifyPeerListeners);
+            lan.start(pool, timer);
+            Runtime.getRuntime().addShutdownHook(new Thread(lan::stop, "lan-bye"));
+            if (lanMode.equals("only"))
+                return;
+        }
 
-    private void connectToDiscoveryServer() throws IOException {
-        discoverySocket = new Socket("localhost", 8888);
-        discoveryOut = new PrintWriter(discoverySocket.getOutputStream(), true);
-        discoveryIn = new BufferedReader(new InputStreamReader(discoverySocket.getInputStream()));
+        // Connect to Discovery Server; it reconnects by itself after a drop
+        discovery = new DiscoveryClient(discoveryServers, pool, GLOBAL_OUTBOX, new DiscoveryClient.Listener() {
+            @Override
+            public void onConnected() {
+                onDiscoveryConnected();
+            }
 
-        // Start listening to Discovery Server
-        pool.execute(() -> {
-            try {
-                String line;
-                while ((line = discoveryIn.readLine()) != null) {
-                    if (line.startsWith("PEERS ")) {
-                        // Handled by fetchPeers technically, but we need to handle async updates if we
-                        // want to change architecture.
-                        // For now, fetchPeers does a request-response, so it might consume this line.
-                        // PROBLEM: If we listen here, fetchPeers might hang waiting for line.
-                        // SOLUTION: Global Listener should handle ALL inputs from discovery server.
-                        // Refactor: fetchPeers callback should range-register or we just store peers
-                        // locally.
-                        // QUICK FIX for this iteration: Sync properly or separate channels.
-                        // BETTER: Let the listener handle everything and update state.
-
-                        // BUT: fetchPeers is designed as a blocking-ish request in current code.
-                        // Since `discoveryIn` is shared, we must be careful.
-                        // Current `fetchPeers` calls `readLine`. If we have a loop here, they will
-                        // fight.
-                        // DECISION: We will NOT loop `discoveryIn` here unless we refactor
-                        // `fetchPeers`.
-                        // Refactoring `fetchPeers` to be async event-driven is best.
-                        handleDiscoveryMessage(line);
-                    } else {
-                        handleDiscoveryMessage(line);
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+            @Override
+            public void onLine(String line) {
+                handleDiscoveryMessage(line);
+            }
+
+            @Override
+            public void onDisconnected() {
+                onDiscoveryLost();
             }
         });
+        try {
+            discovery.start(lan != null);
+        } catch (IOException e) {
+            if (lan == null)
+                throw e;
+            System.err.println(
+                    "Discovery server unreachable (" + e.getMessage() + "); using LAN discovery until it is back");
+        }
+        timer.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void flushStore() {
+        try {
+            store.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sendHeartbeat() {
+        sendDiscoveryLine("HEARTBEAT " + username);
+    }
+
+    private void register() {
+        sendDiscoveryLine("REGISTER " + username + " " + advertisedPort);
+    }
+
+    /** Where received files are kept ({@code -Dp2p.downloads}, default "downloads"). */
+    public static java.io.File downloadsDirectory() {
+        return ContentStore.configuredRoot().toFile();
+    }
+
+    /**
+     * Announces {@code port} to discovery and to file senders instead of the
+     * one we listen on, for a port forwarder in front of this node; call
+     * before {@link #start()}.
+     */
+    public void setAdvertisedPort(int port) {
+        this.advertisedPort = port;
+    }
+
+    /** Sets the LAN discovery mode ("off", "on" or "only"); call before {@link #start()}. */
+    public void setLanMode(String mode) {
+        this.lanMode = mode.toLowerCase(Locale.ROOT);
+    }
+
+    /** Replaces the discovery nodes to try; call before {@link #start()}. */
+    public void setDiscoveryServers(List<InetSocketAddress> servers) {
+        this.discoveryServers = new ArrayList<>(servers);
+    }
 
-        // Register
-        discoveryOut.println("REGISTER " + username + " " + port);
+    /** Runs before anything else is sent on a new connection, including after a reconnect. */
+    private void onDiscoveryConnected() {
+        register();
+        subscribePeers();
+        for (String room : joinedRooms)
+            sendDiscoveryLine("JOIN_ROOM " + room);
+        if (!shared.isEmpty())
+            sendDiscoveryLine("ADVERTISE " + String.join(",", shared.keySet()));
+        for (Query query : pendingQueries.values())
+            sendDiscoveryLine(query.line());
+        requestHistory();
+        if (peersStale)
+            onMessageReceived.accept("Reconnected to the discovery server");
+    }
+
+    private void onDiscoveryLost() {
+        peersSynced = false;
+        peersStale = true;
+        synchronized (globalLock) {
+            // Whatever the replay buffered is asked for again after reconnecting
+            historyReplay = null;
+        }
+        // Nobody will answer these now; serve the last known table
+        List<Consumer<List<String>>> callbacks = new ArrayList<>(peerCallbacks);
+        peerCallbacks.clear();
+        List<String> peers = getKnownPeers();
+        for (Consumer<List<String>> cb : callbacks)
+            cb.accept(peers);
+        notifyPeerListeners();
+        onMessageReceived.accept("Discovery server unreachable, reconnecting (peer list may be out of date)");
+    }
+
+    /**
+     * Asks the discovery server to push membership changes. Passing the epoch
+     * and version we last saw lets the server send only the deltas we missed.
+     */
+    private void subscribePeers() {
+        resyncPending = true;
+        if (peerEpoch.isEmpty()) {
+            sendDiscoveryLine("SUBSCRIBE_PEERS");
+        } else {
+            sendDiscoveryLine("SUBSCRIBE_PEERS " + peerEpoch + " " + peerVersion);
+        }
     }
 
     // We need to refactor fetchPeers to NOT readLine directly, but wait for update.
@@ -112,31 +273,365 @@ public class PeerNode {
             for (Consumer<List<String>> cb : callbacks)
                 cb.accept(peers);
         } else if (line.startsWith("GLOBAL_MSG ")) {
+            handleGlobalMessage(line);
+        } else if (line.startsWith("HISTORY_END ")) {
+            finishHistory(line);
+        } else if (line.startsWith("ROOM_MSG ")) {
+            // ROOM_MSG room sender content
+            String[] parts = line.split(" ", 4);
+            if (parts.length == 4)
+                onMessageReceived.accept("ROOM " + parts[1] + " [" + parts[2] + "]: " + parts[3]);
+        } else if (line.startsWith("ROOM_ERROR ")) {
+            // ROOM_ERROR room reason
             String[] parts = line.split(" ", 3);
             if (parts.length == 3) {
-                onMessageReceived.accept("GLOBAL [" + parts[1] + "]: " + parts[2]);
+                // The server has dropped us from the room; tell the UI so it closes the session
+                joinedRooms.remove(parts[1]);
+                onMessageReceived.accept("ROOM_LEFT " + parts[1] + " " + parts[2]);
             }
+        } else if (line.startsWith("PEER_PAGE ") || line.startsWith("SEARCH_RESULT ")
+                || line.startsWith("HOLDERS ")) {
+            // PEER_PAGE reqId next list | SEARCH_RESULT reqId list | HOLDERS reqId contentId list
+            String[] parts = line.split(" ", line.startsWith("SEARCH_RESULT ") ? 3 : 4);
+            try {
+                Query query = pendingQueries.remove(Long.parseLong(parts[1]));
+                if (query != null)
+                    query.callback().accept(parts);
+            } catch (NumberFormatException e) {
+                System.err.println("Bad directory reply: " + line);
+            }
+        } else if (line.startsWith("PEER")) {
+            handleMembershipMessage(line);
+        } else if (line.equals("ERROR NOT_REGISTERED")) {
+            // Our registration expired (missed heartbeats or server restart)
+            register();
+        } else if (line.startsWith("LAGGED ")) {
+            // The server dropped part of our push stream; deltas and chat may be missing.
+            subscribePeers();
+            requestHistory();
+        }
+    }
+
+    /**
+     * Asks for the global messages we have not seen yet (all kept ones on
+     * first connect). Does nothing if a replay is already running.
+     */
+    private void requestHistory() {
+        String request;
+        synchronized (globalLock) {
+            if (historyReplay != null)
+                return;
+            historyReplay = new TreeMap<>();
+            request = historyEpoch.isEmpty() ? "HISTORY" : "HISTORY " + historyEpoch + " " + lastGlobalSeq;
         }
+        sendDiscoveryLine(request);
+    }
+
+    private void handleGlobalMessage(String line) {
+        // GLOBAL_MSG seq sender content
+        String[] parts = line.split(" ", 4);
+        long seq;
+        try {
+            seq = Long.parseLong(parts[1]);
+        } catch (RuntimeException e) {
+            System.err.println("Bad global message: " + line);
+            return;
+        }
+        if (parts.length != 4)
+            return;
+        boolean missed;
+        synchronized (globalLock) {
+            if (historyReplay != null) {
+                historyReplay.put(seq, parts);
+                return;
+            }
+            if (seq <= lastGlobalSeq)
+                return; // Already shown
+            missed = lastGlobalSeq > 0 && seq != lastGlobalSeq + 1;
+            if (!missed)
+                lastGlobalSeq = seq;
+        }
+        if (missed) {
+            // Some were dropped while we lagged; this one is replayed with them
+            requestHistory();
+            return;
+        }
+        deliverGlobal(parts);
+    }
+
+    private void finishHistory(String line) {
+        // HISTORY_END epoch lastSeq
+        String[] parts = line.split(" ");
+        List<String[]> ready = new ArrayList<>();
+        synchronized (globalLock) {
+            if (historyReplay == null || parts.length != 3)
+                return;
+            if (!parts[1].equals(historyEpoch)) {
+                // New numbering (server restarted, or another cluster node): all of it is new
+                historyEpoch = parts[1];
+                lastGlobalSeq = 0;
+            }
+            for (Map.Entry<Long, String[]> entry : historyReplay.entrySet()) {
+                if (entry.getKey() > lastGlobalSeq) {
+                    ready.add(entry.getValue());
+                    lastGlobalSeq = entry.getKey();
+                }
+            }
+            try {
+                lastGlobalSeq = Math.max(lastGlobalSeq, Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                System.err.println("Bad history end: " + line);
+            }
+            historyReplay = null;
+        }
+        for (String[] message : ready)
+            deliverGlobal(message);
+    }
+
+    private void deliverGlobal(String[] parts) {
+        onMessageReceived.accept("GLOBAL [" + parts[2] + "]: " + parts[3]);
+    }
+
+    private void handleMembershipMessage(String line) {
+        String[] parts = line.split(" ", 4);
+        String type = parts[0];
+        try {
+            if ("PEERS_SNAPSHOT".equals(type) && parts.length >= 3) {
+                peerTable.clear();
+                if (parts.length == 4 && !parts[3].isEmpty()) {
+                    for (String entry : parts[3].split(",")) {
+                        peerTable.put(entry.substring(0, entry.indexOf(':')), entry);
+                    }
+                }
+                peerEpoch = parts[1];
+                peerVersion = Long.parseLong(parts[2]);
+                peersSynced = true;
+                peersStale = false;
+                resyncPending = false;
+                notifyPeerListeners();
+            } else if ("PEERS_SYNCED".equals(type) && parts.length >= 3) {
+                peerEpoch = parts[1];
+                peerVersion = Long.parseLong(parts[2]);
+                peersSynced = true;
+                peersStale = false;
+                resyncPending = false;
+                notifyPeerListeners();
+            } else if (parts.length >= 3 && (type.equals("PEER_JOIN") || type.equals("PEER_UPDATE")
+                    || type.equals("PEER_LEAVE"))) {
+                long version = Long.parseLong(parts[1]);
+                if (peerVersion < 0 || version <= peerVersion)
+                    return; // No base yet, or already applied
+                if (version != peerVersion + 1) {
+                    // Gap: resume from what we have
+                    if (!resyncPending)
+                        subscribePeers();
+                    return;
+                }
+                String body = parts[2];
+                if (type.equals("PEER_LEAVE")) {
+                    peerTable.remove(body);
+                } else {
+                    peerTable.put(body.substring(0, body.indexOf(':')), body);
+                }
+                peerVersion = version;
+                notifyPeerListeners();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Bad membership message: " + line);
+            subscribePeers();
+        }
+    }
+
+    private void notifyPeerListeners() {
+        List<String> peers = getKnownPeers();
+        for (Consumer<List<String>> listener : peerListeners)
+            listener.accept(peers);
+    }
+
+    /**
+     * Current view of the peer table; no network round trip. With LAN
+     * discovery on, peers heard on the LAN are added unless the server
+     * already lists them.
+     */
+    public List<String> getKnownPeers() {
+        List<String> peers = new ArrayList<>(peerTable.values());
+        if (lan != null) {
+            for (String peer : lan.peers()) {
+                if (!peerTable.containsKey(peer.substring(0, peer.indexOf(':'))))
+                    peers.add(peer);
+            }
+        }
+        return peers;
+    }
+
+    /** Called with the full peer list every time membership changes. */
+    public void addPeerListener(Consumer<List<String>> listener) {
+        peerListeners.add(listener);
     }
 
     public void fetchPeers(Consumer<List<String>> callback) {
+        if (peersSynced || discovery == null || !discovery.isConnected()) {
+            // Served from the pushed peer table, or the last known one while offline
+            callback.accept(getKnownPeers());
+            return;
+        }
         // Register callback and send request
         peerCallbacks.add(callback);
-        if (discoveryOut != null) {
-            synchronized (discoveryOut) {
-                discoveryOut.println("GET_PEERS");
-            }
+        if (!sendDiscoveryLine("GET_PEERS") && peerCallbacks.remove(callback))
+            callback.accept(getKnownPeers());
+    }
+
+    /**
+     * Fetches one page of the directory in username order. Pass null as the
+     * cursor for the first page, then the previous page's nextCursor.
+     */
+    public void listPeers(String cursor, int limit, Consumer<PeerPage> callback) {
+        long id = nextQueryId.incrementAndGet();
+        sendDiscoveryQuery(id, "LIST_PEERS " + id + " " + (cursor == null ? "-" : cursor) + " " + limit, parts -> {
+            List<String> peers = parts.length < 4 || parts[3].isEmpty() ? Collections.emptyList()
+                    : Arrays.asList(parts[3].split(","));
+            callback.accept(new PeerPage(peers, "-".equals(parts[2]) ? null : parts[2]));
+        });
+    }
+
+    /**
+     * Looks up users by name on the discovery server, ignoring case. With
+     * prefix=false any username containing the query matches.
+     */
+    public void searchPeers(String query, boolean prefix, int limit, Consumer<List<String>> callback) {
+        long id = nextQueryId.incrementAndGet();
+        sendDiscoveryQuery(id, "SEARCH_PEERS " + id + " " + (prefix ? "prefix" : "contains") + " " + limit + " "
+                + query.trim(), parts -> callback.accept(parts.length < 3 || parts[2].isEmpty()
+                        ? Collections.emptyList()
+                        : Arrays.asList(parts[2].split(","))));
+    }
+
+    /**
+     * Serves {@code file} to swarm downloads and advertises it to the
+     * discovery server. Reads the whole file to hash it, so call it off the
+     * UI thread. Returns the content ID that others download it by.
+     */
+    public String shareFile(java.io.File file) throws IOException {
+        SwarmDownload.Manifest manifest = SwarmDownload.Manifest.build(file, FileSender.configuredChunkSize());
+        shared.put(manifest.contentId(), new SharedFile(file, manifest));
+        sendDiscoveryLine("ADVERTISE " + manifest.contentId());
+        return manifest.contentId();
+    }
+
+    public void unshareFile(String contentId) {
+        if (shared.remove(contentId) != null)
+            sendDiscoveryLine("UNADVERTISE " + contentId);
+    }
+
+    /**
+     * Fetches the file with {@code contentId} from every peer that serves it
+     * at once, into the downloads directory. Holders come from the discovery
+     * server; without one, every LAN peer is asked. Progress and the outcome
+     * are reported like other transfers, under the name "swarm".
+     */
+    public void swarmDownload(String contentId) {
+        Consumer<List<String>> start = holders -> pool.execute(() -> runSwarm(contentId, holders));
+        DiscoveryClient client = discovery;
+        if (client == null || !client.isConnected()) {
+            start.accept(lan == null ? Collections.emptyList() : lan.peers());
+            return;
         }
+        long id = nextQueryId.incrementAndGet();
+        sendDiscoveryQuery(id, "WHO_HAS " + id + " " + contentId, parts -> start.accept(
+                parts.length < 4 || parts[3].isEmpty() ? Collections.emptyList() : Arrays.asList(parts[3].split(","))));
     }
 
-    public void sendGlobalMessage(String content) {
-        if (discoveryOut != null) {
-            synchronized (discoveryOut) {
-                discoveryOut.println("GLOBAL_MSG " + username + " " + content);
+    private void runSwarm(String contentId, List<String> holders) {
+        try {
+            java.io.File have = store.lookup(contentId);
+            if (have != null) {
+                onMessageReceived.accept("System: Already have " + have.getName() + ".");
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (holders.isEmpty()) {
+            onMessageReceived.accept("System: Nobody is sharing " + contentId + ".");
+            return;
+        }
+        List<String> sources = new ArrayList<>(holders);
+        Collections.shuffle(sources);
+        SwarmDownload download = new SwarmDownload(username, keyPair, contentId, sources, store, pool,
+                percent -> onFileProgress.accept("swarm", percent));
+        try {
+            java.io.File saved = download.run();
+            onFileProgress.accept("swarm", -1);
+            StringBuilder from = new StringBuilder();
+            for (Map.Entry<String, Long> entry : download.bytesBySource().entrySet()) {
+                if (entry.getValue() > 0)
+                    from.append(from.length() == 0 ? "" : ", ").append(entry.getKey()).append(' ')
+                            .append(entry.getValue() / 1024).append(" KB");
             }
+            onMessageReceived.accept("System: File " + saved.getName() + " received from " + from + ".");
+        } catch (Exception e) {
+            onFileProgress.accept("swarm", -1);
+            onMessageReceived.accept("System: Swarm download failed: " + e.getMessage());
         }
     }
 
+    /** Sends now, or on reconnect if the server is unreachable; never answered in LAN-only mode. */
+    private void sendDiscoveryQuery(long id, String line, Consumer<String[]> callback) {
+        if (discovery == null)
+            return;
+        pendingQueries.put(id, new Query(line, callback));
+        sendDiscoveryLine(line);
+    }
+
+    /**
+     * Joins a chat room; its messages arrive as "ROOM name [sender]: content".
+     * Names are 1-32 letters, digits, '_' or '-', case-insensitive.
+     *
+     * @return the room's canonical (lower-case) name
+     * @throws IllegalArgumentException if the name is not valid
+     */
+    public String joinRoom(String room) {
+        String name = room.trim().toLowerCase(Locale.ROOT);
+        if (!name.matches("[a-z0-9_-]{1,32}"))
+            throw new IllegalArgumentException("Invalid room name: " + room);
+        joinedRooms.add(name);
+        sendDiscoveryLine("JOIN_ROOM " + name);
+        return name;
+    }
+
+    public void leaveRoom(String room) {
+        String name = room.trim().toLowerCase(Locale.ROOT);
+        joinedRooms.remove(name);
+        sendDiscoveryLine("LEAVE_ROOM " + name);
+    }
+
+    /** Posts to a joined room; the server echoes it back like global chat. */
+    public void sendRoomMessage(String room, String content) {
+        sendDiscoveryLine("ROOM_MSG " + room.toLowerCase(Locale.ROOT) + " " + username + " " + content);
+    }
+
+    public Set<String> getJoinedRooms() {
+        return new TreeSet<>(joinedRooms);
+    }
+
+    /** @return false if there is no live discovery connection (the line is dropped) */
+    private boolean sendDiscoveryLine(String line) {
+        DiscoveryClient client = discovery;
+        return client != null && client.send(line);
+    }
+
+    /** Sent now, or queued until the discovery server is reachable again. */
+    public void sendGlobalMessage(String content) {
+        DiscoveryClient client = discovery;
+        if (client != null)
+            client.sendOrQueue("GLOBAL_MSG " + username + " " + content);
+    }
+
+    /** True while the discovery server is unreachable and the peer list is the last one seen. */
+    public boolean isPeerViewStale() {
+        return peersStale;
+    }
+
     private void listenForPeers() {
         try {
             while (!serverSocket.isClosed()) {
@@ -154,6 +649,7 @@ public class PeerNode {
         pool.execute(() -> {
             try {
                 Socket socket = new Socket(host, port);
+                sessions.remember(remoteUsername, host, port);
                 PeerConnection connection = new PeerConnection(socket, this);
                 connection.initiateHandshake(remoteUsername);
                 activeConnections.put(remoteUsername, connection);
@@ -164,140 +660,943 @@ public class PeerNode {
         });
     }
 
+    /** Sent once the session is up; reconnects first if an idle or dropped connection can be resumed. */
     public void sendMessage(String recipient, String message) {
-        PeerConnection conn = activeConnections.get(recipient);
-        if (conn != null) {
-            conn.send(message);
-        } else {
+        if (!withConnection(recipient, conn -> conn.send(message)))
             System.err.println("No connection to " + recipient);
-        }
     }
 
     public void sendFile(String targetUser, java.io.File file) {
-        PeerConnection conn = activeConnections.get(targetUser);
-        if (conn != null) {
-            conn.sendFile(file);
-        } else {
+        if (!withConnection(targetUser, conn -> conn.sendFile(file)))
             onMessageReceived.accept("System: Not connected to " + targetUser);
+    }
+
+    /**
+     * Runs {@code action} on the connection to {@code user} once its session
+     * key is agreed, resuming the session on a new connection if there is
+     * none. False if there is neither a connection nor a ticket to resume.
+     */
+    private boolean withConnection(String user, Consumer<PeerConnection> action) {
+        PeerConnection conn = activeConnections.get(user);
+        if (conn != null) {
+            conn.whenReady(() -> action.accept(conn));
+            return true;
+        }
+        return reconnect(user, action);
+    }
+
+    /** Resumes the session with {@code user} in the background, then runs {@code action} (if any) on it. */
+    private boolean reconnect(String user, Consumer<PeerConnection> action) {
+        SessionCache.Entry entry;
+        synchronized (reconnecting) {
+            PeerConnection conn = activeConnections.get(user);
+            if (conn != null) {
+                if (action != null)
+                    conn.whenReady(() -> action.accept(conn));
+                return true;
+            }
+            List<Consumer<PeerConnection>> waiting = reconnecting.get(user);
+            if (waiting == null) {
+                entry = sessions.resumable(user);
+                if (entry == null)
+                    return false;
+                waiting = new ArrayList<>();
+                reconnecting.put(user, waiting);
+            } else {
+                entry = null; // Already on its way
+            }
+            if (action != null)
+                waiting.add(action);
+        }
+        if (entry != null)
+            pool.execute(() -> resume(entry));
+        return true;
+    }
+
+    private void resume(SessionCache.Entry entry) {
+        String user = entry.user();
+        PeerConnection connection = null;
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(entry.host(), entry.port()), CONNECT_TIMEOUT_MS);
+            connection = new PeerConnection(socket, this);
+            connection.resumeSession(user, entry.ticket());
+        } catch (Exception e) {
+            System.err.println("Cannot reconnect to " + user + ": " + e.getMessage());
+            connection = null;
+        }
+        List<Consumer<PeerConnection>> waiting;
+        synchronized (reconnecting) {
+            waiting = reconnecting.remove(user);
+            if (connection != null) {
+                // Queued before the connection is visible, so later sends line up behind them
+                for (Consumer<PeerConnection> action : waiting) {
+                    PeerConnection conn = connection;
+                    conn.whenReady(() -> action.accept(conn));
+                }
+                activeConnections.put(user, connection);
+            }
+        }
+        if (connection != null)
+            pool.execute(connection);
+        else if (!waiting.isEmpty())
+            onMessageReceived.accept("System: Not connected to " + user);
+    }
+
+    /** Resumes sessions with the peers we talked to last ({@code -Dp2p.preconnect=N}), where we hold a ticket. */
+    private void preconnect() {
+        for (String user : sessions.recent(Integer.getInteger("p2p.preconnect", 0)))
+            reconnect(user, null);
+    }
+
+    /** Pings quiet connections, closes dead ones and evicts idle ones that can be resumed later. */
+    private void checkConnections() {
+        long now = System.currentTimeMillis();
+        for (PeerConnection connection : activeConnections.values()) {
+            try {
+                connection.checkLiveness(now);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     // Inner class for handling P2P connection
     private static class PeerConnection implements Runnable {
+        // Protocol extensions we offer; -Dp2p.frames=false, -Dp2p.resume=false, -Dp2p.mux=false,
+        // -Dp2p.batch=false or -Dp2p.session=false leaves one out (to try the legacy behaviour against a current peer)
+        private static final String RESUME = "RESUME/1";
+        private static final String STREAMS = "STREAMS/1";
+        // Several resumable transfers at once, their chunks tagged with a stream ID
+        private static final String MUX = "MUX/1";
+        // Chat messages sent together in one encrypted BATCH frame
+        private static final String BATCH = "BATCH/1";
+        // Messages wait up to this long for others to share their frame (0 = never,
+        // the default), or until this many bytes are waiting; -Dp2p.batch.ms, -Dp2p.batch.bytes
+        private static final long BATCH_MS = Long.getLong("p2p.batch.ms", 0);
+        private static final int BATCH_BYTES = Integer.getInteger("p2p.batch.bytes", 16 * 1024);
+        // Consecutive chunks each data stream takes in turn
+        private static final int STRIPE = 16;
+        // Under SESSION, a connection silent this long is pinged, and closed if it stays silent
+        private static final long PING_AFTER_MS = 15_000;
+        private static final long DEAD_AFTER_MS = 45_000;
+        // Connections without chat or transfers for this long are closed, if they can be resumed;
+        // -Dp2p.idleTimeoutSec
+        private static final long IDLE_TIMEOUT_MS = Long.getLong("p2p.idleTimeoutSec", 300) * 1000;
+        // Largest file sent or accepted; -Dp2p.maxFileMb
+        private static final long MAX_FILE_BYTES = Long.getLong("p2p.maxFileMb", 200) * 1024 * 1024;
+        private static final List<String> CAPABILITIES = capabilities();
+
         private final Socket socket;
         private final PeerNode node;
-        private BufferedReader in;
-        private PrintWriter out;
-        private SecretKey sessionKey;
+        // Handshake lines and frames share one buffered stream, written only by
+        // the scheduler. Handshake steps that switch to frames lock on it, so
+        // their last line and the switch cannot be split by another sender.
+        private final DataOutputStream out;
+        private final OutboundScheduler scheduler;
+        private Frames.Reader in;
+        private volatile SecretKey sessionKey;
         private String remoteUser;
 
+        // Extensions both sides offered. Binary frames then start in each
+        // direction at its own point in the handshake: after our last text
+        // line out, and after the peer's last text line in.
+        private volatile Set<String> caps = Collections.emptySet();
+        private volatile boolean framedOut;
+        private boolean framedIn;
+
         // File Transfer State
         private String currentlyReceivingFile;
-        private java.io.FileOutputStream fileOut;
+        private java.nio.channels.FileChannel fileOut;
+        private java.io.File receivingPath; // Where fileOut writes
         private long fileSize;
         private long receivedBytes;
-        private java.io.File pendingFile; // The file waiting to be sent
+        private java.io.File pendingFile; // The file waiting to be sent to a peer that cannot resume
+        // Files offered to a resuming peer and not yet acknowledged, by content ID
+        private final Map<String, Outgoing> outgoing = new ConcurrentHashMap<>();
+        // Resumable downloads in progress, by content ID and (with MUX) by stream;
+        // without MUX there is at most one
+        private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+        private final Map<Integer, Incoming> incomingStreams = new ConcurrentHashMap<>();
+        private final AtomicInteger nextStream = new AtomicInteger();
+        // Credit windows of the transfers we are sending, by content ID
+        private final Map<String, CreditWindow> sendWindows = new ConcurrentHashMap<>();
+        // Decrypts and writes received chunks off the reader thread; created with the first one
+        private volatile ReceivePipeline pipeline;
+        private final Map<Incoming, ReceivePipeline.Sink> sinks = new ConcurrentHashMap<>();
+        private final ReceivePipeline.Sink legacySink = this::writeLegacy;
+        private int reportedPercent = -1; // Last progress reported; written by the pipeline only
+        // True if this is an extra data stream of another connection's transfer
+        private boolean dataStream;
+        // True if a swarm downloader opened this connection to fetch shared files
+        private boolean swarmPeer;
+        // Liveness: when anything last arrived, and when chat or a file command last went either way
+        private volatile long lastHeard = System.currentTimeMillis();
+        private volatile long lastActive = lastHeard;
+        private volatile long lastPing;
+        private final AtomicInteger sending = new AtomicInteger(); // Files being sent
+        // The ticket and nonce of the SESSION_RESUME we sent, until it is answered
+        private SecretKey resumeTicket;
+        private String resumeNonce;
+        // Run in order once the session key is agreed; guarded by itself
+        private final List<Runnable> waiting = new ArrayList<>();
+        private boolean ready;
+        // Messages waiting to go out together, and the cipher for framed commands; guarded by batch
+        private final List<byte[]> batch = new ArrayList<>(); // UTF-8 commands
+        private int batchBytes;
+        private ScheduledFuture<?> batchTimer;
+        private javax.crypto.Cipher commandCipher;
+        private SecretKey commandKey;
+        // Decrypts command frames; used by the reader thread only
+        private javax.crypto.Cipher readCipher;
+        private SecretKey readKey;
+
+        private static List<String> capabilities() {
+            List<String> caps = new ArrayList<>();
+            if (!"false".equals(System.getProperty("p2p.frames"))) {
+                caps.add(Frames.CAPABILITY);
+                if (!"false".equals(System.getProperty("p2p.batch")))
+                    caps.add(BATCH);
+            }
+            if (!"false".equals(System.getProperty("p2p.resume"))) {
+                caps.add(RESUME);
+                caps.add(STREAMS);
+                // Stream IDs and credited chunks travel in frames, so MUX and CREDIT need both
+                if (caps.contains(Frames.CAPABILITY) && !"false".equals(System.getProperty("p2p.mux")))
+                    caps.add(MUX);
+                if (caps.contains(Frames.CAPABILITY) && !"false".equals(System.getProperty("p2p.credit")))
+                    caps.add(CreditWindow.CAPABILITY);
+            }
+            if (!"false".equals(System.getProperty("p2p.session")))
+                caps.add(SessionCache.CAPABILITY);
+            return caps;
+        }
+
+        /**
+         * A file offered to the peer in chunks of {@code chunkSize}, as its
+         * FILE_ACK ranges count them; {@code stream} tags its chunks under MUX, else 0.
+         */
+        private record Outgoing(java.io.File file, int chunkSize, int stream) {
+        }
+
+        /**
+         * A download in progress; {@code nonce} admits extra data streams for
+         * it, and {@code credit} (under CREDIT) paces the sender.
+         */
+        private record Incoming(PartialFile file, String name, int stream, String nonce,
+                CreditWindow.Grants credit) {
+        }
+
+        /** Our extensions that the peer also listed in {@code words[from..]}. */
+        private static Set<String> agreed(String[] words, int from) {
+            Set<String> both = new HashSet<>();
+            for (int i = from; i < words.length; i++) {
+                if (CAPABILITIES.contains(words[i]))
+                    both.add(words[i]);
+            }
+            return both;
+        }
 
-        public PeerConnection(Socket socket, PeerNode node) {
+        private static List<String> concat(String first, List<String> rest) {
+            List<String> all = new ArrayList<>(rest.size() + 1);
+            all.add(first);
+            all.addAll(rest);
+            return all;
+        }
+
+        public PeerConnection(Socket socket, PeerNode node) throws IOException {
             this.socket = socket;
             this.node = node;
+            // Lets the OS notice a peer that vanished, where SESSION pings are not agreed
+            socket.setKeepAlive(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            this.scheduler = new OutboundScheduler(out);
+            scheduler.start(node.pool);
         }
 
         public void initiateHandshake(String remoteUser) {
-            try {
-                this.remoteUser = remoteUser;
-                out = new PrintWriter(socket.getOutputStream(), true);
+            this.remoteUser = remoteUser;
+            // 1. Send Chat Request
+            sendLine("CHAT_REQUEST " + node.username);
+        }
+
+        /** Opens with a session ticket instead of CHAT_REQUEST; see {@link SessionCache}. */
+        void resumeSession(String remoteUser, SecretKey ticket) throws Exception {
+            this.remoteUser = remoteUser;
+            this.resumeTicket = ticket;
+            this.resumeNonce = SessionCache.nonce();
+            // SESSION_RESUME user port nonce proof [extensions we offer]
+            sendLine(String.join(" ", concat(
+                    SessionCache.resumeRequest(ticket, node.username, node.advertisedPort, resumeNonce), CAPABILITIES)));
+        }
 
-                // 1. Send Chat Request
-                out.println("CHAT_REQUEST " + node.username);
+        /** Runs {@code action} once the session key is agreed: now, or as soon as it is. */
+        void whenReady(Runnable action) {
+            synchronized (waiting) {
+                if (!ready) {
+                    waiting.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        /** The session key is agreed: runs what was waiting for it, in order. */
+        private void ready() {
+            synchronized (waiting) {
+                ready = true;
+                for (Runnable action : waiting)
+                    action.run();
+                waiting.clear();
+            }
+        }
+
+        /**
+         * Under SESSION, pings a connection that has gone quiet and closes it
+         * if the silence lasts; closes one left idle if the session can be
+         * resumed when next needed. Runs on the node's timer.
+         */
+        void checkLiveness(long now) {
+            if (!caps.contains(SessionCache.CAPABILITY) || sessionKey == null)
+                return;
+            if (now - lastHeard > DEAD_AFTER_MS) {
+                System.out.println("No answer from " + remoteUser + " for " + (now - lastHeard) / 1000
+                        + " s, closing the connection");
+                closeSocket();
+            } else if (now - lastHeard > PING_AFTER_MS && now - lastPing > PING_AFTER_MS) {
+                lastPing = now;
+                sendEncrypted("PING");
+            } else if (now - lastActive > IDLE_TIMEOUT_MS && isIdle() && node.sessions.resumable(remoteUser) != null) {
+                System.out.println("Closing idle connection to " + remoteUser);
+                node.activeConnections.remove(remoteUser, this);
+                closeSocket();
+            }
+        }
+
+        /** True if no file is on its way in either direction. */
+        private boolean isIdle() {
+            return incoming.isEmpty() && outgoing.isEmpty() && sendWindows.isEmpty() && sending.get() == 0
+                    && fileOut == null && pendingFile == null;
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
             }
         }
 
         public void sendHandshakeInit() {
-            // 2. Send our Public Key (After Accepted)
+            // 2. Send our Public Key (After Accepted), confirming the extensions we share
             try {
                 String pubKeyStr = SecurityUtils.publicKeyToString(node.keyPair.getPublic());
-                out.println("HANDSHAKE_INIT " + node.username + " " + pubKeyStr);
+                synchronized (out) {
+                    StringBuilder line = new StringBuilder("HANDSHAKE_INIT " + node.username + " " + pubKeyStr);
+                    for (String cap : caps)
+                        line.append(' ').append(cap);
+                    sendLine(line.toString());
+                    framedOut = caps.contains(Frames.CAPABILITY);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
+        /**
+         * Under MUX, keeps the kernel buffers small (-Dp2p.mux.bufferKb,
+         * default 256), since chat cannot overtake file data once it is queued
+         * there. Bulk throughput on long paths comes from data streams, which
+         * keep the default buffers.
+         */
+        private void limitSocketBuffers() {
+            if (!caps.contains(MUX))
+                return;
+            int bytes = Integer.getInteger("p2p.mux.bufferKb", 256) * 1024;
+            try {
+                socket.setSendBufferSize(bytes);
+                socket.setReceiveBufferSize(bytes);
+            } catch (SocketException e) {
+                // Keep the defaults
+            }
+        }
+
         public void send(String msg) {
-            sendEncrypted("MESSAGE " + msg);
+            lastActive = System.currentTimeMillis();
+            if (BATCH_MS > 0 && framedOut && caps.contains(BATCH))
+                sendBatched("MESSAGE " + msg);
+            else
+                sendEncrypted("MESSAGE " + msg);
+        }
+
+        private void sendLine(String line) {
+            try {
+                scheduler.interactive(o -> Frames.writeLine(o, line));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void sendFrame(int type, byte[] ciphertext) throws IOException {
+            scheduler.interactive(o -> Frames.write(o, type, Frames.FLAG_ENCRYPTED, ciphertext));
+        }
+
+        /**
+         * Queues file data for {@code stream}, written in its turn behind chat
+         * and commands; {@code written} runs once it is.
+         */
+        private void sendBulk(int stream, int bytes, OutboundScheduler.Write write, Runnable written)
+                throws IOException {
+            try {
+                scheduler.bulk(stream, bytes, write, written);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending");
+            }
+        }
+
+        /** Waits until the file data queued for {@code stream} is written, and ends its turn. */
+        private void finishBulk(int stream) throws IOException {
+            try {
+                scheduler.finish(stream);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending");
+            }
         }
 
         private void sendEncrypted(String message) {
-            if (out != null) {
-                try {
-                    if (sessionKey != null) {
-                        String encrypted = SecurityUtils.encryptAES(message, sessionKey);
-                        out.println("ENC " + encrypted);
-                    } else {
-                        System.err.println("Cannot send encrypted message: Handshake not complete");
+            SecretKey key = sessionKey;
+            if (key == null) {
+                System.err.println("Cannot send encrypted message: Handshake not complete");
+                return;
+            }
+            try {
+                if (framedOut) {
+                    synchronized (batch) {
+                        // Batched messages sent earlier go first
+                        flushBatch();
+                        sendFrame(Frames.COMMAND, encryptCommand(message.getBytes(StandardCharsets.UTF_8), key));
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                } else {
+                    String encrypted = SecurityUtils.encryptAES(message, key);
+                    sendLine("ENC " + encrypted);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Holds {@code command} back for up to {@link #BATCH_MS}, so a burst
+         * of messages goes out as one frame with one encryption.
+         */
+        private void sendBatched(String command) {
+            synchronized (batch) {
+                byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+                batch.add(bytes);
+                batchBytes += bytes.length;
+                if (batchBytes >= BATCH_BYTES) {
+                    flushBatch();
+                } else if (batchTimer == null) {
+                    batchTimer = node.timer.schedule(() -> {
+                        synchronized (batch) {
+                            batchTimer = null;
+                            flushBatch();
+                        }
+                    }, BATCH_MS, TimeUnit.MILLISECONDS);
                 }
             }
         }
 
+        /** Sends what is batched, a single message as a plain command; the caller holds the batch lock. */
+        private void flushBatch() {
+            if (batch.isEmpty())
+                return;
+            if (batchTimer != null) {
+                batchTimer.cancel(false);
+                batchTimer = null;
+            }
+            try {
+                if (batch.size() == 1)
+                    sendFrame(Frames.COMMAND, encryptCommand(batch.get(0), sessionKey));
+                else
+                    sendFrame(Frames.BATCH, encryptCommand(Frames.packBatch(batch), sessionKey));
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+
+        /** Encrypts with one cipher per session key; the caller holds the batch lock. */
+        private byte[] encryptCommand(byte[] plain, SecretKey key) throws Exception {
+            if (commandKey != key) {
+                commandCipher = SecurityUtils.aesCipher(javax.crypto.Cipher.ENCRYPT_MODE, key);
+                commandKey = key;
+            }
+            return commandCipher.doFinal(plain);
+        }
+
+        /** Decrypts a command or batch frame; reader thread only. */
+        private byte[] decryptCommand(byte[] payload, SecretKey key) throws Exception {
+            if (readKey != key) {
+                readCipher = SecurityUtils.aesCipher(javax.crypto.Cipher.DECRYPT_MODE, key);
+                readKey = key;
+            }
+            return readCipher.doFinal(payload);
+        }
+
         public void sendFile(java.io.File file) {
-            if (file.length() > 200 * 1024 * 1024) {
-                node.onMessageReceived.accept("System: File too large (>200MB).");
+            lastActive = System.currentTimeMillis();
+            if (file.length() > MAX_FILE_BYTES) {
+                node.onMessageReceived.accept("System: File too large (>" + MAX_FILE_BYTES / (1024 * 1024) + "MB).");
+                return;
+            }
+            if (!caps.contains(RESUME)) {
+                pendingFile = file;
+                // Send size first to handle spaces in filename correctly
+                // Protocol: FILE_REQ size filename
+                sendEncrypted("FILE_REQ " + file.length() + " " + file.getName());
                 return;
             }
-            pendingFile = file;
-            // Send size first to handle spaces in filename correctly
-            // Protocol: FILE_REQ size filename
-            sendEncrypted("FILE_REQ " + file.length() + " " + file.getName());
+            // Resumable: FILE_REQ size contentId chunkSize [stream, with MUX] filename; hashing can take a while
+            node.pool.execute(() -> {
+                try {
+                    String id = SecurityUtils.sha256Hex(file);
+                    int stream = 0;
+                    if (caps.contains(MUX))
+                        stream = nextStream.incrementAndGet();
+                    else
+                        outgoing.clear(); // One at a time: a new offer replaces the last
+                    int chunkSize = FileSender.configuredChunkSize();
+                    outgoing.put(id, new Outgoing(file, chunkSize, stream));
+                    sendEncrypted("FILE_REQ " + file.length() + " " + id + " " + chunkSize + " "
+                            + (stream > 0 ? stream + " " : "") + file.getName());
+                } catch (IOException e) {
+                    node.onMessageReceived.accept("System: Cannot read " + file.getName() + ".");
+                }
+            });
         }
 
-        private void startFileTransfer(java.io.File file) {
+        /**
+         * Sends the file in chunks of {@code chunkSize}; {@code chunks} are the
+         * indexes a resuming peer lacks, or null for a legacy peer. A nonzero {@code stream} tags each chunk
+         * so it can share the connection with other transfers, and a
+         * {@code window} holds chunks back until the peer credits earlier ones.
+         */
+        private void startFileTransfer(java.io.File file, int chunkSize, BitSet chunks, String endLine, int stream,
+                CreditWindow window) {
+            sending.incrementAndGet();
             node.pool.execute(() -> {
-                try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
-                    byte[] buffer = new byte[4096]; // 4KB chunks
-                    int bytesRead;
-                    long totalSent = 0;
-                    long totalSize = file.length();
-
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        byte[] chunk = bytesRead == buffer.length ? buffer : java.util.Arrays.copyOf(buffer, bytesRead);
-                        // Encrypt and Encode
-                        String base64Chunk = Base64.getEncoder().encodeToString(chunk);
-                        sendEncrypted("FILE_CHUNK " + base64Chunk);
-
-                        totalSent += bytesRead;
-                        int pct = (int) ((totalSent * 100) / totalSize);
-                        // Optional: Feedback to sender about progress?
-                        // Maybe local UI update? For now, we just send.
-                        // node.onFileProgress.accept("Me->"+remoteUser, pct);
-
-                        Thread.sleep(5); // Throttle slightly to not flood socket
+                // Chunks go out as STREAM_CHUNK or FILE_CHUNK frames, or as Base64 ENC lines to legacy peers
+                FileSender sender = new FileSender(file, chunkSize, chunks, sessionKey, framedOut, node.pool,
+                        (data, length, frame, more, written) -> {
+                            if (window != null) {
+                                try {
+                                    window.acquire(length);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    throw new InterruptedIOException("Interrupted while waiting for credit");
+                                }
+                            }
+                            if (stream > 0)
+                                sendBulk(stream, length, o -> Frames.writeStream(o, stream, data, length), written);
+                            else if (frame)
+                                sendBulk(0, length,
+                                        o -> Frames.write(o, Frames.FILE_CHUNK, Frames.FLAG_ENCRYPTED, data, length),
+                                        written);
+                            else
+                                sendBulk(0, length, o -> o.write(data, 0, length), written);
+                        });
+                try {
+                    sender.send();
+                    // FILE_END would overtake chunks still queued
+                    finishBulk(stream);
+                    sendEncrypted(endLine);
+                    node.onMessageReceived.accept("System: File sent successfully.");
+                    if (window != null)
+                        System.out.println("Sent " + file.getName() + ": " + window.stats());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    node.onMessageReceived.accept("System: File send failed.");
+                    try {
+                        finishBulk(stream);
+                    } catch (IOException ignored) {
+                        // Already reported
                     }
-                    sendEncrypted("FILE_END " + file.getName());
+                } finally {
+                    if (window != null)
+                        sendWindows.values().remove(window);
+                    sending.decrementAndGet();
+                    lastActive = System.currentTimeMillis();
+                }
+            });
+        }
+
+        /**
+         * Sends the missing chunks over {@code streams} extra connections to
+         * the peer's listening port, each taking every n-th stripe, then
+         * FILE_END here once all of them are written.
+         */
+        private void startStripedTransfer(java.io.File file, int chunkSize, BitSet chunks, int streams, int port,
+                String nonce, String id) {
+            sending.incrementAndGet();
+            node.pool.execute(() -> {
+                List<BitSet> parts = FileSender.stripe(chunks, streams, STRIPE);
+                List<Future<?>> senders = new ArrayList<>();
+                for (int i = 0; i < streams; i++) {
+                    int index = i;
+                    senders.add(node.pool.submit(() -> {
+                        sendDataStream(file, chunkSize, parts.get(index), port, id, nonce, index);
+                        return null;
+                    }));
+                }
+                try {
+                    for (Future<?> sender : senders)
+                        sender.get();
+                    sendEncrypted("FILE_END " + id);
                     node.onMessageReceived.accept("System: File sent successfully.");
                 } catch (Exception e) {
+                    for (Future<?> sender : senders)
+                        sender.cancel(true);
                     e.printStackTrace();
                     node.onMessageReceived.accept("System: File send failed.");
+                } finally {
+                    sending.decrementAndGet();
+                    lastActive = System.currentTimeMillis();
                 }
             });
         }
 
+        private void sendDataStream(java.io.File file, int chunkSize, BitSet chunks, int port, String id, String nonce,
+                int index) throws Exception {
+            try (Socket stream = new Socket(socket.getInetAddress(), port)) {
+                DataOutputStream streamOut = new DataOutputStream(
+                        new BufferedOutputStream(stream.getOutputStream(), 64 * 1024));
+                // DATA_STREAM user contentId index hmac(sessionKey, "contentId nonce index")
+                byte[] mac = SecurityUtils.hmacSha256(sessionKey.getEncoded(), id + " " + nonce + " " + index);
+                Frames.writeLine(streamOut, "DATA_STREAM " + node.username + " " + id + " " + index + " "
+                        + Base64.getEncoder().encodeToString(mac));
+                new FileSender(file, chunkSize, chunks, sessionKey, true, node.pool,
+                        (data, length, frame, more, written) -> {
+                            Frames.write(streamOut, Frames.FILE_CHUNK, Frames.FLAG_ENCRYPTED, data, length);
+                            written.run();
+                            if (!more)
+                                streamOut.flush();
+                        }).send();
+                streamOut.flush();
+                stream.shutdownOutput();
+                // Wait for the receiver to close, so nothing is cut off in flight
+                stream.getInputStream().read();
+            }
+        }
+
+        /** Answers a swarm downloader; only files we share are served. */
+        private void serveSwarm(String cmdLine) throws Exception {
+            // GET_MANIFEST id -> MANIFEST ... | GET_CHUNKS id ranges -> FILE_CHUNK frames, CHUNKS_DONE id
+            String[] parts = cmdLine.split(" ");
+            SharedFile file = parts.length >= 2 ? node.shared.get(parts[1]) : null;
+            if (file == null) {
+                sendEncrypted("NOT_FOUND " + (parts.length >= 2 ? parts[1] : "-"));
+            } else if (parts[0].equals("GET_MANIFEST")) {
+                sendEncrypted(file.manifest().encode());
+            } else if (parts[0].equals("GET_CHUNKS") && parts.length == 3) {
+                BitSet chunks = PartialFile.decodeRanges(parts[2], file.manifest().chunks());
+                // On the reader thread, so batches go out in the order they were asked for
+                try {
+                    new FileSender(file.file(), file.manifest().chunkSize(), chunks, sessionKey, true, node.pool,
+                            (data, length, frame, more, written) -> sendBulk(0, length,
+                                    o -> Frames.write(o, Frames.FILE_CHUNK, Frames.FLAG_ENCRYPTED, data, length),
+                                    written))
+                            .send();
+                    finishBulk(0);
+                } catch (IOException e) {
+                    // The downloader got these chunks elsewhere and hung up
+                    socket.close();
+                    return;
+                }
+                sendEncrypted("CHUNKS_DONE " + parts[1]);
+            }
+        }
+
+        /**
+         * Answers a SESSION_RESUME: if it proves it holds our ticket for that
+         * user, the session continues with a new key and no prompt; if not,
+         * the peer is told to start over with CHAT_REQUEST.
+         */
+        private void resumeSession(String[] resume) throws Exception {
+            // SESSION_RESUME user port nonce proof [extensions the peer offers]
+            SecretKey ticket = null;
+            if (resume.length >= 5 && CAPABILITIES.contains(SessionCache.CAPABILITY))
+                ticket = node.sessions.redeem(resume[1], Integer.parseInt(resume[2]), resume[3], resume[4]);
+            if (ticket == null) {
+                sendLine("SESSION_UNKNOWN");
+                return;
+            }
+            remoteUser = resume[1];
+            node.sessions.remember(remoteUser, socket.getInetAddress().getHostAddress(), Integer.parseInt(resume[2]));
+            caps = agreed(resume, 5);
+            limitSocketBuffers();
+            boolean frames = caps.contains(Frames.CAPABILITY);
+            String nonce = SessionCache.nonce();
+            SecretKey key = SessionCache.derive(ticket, resume[3], nonce);
+            synchronized (out) {
+                // Our last text line; the request was the peer's
+                sendLine(String.join(" ", concat("SESSION_RESUMED " + nonce, new ArrayList<>(caps))));
+                framedOut = frames;
+                this.sessionKey = key;
+            }
+            framedIn = frames;
+            node.sessions.issue(remoteUser, key);
+            PeerConnection old = node.activeConnections.put(remoteUser, this);
+            if (old != null && old != this)
+                old.closeSocket(); // The peer has given up on it
+            ready();
+        }
+
+        /**
+         * Accepts an extra connection for the download in progress on
+         * {@code user}'s connection, if it proves it holds that session key.
+         */
+        private void acceptDataStream(String[] hello) throws Exception {
+            // DATA_STREAM user contentId index hmac
+            PeerConnection control = hello.length == 5 ? node.activeConnections.get(hello[1]) : null;
+            Incoming download = control == null ? null : control.incoming.get(hello[2]);
+            boolean valid = false;
+            if (download != null && download.nonce() != null && control.sessionKey != null) {
+                byte[] expected = SecurityUtils.hmacSha256(control.sessionKey.getEncoded(),
+                        hello[2] + " " + download.nonce() + " " + hello[3]);
+                valid = java.security.MessageDigest.isEqual(expected, Base64.getDecoder().decode(hello[4]));
+            }
+            if (!valid) {
+                System.err.println("Rejected data stream from " + socket.getRemoteSocketAddress());
+                socket.close();
+                return;
+            }
+            dataStream = true;
+            remoteUser = hello[1];
+            incoming.put(hello[2], download);
+            sessionKey = control.sessionKey;
+            framedIn = true;
+        }
+
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                if (out == null)
-                    out = new PrintWriter(socket.getOutputStream(), true);
-
-                String line;
-                while ((line = in.readLine()) != null) {
-                    handleMessage(line);
+                in = new Frames.Reader(socket.getInputStream());
+                while (true) {
+                    if (framedIn) {
+                        Frames.Frame frame = in.readFrame();
+                        if (frame == null)
+                            break;
+                        lastHeard = System.currentTimeMillis();
+                        handleFrame(frame);
+                    } else {
+                        String line = in.readLine();
+                        if (line == null)
+                            break;
+                        lastHeard = System.currentTimeMillis();
+                        handleMessage(line);
+                    }
                 }
             } catch (IOException e) {
+                if (!socket.isClosed())
+                    e.printStackTrace();
+            } finally {
+                scheduler.close();
+                for (CreditWindow window : sendWindows.values())
+                    window.fail(new IOException("Connection closed"));
+                ReceivePipeline chunks = pipeline;
+                if (chunks != null) {
+                    try {
+                        // Whatever arrived still goes to disk
+                        chunks.close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (dataStream) {
+                    closeSocket();
+                } else {
+                    closeIncoming();
+                }
+                if (!dataStream && !swarmPeer && remoteUser != null) {
+                    closeSocket();
+                    node.activeConnections.remove(remoteUser, this);
+                    node.sessions.touch(remoteUser, lastActive);
+                    boolean dropped;
+                    synchronized (waiting) {
+                        dropped = !waiting.isEmpty();
+                        waiting.clear();
+                    }
+                    if (dropped)
+                        node.onMessageReceived.accept("System: Not connected to " + remoteUser);
+                }
+            }
+        }
+
+        /** Keeps what arrived of the unfinished downloads for the next attempt. */
+        private void closeIncoming() {
+            for (Incoming download : incoming.values())
+                closeIncoming(download);
+        }
+
+        private void closeIncoming(Incoming download) {
+            if (forget(download))
+                keepPartial(download);
+        }
+
+        /** Stops routing chunks to {@code download}; false if that was already done. */
+        private boolean forget(Incoming download) {
+            if (download == null || !incoming.remove(download.file().contentId(), download))
+                return false;
+            if (download.stream() > 0)
+                incomingStreams.remove(download.stream(), download);
+            sinks.remove(download);
+            return true;
+        }
+
+        /** Waits for the chunks already queued, then closes the part file for a later attempt. */
+        private void keepPartial(Incoming download) {
+            try {
+                drainPipeline();
+                download.file().close();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Stops the download that lost a chunk, so its sender fails now instead
+         * of waiting for credit that will not come: FILE_DENY on this
+         * connection, or a closed data stream. Runs on the pipeline.
+         */
+        private void chunkFailed(ReceivePipeline.Sink sink, Exception error) {
+            error.printStackTrace();
+            Incoming download = null;
+            for (Map.Entry<Incoming, ReceivePipeline.Sink> entry : sinks.entrySet()) {
+                if (entry.getValue() == sink)
+                    download = entry.getKey();
+            }
+            // Legacy transfers are not paced by credit; their gap shows when the file is opened
+            if (!forget(download))
+                return;
+            if (dataStream) {
+                // The part file is shared with the control connection, which keeps it
+                closeSocket();
+                return;
+            }
+            sendEncrypted("FILE_DENY " + download.file().contentId());
+            node.onFileProgress.accept(remoteUser, -1);
+            node.onMessageReceived.accept("System: File " + download.name() + " failed: " + error.getMessage());
+            // Draining waits for this stage, so it cannot happen here
+            Incoming stopped = download;
+            node.pool.execute(() -> keepPartial(stopped));
+        }
+
+        /** Queues a received chunk for {@code download}, or for the legacy file if null. */
+        private void receive(Incoming download, int wireBytes, ReceivePipeline.Decoder decoder)
+                throws InterruptedException {
+            ReceivePipeline chunks = pipeline;
+            if (chunks == null)
+                pipeline = chunks = new ReceivePipeline(sessionKey, node.pool, this::sendCredits,
+                        this::chunkFailed);
+            ReceivePipeline.Sink sink = download == null ? legacySink : sinks.computeIfAbsent(download, this::sinkFor);
+            chunks.submit(sink, wireBytes, decoder);
+        }
+
+        /** Waits until the chunks received so far are written. */
+        private void drainPipeline() throws InterruptedException {
+            ReceivePipeline chunks = pipeline;
+            if (chunks != null)
+                chunks.drain();
+        }
+
+        /** Writes [offset:8][data] chunks into the download and credits them; runs on the pipeline. */
+        private ReceivePipeline.Sink sinkFor(Incoming download) {
+            return (chunks, wireBytes) -> {
+                PartialFile file = download.file();
+                long start = System.nanoTime();
+                for (ByteBuffer chunk : chunks)
+                    file.write(chunk.getLong(), chunk);
+                // Data streams are paced by TCP alone; only chunks on this connection are credited
+                if (download.credit() != null && !dataStream
+                        && download.credit().persisted(wireBytes, System.nanoTime() - start))
+                    sendCredits();
+                reportProgress((int) (file.received() * 100 / Math.max(1, file.size())));
+            };
+        }
+
+        /** Appends chunks of a legacy transfer; runs on the pipeline. */
+        private void writeLegacy(List<ByteBuffer> chunks, int wireBytes) throws IOException {
+            java.nio.channels.FileChannel file = fileOut;
+            if (file == null)
+                return;
+            for (ByteBuffer chunk : chunks) {
+                receivedBytes += chunk.remaining();
+                while (chunk.hasRemaining())
+                    file.write(chunk);
+            }
+            reportProgress((int) (receivedBytes * 100 / Math.max(1, fileSize)));
+        }
+
+        /** Passes progress on only when the percentage changes. */
+        private void reportProgress(int percent) {
+            if (percent != reportedPercent) {
+                reportedPercent = percent;
+                node.onFileProgress.accept(remoteUser, percent);
+            }
+        }
+
+        /** Sends what each download owes the sender in CREDIT. */
+        private void sendCredits() {
+            if (dataStream)
+                return;
+            for (Incoming download : incoming.values()) {
+                String line = download.credit() == null ? null : download.credit().take(download.file().contentId());
+                if (line != null)
+                    sendEncrypted(line);
+            }
+        }
+
+        /** The download a plain FILE_CHUNK belongs to: the only one, as there is no stream ID. */
+        private Incoming onlyIncoming() {
+            for (Incoming download : incoming.values())
+                return download;
+            return null;
+        }
+
+        private void handleFrame(Frames.Frame frame) {
+            try {
+                SecretKey key = sessionKey;
+                if (key == null || (frame.flags() & Frames.FLAG_ENCRYPTED) == 0) {
+                    System.err.println("Dropping unencrypted or early frame of type " + frame.type());
+                    return;
+                }
+                if (dataStream && frame.type() != Frames.FILE_CHUNK)
+                    return;
+                byte[] payload = frame.payload();
+                // Chunks are decrypted on the pipeline, commands here
+                switch (frame.type()) {
+                    case Frames.COMMAND -> handleCommand(new String(decryptCommand(payload, key), StandardCharsets.UTF_8));
+                    case Frames.BATCH -> {
+                        for (String command : Frames.unpackBatch(decryptCommand(payload, key)))
+                            handleCommand(command);
+                    }
+                    case Frames.STREAM_CHUNK -> {
+                        // [stream:4] then the encrypted [offset:8][data]
+                        Incoming download = incomingStreams.get(ByteBuffer.wrap(payload, 0, 4).getInt());
+                        if (download != null) // Else a transfer we gave up on
+                            receive(download, payload.length - 4,
+                                    cipher -> ByteBuffer.wrap(cipher.doFinal(payload, 4, payload.length - 4)));
+                    }
+                    // [offset:8][data] for a resumable download, else raw data
+                    case Frames.FILE_CHUNK -> receive(onlyIncoming(), payload.length,
+                            cipher -> ByteBuffer.wrap(cipher.doFinal(payload)));
+                    default -> System.err.println("Ignoring unknown frame type " + frame.type());
+                }
+            } catch (Exception e) {
                 e.printStackTrace();
             }
         }
@@ -313,134 +1612,361 @@ public class PeerNode {
                     String cipherText = line.substring(4);
                     cmdLine = SecurityUtils.decryptAES(cipherText, sessionKey);
                 }
+                handleCommand(cmdLine);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
 
-                String[] parts = cmdLine.split(" ", 3); // Split into type, arg1, arg2...
-                String type = parts[0];
+        private void handleCommand(String cmdLine) throws Exception {
+            String[] parts = cmdLine.split(" ", 3); // Split into type, arg1, arg2...
+            String type = parts[0];
 
-                if ("CHAT_REQUEST".equals(type)) {
-                    String requestor = parts[1];
-                    this.remoteUser = requestor;
-                    node.activeConnections.put(requestor, this);
+            if (!type.equals("PING") && !type.equals("PONG") && !type.equals("CREDIT"))
+                lastActive = System.currentTimeMillis();
 
-                    Consumer<Boolean> decision = accepted -> {
-                        if (accepted) {
-                            out.println("CHAT_ACCEPT");
-                        } else {
-                            out.println("CHAT_DENY");
-                            try {
-                                socket.close();
-                            } catch (IOException e) {
-                            }
-                            node.activeConnections.remove(requestor);
+            if (swarmPeer) {
+                serveSwarm(cmdLine);
+            } else if ("DATA_STREAM".equals(type) && remoteUser == null) {
+                acceptDataStream(cmdLine.split(" "));
+            } else if ("SWARM_HELLO".equals(type) && remoteUser == null && parts.length == 3) {
+                // SWARM_HELLO user publicKey: a session key for this connection only, no chat
+                SecretKey key = SecurityUtils.generateAESKey();
+                PublicKey otherPubKey = java.security.KeyFactory.getInstance("RSA")
+                        .generatePublic(new java.security.spec.X509EncodedKeySpec(
+                                Base64.getDecoder().decode(parts[2])));
+                byte[] encryptedSessionKey = Threads
+                        .compute(() -> SecurityUtils.encryptRSA(key.getEncoded(), otherPubKey));
+                remoteUser = parts[1];
+                swarmPeer = true;
+                synchronized (out) {
+                    sendLine("SWARM_KEY " + Base64.getEncoder().encodeToString(encryptedSessionKey));
+                    framedOut = true;
+                    this.sessionKey = key;
+                }
+                framedIn = true;
+            } else if ("SESSION_RESUME".equals(type) && remoteUser == null) {
+                resumeSession(cmdLine.split(" "));
+            } else if ("SESSION_RESUMED".equals(type) && resumeTicket != null) {
+                // SESSION_RESUMED nonce [extensions we offered that the peer has too]
+                String[] resumed = cmdLine.split(" ");
+                caps = agreed(resumed, 2);
+                limitSocketBuffers();
+                SecretKey key = SessionCache.derive(resumeTicket, resumeNonce, resumed[1]);
+                resumeTicket = null;
+                boolean frames = caps.contains(Frames.CAPABILITY);
+                // The peer's last text line; ours was SESSION_RESUME
+                framedOut = frames;
+                framedIn = frames;
+                this.sessionKey = key;
+                node.sessions.issue(remoteUser, key);
+                ready();
+            } else if ("SESSION_UNKNOWN".equals(type) && resumeTicket != null) {
+                // The peer lost or rejected the ticket: ask again the long way
+                resumeTicket = null;
+                node.sessions.forget(remoteUser);
+                initiateHandshake(remoteUser);
+            } else if ("SESSION_PORT".equals(type) && parts.length == 2) {
+                // Where the peer that dialed us listens, so we can reconnect to it later
+                node.sessions.remember(remoteUser, socket.getInetAddress().getHostAddress(),
+                        Integer.parseInt(parts[1]));
+            } else if ("PING".equals(type)) {
+                sendEncrypted("PONG");
+            } else if ("PONG".equals(type)) {
+                // Counted as heard by the reader
+            } else if ("CHAT_REQUEST".equals(type)) {
+                String requestor = parts[1];
+                this.remoteUser = requestor;
+                node.activeConnections.put(requestor, this);
+
+                Consumer<Boolean> decision = accepted -> {
+                    if (accepted) {
+                        // Old peers ignore anything after CHAT_ACCEPT
+                        sendLine(String.join(" ", concat("CHAT_ACCEPT", CAPABILITIES)));
+                    } else {
+                        sendLine("CHAT_DENY");
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
                         }
-                    };
-                    node.onChatRequest.accept(requestor, decision);
+                        node.activeConnections.remove(requestor);
+                    }
+                };
+                node.onChatRequest.accept(requestor, decision);
+
+            } else if ("CHAT_ACCEPT".equals(type)) {
+                caps = agreed(cmdLine.split(" "), 1);
+                limitSocketBuffers();
+                sendHandshakeInit();
+                // We assume it's true, handshake will follow
+                node.onChatFeedback.accept(remoteUser, true);
 
-                } else if ("CHAT_ACCEPT".equals(type)) {
-                    sendHandshakeInit();
-                    // We assume it's true, handshake will follow
-                    node.onChatFeedback.accept(remoteUser, true);
+            } else if ("CHAT_DENY".equals(type)) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+                node.activeConnections.remove(remoteUser);
+                node.onChatFeedback.accept(remoteUser, false);
+
+            } else if ("HANDSHAKE_INIT".equals(type)) {
+                // HANDSHAKE_INIT [user] [pubKey] [extensions we offered that the peer has too]
+                String[] init = cmdLine.split(" ");
+                String otherUser = init[1];
+                String otherPubKeyStr = init[2];
+                caps = agreed(init, 3);
+                limitSocketBuffers();
+                boolean frames = caps.contains(Frames.CAPABILITY);
+                this.remoteUser = otherUser;
+                node.activeConnections.put(otherUser, this);
+
+                SecretKey key = SecurityUtils.generateAESKey();
+                PublicKey otherPubKey = java.security.KeyFactory.getInstance("RSA")
+                        .generatePublic(new java.security.spec.X509EncodedKeySpec(
+                                Base64.getDecoder().decode(otherPubKeyStr)));
+
+                byte[] encryptedSessionKey = Threads
+                        .compute(() -> SecurityUtils.encryptRSA(key.getEncoded(), otherPubKey));
+                String encryptedSessionKeyStr = Base64.getEncoder().encodeToString(encryptedSessionKey);
+
+                synchronized (out) {
+                    // Our last text line; nothing encrypted may overtake it
+                    sendLine("HANDSHAKE_RESPONSE " + node.username + " " + encryptedSessionKeyStr);
+                    framedOut = frames;
+                    this.sessionKey = key;
+                }
+                framedIn = frames;
+                if (caps.contains(SessionCache.CAPABILITY))
+                    node.sessions.issue(otherUser, key);
+                ready();
 
-                } else if ("CHAT_DENY".equals(type)) {
+            } else if ("HANDSHAKE_RESPONSE".equals(type)) {
+                String otherUser = parts[1];
+                String encryptedSessionKeyStr = parts[2];
+                byte[] encryptedSessionKey = Base64.getDecoder().decode(encryptedSessionKeyStr);
+                byte[] sessionKeyBytes = Threads
+                        .compute(() -> SecurityUtils.decryptRSA(encryptedSessionKey, node.keyPair.getPrivate()));
+                this.sessionKey = new javax.crypto.spec.SecretKeySpec(sessionKeyBytes, "AES");
+                // The peer's last text line
+                framedIn = framedOut;
+                if (caps.contains(SessionCache.CAPABILITY)) {
+                    node.sessions.issue(remoteUser, sessionKey);
+                    sendEncrypted("SESSION_PORT " + node.advertisedPort);
+                }
+                ready();
+            } else if ("MESSAGE".equals(type)) {
+                // Logic fixed: parts[1] only captured the first word if the message had spaces.
+                // We need the whole content after "MESSAGE ".
+                if (parts.length >= 2) {
+                    String msgContent = cmdLine.substring(cmdLine.indexOf(' ') + 1);
+                    node.onMessageReceived.accept(remoteUser + ": " + msgContent);
+                }
+            } else if ("FILE_REQ".equals(type) && caps.contains(RESUME)) {
+                // FILE_REQ size contentId chunkSize [stream, with MUX] filename
+                boolean mux = caps.contains(MUX);
+                String[] req = cmdLine.split(" ", mux ? 6 : 5);
+                long size = Long.parseLong(req[1]);
+                String id = req[2];
+                int chunkSize = Integer.parseInt(req[3]);
+                int stream = mux ? Integer.parseInt(req[4]) : 0;
+                String filename = new java.io.File(req[mux ? 5 : 4]).getName();
+                // Checked before anything is allocated: the size is preallocated and sets the bitmap
+                if (size < 0 || size > MAX_FILE_BYTES || chunkSize < FileSender.MIN_CHUNK_SIZE
+                        || chunkSize > FileSender.MAX_CHUNK_SIZE) {
+                    System.err.println("Refused FILE_REQ of " + size + " bytes in chunks of " + chunkSize);
+                    sendEncrypted("FILE_DENY " + filename);
+                    return;
+                }
+                java.io.File have = node.store.lookup(id);
+                if (have != null) {
+                    // Same bytes arrived before, maybe from someone else under another name
+                    sendEncrypted("FILE_HAVE " + id);
+                    node.onMessageReceived.accept("System: Already have " + filename + " as " + have.getName() + ".");
+                    return;
+                }
+                node.onFileRequest.accept(remoteUser + ":" + filename + ":" + size, (accepted) -> {
+                    if (!accepted) {
+                        sendEncrypted("FILE_DENY " + filename);
+                        return;
+                    }
                     try {
-                        socket.close();
+                        // A repeated offer restarts that download; without MUX any other one stops too
+                        if (mux)
+                            closeIncoming(incoming.get(id));
+                        else
+                            closeIncoming();
+                        PartialFile file = PartialFile.open(node.store.partial(id), id, size, chunkSize);
+                        if (file.received() > 0)
+                            node.onMessageReceived.accept("System: Resuming " + filename + " at "
+                                    + file.received() * 100 / Math.max(1, size) + "%.");
+                        // FILE_ACK contentId missingRanges [port nonce, for extra data streams]
+                        String ack = "FILE_ACK " + id + " " + PartialFile.encodeRanges(file.missing());
+                        String streamNonce = null;
+                        if (caps.contains(STREAMS)) {
+                            byte[] nonce = new byte[16];
+                            new java.security.SecureRandom().nextBytes(nonce);
+                            streamNonce = Base64.getEncoder().encodeToString(nonce);
+                            ack += " " + node.advertisedPort + " " + streamNonce;
+                        }
+                        CreditWindow.Grants credit = caps.contains(CreditWindow.CAPABILITY)
+                                ? new CreditWindow.Grants(chunkSize)
+                                : null;
+                        Incoming download = new Incoming(file, filename, stream, streamNonce, credit);
+                        incoming.put(id, download);
+                        if (stream > 0)
+                            incomingStreams.put(stream, download);
+                        sendEncrypted(ack);
                     } catch (IOException e) {
+                        e.printStackTrace();
+                        sendEncrypted("FILE_DENY " + filename);
                     }
-                    node.activeConnections.remove(remoteUser);
-                    node.onChatFeedback.accept(remoteUser, false);
-
-                } else if ("HANDSHAKE_INIT".equals(type)) {
-                    // HANDSHAKE_INIT [user] [pubKey]
-                    String otherUser = parts[1];
-                    String otherPubKeyStr = parts[2];
-                    this.remoteUser = otherUser;
-                    node.activeConnections.put(otherUser, this);
-
-                    this.sessionKey = SecurityUtils.generateAESKey();
-                    PublicKey otherPubKey = java.security.KeyFactory.getInstance("RSA")
-                            .generatePublic(new java.security.spec.X509EncodedKeySpec(
-                                    Base64.getDecoder().decode(otherPubKeyStr)));
-
-                    byte[] encryptedSessionKey = SecurityUtils.encryptRSA(sessionKey.getEncoded(), otherPubKey);
-                    String encryptedSessionKeyStr = Base64.getEncoder().encodeToString(encryptedSessionKey);
-
-                    out.println("HANDSHAKE_RESPONSE " + node.username + " " + encryptedSessionKeyStr);
-
-                } else if ("HANDSHAKE_RESPONSE".equals(type)) {
-                    String otherUser = parts[1];
-                    String encryptedSessionKeyStr = parts[2];
-                    byte[] encryptedSessionKey = Base64.getDecoder().decode(encryptedSessionKeyStr);
-                    byte[] sessionKeyBytes = SecurityUtils.decryptRSA(encryptedSessionKey, node.keyPair.getPrivate());
-                    this.sessionKey = new javax.crypto.spec.SecretKeySpec(sessionKeyBytes, "AES");
-                } else if ("MESSAGE".equals(type)) {
-                    // Logic fixed: parts[1] only captured the first word if the message had spaces.
-                    // We need the whole content after "MESSAGE ".
-                    if (parts.length >= 2) {
-                        String msgContent = cmdLine.substring(cmdLine.indexOf(' ') + 1);
-                        node.onMessageReceived.accept(remoteUser + ": " + msgContent);
-                    }
-                } else if ("FILE_REQ".equals(type)) {
-                    // Protocol Update: FILE_REQ size filename
-                    // This avoids issues with spaces in filenames.
-                    if (parts.length >= 3) {
-                        try {
-                            System.out.println("DEBUG: Received FILE_REQ " + cmdLine);
-                            long size = Long.parseLong(parts[1]);
-                            // Filename is everything after the size
-                            // cmdLine is "FILE_REQ size filename"
-                            // We can find the second space.
-                            int firstSpace = cmdLine.indexOf(' ');
-                            int secondSpace = cmdLine.indexOf(' ', firstSpace + 1);
-                            String filename = cmdLine.substring(secondSpace + 1);
-
-                            node.onFileRequest.accept(remoteUser + ":" + filename + ":" + size, (accepted) -> {
-                                if (accepted) {
-                                    sendEncrypted("FILE_ACK " + filename);
-                                    try {
-                                        currentlyReceivingFile = filename;
-                                        fileSize = size;
-                                        receivedBytes = 0;
-                                        fileOut = new java.io.FileOutputStream("download_" + filename);
-                                    } catch (Exception e) {
-                                        e.printStackTrace();
-                                    }
-                                } else {
-                                    sendEncrypted("FILE_DENY " + filename);
+                });
+            } else if ("FILE_REQ".equals(type)) {
+                // Protocol Update: FILE_REQ size filename
+                // This avoids issues with spaces in filenames.
+                if (parts.length >= 3) {
+                    try {
+                        System.out.println("DEBUG: Received FILE_REQ " + cmdLine);
+                        long size = Long.parseLong(parts[1]);
+                        // Filename is everything after the size
+                        // cmdLine is "FILE_REQ size filename"
+                        // We can find the second space.
+                        int firstSpace = cmdLine.indexOf(' ');
+                        int secondSpace = cmdLine.indexOf(' ', firstSpace + 1);
+                        String filename = new java.io.File(cmdLine.substring(secondSpace + 1)).getName();
+
+                        node.onFileRequest.accept(remoteUser + ":" + filename + ":" + size, (accepted) -> {
+                            if (accepted) {
+                                sendEncrypted("FILE_ACK " + filename);
+                                try {
+                                    currentlyReceivingFile = filename;
+                                    fileSize = size;
+                                    receivedBytes = 0;
+                                    receivingPath = node.store.reserve(filename);
+                                    fileOut = java.nio.channels.FileChannel.open(receivingPath.toPath(),
+                                            java.nio.file.StandardOpenOption.WRITE);
+                                } catch (Exception e) {
+                                    e.printStackTrace();
                                 }
-                            });
-                        } catch (NumberFormatException e) {
-                            System.err.println("Invalid file size in FILE_REQ");
-                        }
+                            } else {
+                                sendEncrypted("FILE_DENY " + filename);
+                            }
+                        });
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid file size in FILE_REQ");
                     }
+                }
 
-                } else if ("FILE_ACK".equals(type)) {
-                    // FILE_ACK filename
-                    // extract full filename
-                    String filename = cmdLine.substring(9); // "FILE_ACK ".length()
-                    if (pendingFile != null && pendingFile.getName().equals(filename)) {
-                        startFileTransfer(pendingFile);
-                        pendingFile = null;
-                        // node.onMessageReceived.accept("System: User accepted file.");
+            } else if ("FILE_ACK".equals(type) && caps.contains(RESUME)) {
+                // FILE_ACK contentId missingRanges
+                String[] ack = cmdLine.split(" ");
+                Outgoing offer = ack.length >= 3 ? outgoing.remove(ack[1]) : null;
+                if (offer != null) {
+                    java.io.File file = offer.file();
+                    // The ranges count chunks of the size we offered
+                    int chunkSize = offer.chunkSize();
+                    int chunks = (int) ((file.length() + chunkSize - 1) / chunkSize);
+                    int streams = FileSender.configuredStreams();
+                    BitSet missing = PartialFile.decodeRanges(ack[2], chunks);
+                    if (ack.length == 5 && streams > 1 && framedOut) {
+                        startStripedTransfer(file, chunkSize, missing, streams, Integer.parseInt(ack[3]), ack[4],
+                                ack[1]);
+                    } else {
+                        CreditWindow window = null;
+                        if (caps.contains(CreditWindow.CAPABILITY)) {
+                            window = new CreditWindow(chunkSize);
+                            sendWindows.put(ack[1], window);
+                        }
+                        startFileTransfer(file, chunkSize, missing, "FILE_END " + ack[1], offer.stream(), window);
                     }
-                } else if ("FILE_CHUNK".equals(type)) {
-                    if (fileOut != null) {
-                        byte[] data = Base64.getDecoder().decode(parts[1]);
-                        fileOut.write(data);
-                        receivedBytes += data.length;
-                        int pct = (int) ((receivedBytes * 100) / fileSize);
-                        node.onFileProgress.accept(remoteUser, pct);
+                }
+            } else if ("FILE_HAVE".equals(type) && parts.length == 2 && outgoing.containsKey(parts[1])) {
+                // FILE_HAVE contentId: the peer already has these bytes
+                Outgoing offer = outgoing.remove(parts[1]);
+                node.onMessageReceived.accept("System: " + remoteUser + " already has "
+                        + (offer != null ? offer.file().getName() : "the file") + ".");
+            } else if ("FILE_DENY".equals(type) && parts.length == 2 && sendWindows.containsKey(parts[1])) {
+                // FILE_DENY contentId: the receiver stopped a transfer in progress
+                CreditWindow window = sendWindows.get(parts[1]);
+                if (window != null)
+                    window.fail(new IOException("Receiver stopped the transfer"));
+            } else if ("CREDIT".equals(type)) {
+                // CREDIT contentId persisted window
+                String[] credit = cmdLine.split(" ");
+                CreditWindow window = credit.length == 4 ? sendWindows.get(credit[1]) : null;
+                if (window != null)
+                    window.grant(Long.parseLong(credit[2]), Long.parseLong(credit[3]));
+            } else if ("FILE_ACK".equals(type)) {
+                // FILE_ACK filename
+                // extract full filename
+                String filename = cmdLine.substring(9); // "FILE_ACK ".length()
+                if (pendingFile != null && pendingFile.getName().equals(filename)) {
+                    startFileTransfer(pendingFile, FileSender.configuredChunkSize(), null, "FILE_END " + filename, 0,
+                            null);
+                    pendingFile = null;
+                    // node.onMessageReceived.accept("System: User accepted file.");
+                }
+            } else if ("FILE_CHUNK".equals(type)) {
+                // FILE_CHUNK offset base64 for a resumable download, else FILE_CHUNK base64
+                Incoming download = onlyIncoming();
+                if (download != null) {
+                    long offset = Long.parseLong(parts[1]);
+                    String data = parts[2];
+                    receive(download, data.length(), cipher -> {
+                        byte[] bytes = Base64.getDecoder().decode(data);
+                        return ByteBuffer.allocate(8 + bytes.length).putLong(offset).put(bytes).flip();
+                    });
+                } else {
+                    String data = parts[1];
+                    receive(null, data.length(), cipher -> ByteBuffer.wrap(Base64.getDecoder().decode(data)));
+                }
+            } else if ("FILE_END".equals(type) && parts.length == 2 && incoming.containsKey(parts[1])) {
+                // FILE_END contentId
+                Incoming download = incoming.remove(parts[1]);
+                if (download.stream() > 0)
+                    incomingStreams.remove(download.stream(), download);
+                sinks.remove(download);
+                PartialFile file = download.file();
+                // Verifying reads the whole file back; chat on this connection must not wait for it
+                node.pool.execute(() -> {
+                    try {
+                        // Data streams may still be delivering their last chunks
+                        file.awaitComplete(10_000);
+                        java.io.File saved = node.store.add(file.contentId(), download.name(), file.finish());
+                        node.onFileProgress.accept(remoteUser, -1);
+                        node.onMessageReceived.accept("System: File " + download.name() + " received.");
+                        System.out.println("Saved " + saved);
+                    } catch (IOException | InterruptedException e) {
+                        try {
+                            file.close();
+                        } catch (IOException ignored) {
+                        }
+                        node.onFileProgress.accept(remoteUser, -1);
+                        node.onMessageReceived.accept("System: File " + download.name() + " failed: "
+                                + e.getMessage());
                     }
-                } else if ("FILE_END".equals(type)) {
-                    if (fileOut != null) {
-                        fileOut.close();
-                        fileOut = null;
-                        String filename = cmdLine.substring(9); // "FILE_END ".length()
+                });
+            } else if ("FILE_END".equals(type)) {
+                if (fileOut != null) {
+                    // The last chunks may still be on their way to disk; then sync once
+                    drainPipeline();
+                    fileOut.force(true);
+                    fileOut.close();
+                    fileOut = null;
+                    String filename = cmdLine.substring(9); // "FILE_END ".length()
+                    java.io.File received = receivingPath;
+                    // Legacy peers send no hash; index it so a later offer of the same bytes is skipped.
+                    // Hashing reads the whole file back, so chat must not wait for it.
+                    node.pool.execute(() -> {
+                        try {
+                            node.store.add(SecurityUtils.sha256Hex(received), filename, received);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
                         node.onFileProgress.accept(remoteUser, -1);
                         node.onMessageReceived.accept("System: File " + filename + " received.");
-                    }
+                    });
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
         }
     }
@@ -0,0 +1,237 @@
+package p2p.net;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Versioned peer table for {@link DiscoveryServer}.
+ * <p>
+ * Every membership change (join, address/port change, leave) bumps the
+ * version and is pushed to subscribers as a PEER_JOIN / PEER_UPDATE /
+ * PEER_LEAVE line. The overflow policy never drops these; a subscriber too
+ * slow for them is disconnected instead. The most recent deltas are kept so
+ * a client that resubscribes with the version it last saw only receives
+ * what it missed; anything older (or from a previous server run, identified
+ * by the epoch) gets a full snapshot. Heartbeats only touch lastSeen and produce no delta.
+ * <p>
+ * A sorted index of usernames backs paged listing and search. Keys are
+ * "lowercase\0original" so ordering and prefix search are case-insensitive
+ * while distinct spellings stay distinct.
+ */
+final class PeerRegistry {
+    private static final int DELTA_LOG_SIZE = 4096;
+    // Replays larger than this are sent as a snapshot instead.
+    private static final int MAX_REPLAY = 512;
+
+    private final ConcurrentHashMap<String, DiscoveryServer.PeerInfo> peers = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<>();
+    // When each entry was last refreshed by a client of this node (not by gossip)
+    private final ConcurrentHashMap<String, Long> localTouches = new ConcurrentHashMap<>();
+    private RegistryJournal journal;
+    private final Set<DiscoveryServer.Client> subscribers = ConcurrentHashMap.newKeySet();
+    private final String epoch = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+
+    // Ring of encoded delta frames; deltaLog[v % size] holds version v.
+    private final ByteBuffer[] deltaLog = new ByteBuffer[DELTA_LOG_SIZE];
+    private long version;
+
+    /** Starts recording changes; call once, after any restore. */
+    void setJournal(RegistryJournal journal) {
+        this.journal = journal;
+    }
+
+    DiscoveryServer.PeerInfo get(String username) {
+        return peers.get(username);
+    }
+
+    Collection<DiscoveryServer.PeerInfo> all() {
+        return peers.values();
+    }
+
+    int size() {
+        return peers.size();
+    }
+
+    /** Adds or replaces a registration, emitting a delta if membership changed. */
+    synchronized void register(DiscoveryServer.PeerInfo info) {
+        localTouches.put(info.username(), info.lastSeen());
+        apply(info);
+    }
+
+    /**
+     * Merges an entry gossiped by another node, keeping whichever copy was
+     * seen last. Returns true if the local table changed.
+     */
+    synchronized boolean merge(DiscoveryServer.PeerInfo remote) {
+        DiscoveryServer.PeerInfo old = peers.get(remote.username());
+        if (old != null && old.lastSeen() >= remote.lastSeen())
+            return false;
+        apply(remote);
+        return true;
+    }
+
+    /**
+     * Bulk-loads entries recovered from disk before any client connects. No
+     * deltas are published: there are no subscribers yet, and new subscribers
+     * get a snapshot because the epoch changed.
+     */
+    synchronized void restore(Collection<DiscoveryServer.PeerInfo> entries) {
+        for (DiscoveryServer.PeerInfo info : entries) {
+            if (peers.put(info.username(), info) == null)
+                index.add(indexKey(info.username()));
+        }
+    }
+
+    private void apply(DiscoveryServer.PeerInfo info) {
+        DiscoveryServer.PeerInfo old = peers.put(info.username(), info);
+        if (journal != null)
+            journal.put(info);
+        if (old == null) {
+            index.add(indexKey(info.username()));
+            publish("PEER_JOIN", format(info));
+        } else if (!old.address().equals(info.address()) || old.port() != info.port()) {
+            publish("PEER_UPDATE", format(info));
+        }
+    }
+
+    /** Refreshes lastSeen. Returns the updated entry, or null if unknown. */
+    DiscoveryServer.PeerInfo touch(String username, long now) {
+        DiscoveryServer.PeerInfo info = peers.computeIfPresent(username,
+                (k, old) -> new DiscoveryServer.PeerInfo(old.username(), old.address(), old.port(),
+                        Math.max(old.lastSeen(), now)));
+        if (info != null) {
+            localTouches.put(username, now);
+            if (journal != null)
+                journal.touch(username, info.lastSeen());
+        }
+        return info;
+    }
+
+    /** Entries refreshed by this node's own clients at or after {@code since}. */
+    List<DiscoveryServer.PeerInfo> touchedSince(long since) {
+        List<DiscoveryServer.PeerInfo> result = new ArrayList<>();
+        for (Map.Entry<String, Long> e : localTouches.entrySet()) {
+            if (e.getValue() >= since) {
+                DiscoveryServer.PeerInfo info = peers.get(e.getKey());
+                if (info != null)
+                    result.add(info);
+            }
+        }
+        return result;
+    }
+
+    /** Removes an entry only if it has not been seen since {@code cutoff}. */
+    synchronized boolean removeIfStale(String username, long cutoff) {
+        DiscoveryServer.PeerInfo info = peers.get(username);
+        if (info == null || info.lastSeen() > cutoff)
+            return false;
+        return remove(username);
+    }
+
+    synchronized boolean remove(String username) {
+        if (peers.remove(username) == null)
+            return false;
+        index.remove(indexKey(username));
+        localTouches.remove(username);
+        if (journal != null)
+            journal.remove(username);
+        publish("PEER_LEAVE", username);
+        return true;
+    }
+
+    /**
+     * Starts pushing deltas to a client. If the client's epoch matches and its
+     * version is still covered by the delta log it gets only the missed deltas
+     * followed by PEERS_SYNCED, otherwise a PEERS_SNAPSHOT. A replay that
+     * would be larger than the table itself is also answered with a snapshot.
+     */
+    synchronized void subscribe(DiscoveryServer.Client client, String clientEpoch, long clientVersion) {
+        subscribers.add(client);
+
+        long oldest = Math.max(1, version - DELTA_LOG_SIZE + 1);
+        long missed = version - clientVersion;
+        if (epoch.equals(clientEpoch) && missed >= 0 && clientVersion + 1 >= oldest
+                && missed <= Math.min(MAX_REPLAY, peers.size())) {
+            for (long v = clientVersion + 1; v <= version; v++) {
+                client.enqueue(deltaLog[(int) (v % DELTA_LOG_SIZE)], false);
+            }
+            client.send("PEERS_SYNCED " + epoch + " " + version);
+        } else {
+            client.send("PEERS_SNAPSHOT " + epoch + " " + version + " " + list());
+        }
+    }
+
+    void unsubscribe(DiscoveryServer.Client client) {
+        subscribers.remove(client);
+    }
+
+    /** Comma separated user:address:port list, as used by PEERS replies. */
+    String list() {
+        StringBuilder peerList = new StringBuilder();
+        for (DiscoveryServer.PeerInfo info : peers.values()) {
+            peerList.append(format(info)).append(",");
+        }
+        if (peerList.length() > 0)
+            peerList.setLength(peerList.length() - 1);
+        return peerList.toString();
+    }
+
+    /**
+     * Returns up to {@code limit} peers in username order, starting after
+     * {@code cursor} (a username from a previous page, or null for the first).
+     */
+    List<DiscoveryServer.PeerInfo> page(String cursor, int limit) {
+        NavigableSet<String> tail = cursor == null ? index : index.tailSet(indexKey(cursor), false);
+        return collect(tail, limit, null);
+    }
+
+    /** Peers whose username starts with {@code prefix}, ignoring case. */
+    List<DiscoveryServer.PeerInfo> searchPrefix(String prefix, int limit) {
+        String from = prefix.toLowerCase(Locale.ROOT);
+        return collect(index.subSet(from, true, from + Character.MAX_VALUE, false), limit, null);
+    }
+
+    /**
+     * Peers whose username contains {@code text}, ignoring case. This walks the
+     * index in order and stops at {@code limit}, so a rare match in a large
+     * registry costs a full scan.
+     */
+    List<DiscoveryServer.PeerInfo> searchContains(String text, int limit) {
+        return collect(index, limit, text.toLowerCase(Locale.ROOT));
+    }
+
+    private List<DiscoveryServer.PeerInfo> collect(Set<String> keys, int limit, String mustContain) {
+        List<DiscoveryServer.PeerInfo> result = new ArrayList<>(Math.min(limit, 64));
+        for (String key : keys) {
+            if (result.size() >= limit)
+                break;
+            int sep = key.indexOf('\0');
+            if (mustContain != null && !key.substring(0, sep).contains(mustContain))
+                continue;
+            DiscoveryServer.PeerInfo info = peers.get(key.substring(sep + 1));
+            if (info != null)
+                result.add(info);
+        }
+        return result;
+    }
+
+    private static String indexKey(String username) {
+        return username.toLowerCase(Locale.ROOT) + "\0" + username;
+    }
+
+    static String format(DiscoveryServer.PeerInfo info) {
+        return info.username() + ":" + info.address() + ":" + info.port();
+    }
+
+    private void publish(String type, String body) {
+        version++;
+        ByteBuffer frame = Outbox.encode(type + " " + version + " " + body);
+        deltaLog[(int) (version % DELTA_LOG_SIZE)] = frame;
+        // A lost delta would leave the subscriber's table wrong until the next one
+        for (DiscoveryServer.Client client : subscribers) {
+            client.enqueue(frame, false);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package p2p.net;
+
+import p2p.security.SecurityUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Takes received file chunks off a connection's reader thread, as a
+ * three-stage pipeline so socket reads, decryption and disk writes overlap:
+ * <pre>
+ * read (caller's thread) -> decode (one cached Cipher) -> write (batches)
+ * </pre>
+ * The decode and write stages run on the I/O pool, and each chunk is
+ * decrypted through {@link Threads#compute}. The stages are joined by
+ * bounded queues, so the reader blocks, and TCP pushes back on the sender,
+ * only once {@link #DEPTH} chunks wait in each.
+ * The writer takes whatever chunks are ready at once and hands each run of
+ * chunks for the same {@link Sink} over in one call. Chunks are written in
+ * the order they were submitted; commands the reader handles meanwhile may
+ * overtake them, so anything that needs the data on disk first calls
+ * {@link #drain}. A chunk that cannot be decoded or stored is reported with
+ * its sink, so that transfer can be stopped at once.
+ */
+final class ReceivePipeline {
+    /** Chunks each stage may hold. */
+    private static final int DEPTH = 8;
+
+    /** Turns a received payload into chunk bytes; runs on the decode stage. */
+    interface Decoder {
+        ByteBuffer decode(Cipher cipher) throws Exception;
+    }
+
+    /** Stores a run of decoded chunks that took {@code wireBytes} on the wire; runs on the write stage. */
+    interface Sink {
+        void write(List<ByteBuffer> chunks, int wireBytes) throws IOException;
+    }
+
+    private record Job(Sink sink, Decoder decoder, int wireBytes) {
+    }
+
+    /** Told which sink lost a chunk; runs on the write stage. */
+    interface Failure {
+        void failed(Sink sink, Exception error);
+    }
+
+    private record Decoded(Sink sink, ByteBuffer data, int wireBytes, Exception error) {
+    }
+
+    private static final Job END = new Job(null, null, 0);
+    private static final Decoded DONE = new Decoded(null, null, 0, null);
+
+    private final SecretKey key;
+    private final ExecutorService pool;
+    private final Runnable idle;
+    private final Failure failure;
+    private final BlockingQueue<Job> received = new ArrayBlockingQueue<>(DEPTH);
+    private final BlockingQueue<Decoded> decoded = new ArrayBlockingQueue<>(DEPTH);
+    // Guarded by this
+    private boolean started;
+    private boolean closed;
+    private long pending; // Submitted, not yet written
+
+    /**
+     * {@code idle} runs on the write stage whenever it has written everything
+     * submitted so far, and {@code failure} whenever a chunk is lost.
+     */
+    ReceivePipeline(SecretKey key, ExecutorService pool, Runnable idle, Failure failure) {
+        this.key = key;
+        this.pool = pool;
+        this.idle = idle;
+        this.failure = failure;
+    }
+
+    /** Queues one chunk for {@code sink}; blocks while the decode stage is full. */
+    void submit(Sink sink, int wireBytes, Decoder decoder) throws InterruptedException {
+        synchronized (this) {
+            if (closed)
+                return;
+            if (!started) {
+                started = true;
+                pool.execute(this::decodeStage);
+                pool.execute(this::writeStage);
+            }
+            pending++;
+        }
+        received.put(new Job(sink, decoder, wireBytes));
+    }
+
+    /** Waits until every chunk submitted so far has been written (or failed). */
+    synchronized void drain() throws InterruptedException {
+        while (pending > 0)
+            wait();
+    }
+
+    /** Writes what is queued, then stops both stages. */
+    void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (!started)
+                return;
+        }
+        received.put(END);
+        drain();
+    }
+
+    private void decodeStage() {
+        Cipher cipher = null;
+        try {
+            cipher = SecurityUtils.aesCipher(Cipher.DECRYPT_MODE, key);
+        } catch (Exception e) {
+            // Every chunk then fails to decode, and still counts as handled
+            e.printStackTrace();
+        }
+        try {
+            while (true) {
+                Job job = received.take();
+                if (job == END)
+                    break;
+                ByteBuffer data = null;
+                Exception error = null;
+                Cipher decrypt = cipher;
+                try {
+                    data = Threads.compute(() -> job.decoder().decode(decrypt));
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // A damaged chunk; the write stage reports it in order
+                    error = e;
+                }
+                decoded.put(new Decoded(job.sink(), data, job.wireBytes(), error));
+            }
+            decoded.put(DONE);
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    private void writeStage() {
+        List<Decoded> batch = new ArrayList<>(DEPTH);
+        List<ByteBuffer> run = new ArrayList<>(DEPTH);
+        try {
+            while (true) {
+                batch.add(decoded.take());
+                decoded.drainTo(batch);
+                boolean done = batch.get(batch.size() - 1) == DONE;
+                if (done)
+                    batch.remove(batch.size() - 1);
+                for (int i = 0; i < batch.size();) {
+                    Sink sink = batch.get(i).sink();
+                    int wireBytes = 0;
+                    int from = i;
+                    Exception error = null;
+                    run.clear();
+                    for (; i < batch.size() && batch.get(i).sink() == sink; i++) {
+                        if (batch.get(i).data() != null) {
+                            run.add(batch.get(i).data());
+                            wireBytes += batch.get(i).wireBytes();
+                        } else if (error == null) {
+                            error = batch.get(i).error();
+                        }
+                    }
+                    try {
+                        if (!run.isEmpty())
+                            sink.write(run, wireBytes);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    if (error != null)
+                        failure.failed(sink, error);
+                    written(i - from);
+                }
+                batch.clear();
+                if (done)
+                    break;
+                if (isIdle())
+                    idle.run();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    private synchronized boolean isIdle() {
+        return pending == 0;
+    }
+
+    private synchronized void written(int chunks) {
+        pending -= chunks;
+        notifyAll();
+    }
+}
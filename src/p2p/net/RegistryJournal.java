@@ -0,0 +1,227 @@
+package p2p.net;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the discovery registry as a snapshot plus an append-only log.
+ * <p>
+ * Registry changes are handed to a single writer thread, so the request path
+ * never touches the disk. Joins and removals are logged in order; heartbeats
+ * are coalesced per user and written once per flush. Every flush also logs
+ * the current time, which tells {@link #load} when the server stopped. The
+ * writer compacts the log into a fresh snapshot every
+ * {@link #SNAPSHOT_INTERVAL_MS} or {@link #SNAPSHOT_EVERY_RECORDS} records.
+ * <p>
+ * Both files are plain {@link DataOutputStream} records; a torn record at
+ * the end of the log (crash mid-write) is ignored on load.
+ */
+final class RegistryJournal {
+    private static final int SNAPSHOT_MAGIC = 0x50325052; // "P2PR"
+    private static final int FORMAT_VERSION = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_TOUCH = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_CLOCK = 4;
+
+    private static final long FLUSH_INTERVAL_MS = 1_000;
+    private static final long SNAPSHOT_INTERVAL_MS = 60_000;
+    private static final long SNAPSHOT_EVERY_RECORDS = 200_000;
+
+    /** Contents recovered from disk and the time they were last written. */
+    record Restored(Collection<DiscoveryServer.PeerInfo> entries, long lastWrite) {
+    }
+
+    private record Change(byte op, DiscoveryServer.PeerInfo info, String username) {
+    }
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<String, Long> pendingTouches = new ConcurrentHashMap<>();
+    private PeerRegistry registry;
+    private DataOutputStream log;
+    private long recordsSinceSnapshot;
+    private long lastSnapshot;
+
+    RegistryJournal(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.snapshotFile = dir.resolve("registry.snap");
+        this.logFile = dir.resolve("registry.log");
+    }
+
+    // ---- Recovery ----
+
+    /** Reads the snapshot and replays the log on top of it. */
+    Restored load() throws IOException {
+        Map<String, DiscoveryServer.PeerInfo> table = new HashMap<>();
+        long lastWrite = 0;
+
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION)
+                    throw new IOException("Unrecognised registry snapshot " + snapshotFile);
+                lastWrite = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    DiscoveryServer.PeerInfo info = readInfo(in);
+                    table.put(info.username(), info);
+                }
+            }
+        }
+
+        if (Files.exists(logFile)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(logFile), 1 << 16))) {
+                while (true) {
+                    int op = in.read();
+                    if (op < 0)
+                        break;
+                    if (op == OP_PUT) {
+                        DiscoveryServer.PeerInfo info = readInfo(in);
+                        table.put(info.username(), info);
+                    } else if (op == OP_TOUCH) {
+                        String user = in.readUTF();
+                        long seen = in.readLong();
+                        table.computeIfPresent(user, (k, old) -> old.lastSeen() >= seen ? old
+                                : new DiscoveryServer.PeerInfo(old.username(), old.address(), old.port(), seen));
+                    } else if (op == OP_REMOVE) {
+                        table.remove(in.readUTF());
+                    } else if (op == OP_CLOCK) {
+                        lastWrite = Math.max(lastWrite, in.readLong());
+                    } else {
+                        System.err.println("Registry log corrupt at unknown op " + op + "; ignoring the rest");
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                // Torn final record from a crash mid-write
+            }
+        }
+        return new Restored(table.values(), lastWrite);
+    }
+
+    private static DiscoveryServer.PeerInfo readInfo(DataInputStream in) throws IOException {
+        return new DiscoveryServer.PeerInfo(in.readUTF(), in.readUTF(), in.readInt(), in.readLong());
+    }
+
+    private static void writeInfo(DataOutputStream out, DiscoveryServer.PeerInfo info) throws IOException {
+        out.writeUTF(info.username());
+        out.writeUTF(info.address());
+        out.writeInt(info.port());
+        out.writeLong(info.lastSeen());
+    }
+
+    // ---- Recording (any thread) ----
+
+    void put(DiscoveryServer.PeerInfo info) {
+        changes.add(new Change(OP_PUT, info, info.username()));
+    }
+
+    void touch(String username, long lastSeen) {
+        pendingTouches.merge(username, lastSeen, Math::max);
+    }
+
+    void remove(String username) {
+        changes.add(new Change(OP_REMOVE, null, username));
+    }
+
+    // ---- Writer thread ----
+
+    /**
+     * Compacts whatever is on disk into a fresh snapshot of {@code registry}
+     * and starts the writer thread.
+     */
+    void start(PeerRegistry registry) throws IOException {
+        this.registry = registry;
+        writeSnapshot();
+
+        Thread writer = new Thread(this::writeLoop, "registry-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        List<Change> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Change first = changes.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    changes.drainTo(batch);
+                }
+                for (Change change : batch) {
+                    log.writeByte(change.op);
+                    if (change.op == OP_PUT) {
+                        writeInfo(log, change.info);
+                    } else {
+                        log.writeUTF(change.username);
+                    }
+                }
+                recordsSinceSnapshot += batch.size();
+                batch.clear();
+
+                for (String user : pendingTouches.keySet()) {
+                    Long seen = pendingTouches.remove(user);
+                    if (seen != null) {
+                        log.writeByte(OP_TOUCH);
+                        log.writeUTF(user);
+                        log.writeLong(seen);
+                        recordsSinceSnapshot++;
+                    }
+                }
+                log.writeByte(OP_CLOCK);
+                log.writeLong(System.currentTimeMillis());
+                log.flush();
+
+                if (recordsSinceSnapshot >= SNAPSHOT_EVERY_RECORDS
+                        || System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL_MS) {
+                    writeSnapshot();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Registry journal write failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the live table to a temp file, renames it over the snapshot and
+     * starts an empty log. Changes racing with the iteration are also queued
+     * for the new log, and replaying them over the snapshot is idempotent.
+     */
+    private void writeSnapshot() throws IOException {
+        long now = System.currentTimeMillis();
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        List<DiscoveryServer.PeerInfo> entries = new ArrayList<>(registry.all());
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(now);
+            out.writeInt(entries.size());
+            for (DiscoveryServer.PeerInfo info : entries) {
+                writeInfo(out, info);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (log != null)
+            log.close();
+        log = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(logFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE),
+                1 << 16));
+        recordsSinceSnapshot = 0;
+        lastSnapshot = now;
+    }
+}
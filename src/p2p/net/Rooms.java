@@ -0,0 +1,81 @@
+package p2p.net;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Chat rooms on one discovery node: room -> local members, plus each
+ * client's rooms so a disconnect only touches the rooms it was in. A room
+ * exists while it has members, and posting to it costs work proportional to
+ * its membership only.
+ */
+final class Rooms {
+    static final int MAX_ROOMS_PER_CLIENT = 32;
+    private static final Pattern NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    private final ConcurrentHashMap<String, Set<DiscoveryServer.Client>> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<DiscoveryServer.Client, Set<String>> joined = new ConcurrentHashMap<>();
+
+    /** Lower-cased room name, or null if it is not a valid one. */
+    static String normalize(String room) {
+        String name = room.toLowerCase(Locale.ROOT);
+        return NAME.matcher(name).matches() ? name : null;
+    }
+
+    /** @return false if the client is already in too many rooms */
+    boolean join(DiscoveryServer.Client client, String room) {
+        Set<String> rooms = joined.computeIfAbsent(client, c -> ConcurrentHashMap.newKeySet());
+        if (!rooms.contains(room) && rooms.size() >= MAX_ROOMS_PER_CLIENT)
+            return false;
+        rooms.add(room);
+        members.compute(room, (k, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            set.add(client);
+            return set;
+        });
+        return true;
+    }
+
+    void leave(DiscoveryServer.Client client, String room) {
+        Set<String> rooms = joined.get(client);
+        if (rooms != null)
+            rooms.remove(room);
+        removeMember(client, room);
+    }
+
+    void leaveAll(DiscoveryServer.Client client) {
+        Set<String> rooms = joined.remove(client);
+        if (rooms == null)
+            return;
+        for (String room : rooms) {
+            removeMember(client, room);
+        }
+    }
+
+    boolean isMember(DiscoveryServer.Client client, String room) {
+        Set<DiscoveryServer.Client> set = members.get(room);
+        return set != null && set.contains(client);
+    }
+
+    /** Current local members of {@code room}; empty if nobody here is in it. */
+    Set<DiscoveryServer.Client> members(String room) {
+        Set<DiscoveryServer.Client> set = members.get(room);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    int count() {
+        return members.size();
+    }
+
+    private void removeMember(DiscoveryServer.Client client, String room) {
+        // Drop the room with its last member, atomically with respect to join()
+        members.computeIfPresent(room, (k, set) -> {
+            set.remove(client);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
@@ -0,0 +1,91 @@
+package p2p.net;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Checks that {@link OutboundScheduler} shares a connection between bulk
+ * streams by bytes, not by chunks.
+ * <p>
+ * Two writers send as fast as the scheduler takes their chunks, one in 1 MB
+ * chunks and one in 64 KB chunks, over a simulated link of fixed speed. Each
+ * should get about half of the bytes; the check fails if either gets more
+ * than {@code --max-ratio} times the other.
+ * <p>
+ * Usage: SchedulerFairnessCheck [--seconds 3] [--link-mbps 200]
+ * [--max-ratio 1.25]
+ */
+public class SchedulerFairnessCheck {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = 3;
+        int linkMbps = 200;
+        double maxRatio = 1.25;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--link-mbps" -> linkMbps = Integer.parseInt(args[++i]);
+                case "--max-ratio" -> maxRatio = Double.parseDouble(args[++i]);
+                default -> System.err.println("Ignoring unknown option: " + args[i]);
+            }
+        }
+
+        double nanosPerByte = 8_000.0 / linkMbps;
+        OutputStream link = new OutputStream() {
+            @Override
+            public void write(int b) {
+                LockSupport.parkNanos((long) nanosPerByte);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                LockSupport.parkNanos((long) (len * nanosPerByte));
+            }
+        };
+        ExecutorService pool = Executors.newCachedThreadPool();
+        OutboundScheduler scheduler = new OutboundScheduler(new DataOutputStream(link));
+        scheduler.start(pool);
+
+        int[] chunkSizes = { 1024 * 1024, 64 * 1024 };
+        AtomicLong[] sent = { new AtomicLong(), new AtomicLong() };
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int s = 0; s < chunkSizes.length; s++) {
+            int stream = s + 1;
+            byte[] chunk = new byte[chunkSizes[s]];
+            AtomicLong bytes = sent[s];
+            pool.execute(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        scheduler.bulk(stream, chunk.length, o -> {
+                            o.write(chunk, 0, chunk.length);
+                            bytes.addAndGet(chunk.length);
+                        }, () -> {
+                        });
+                    }
+                    scheduler.finish(stream);
+                } catch (Exception e) {
+                    // The scheduler was closed
+                }
+            });
+        }
+        Thread.sleep(seconds * 1000L);
+        scheduler.close();
+        pool.shutdownNow();
+
+        long large = sent[0].get();
+        long small = sent[1].get();
+        double ratio = (double) Math.max(large, small) / Math.max(1, Math.min(large, small));
+        System.out.printf("1 MB chunks: %.1f MB, 64 KB chunks: %.1f MB, ratio %.2f%n", large / 1048576.0,
+                small / 1048576.0, ratio);
+        if (ratio <= maxRatio) {
+            System.out.println("SUCCESS: streams shared the link by bytes");
+        } else {
+            System.err.println("FAILURE: streams did not share the link by bytes");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package p2p.net;
+
+import p2p.security.SecurityUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Peers we have chatted with, so a dropped or idle-closed connection can
+ * come back without a new CHAT_REQUEST and RSA handshake.
+ * <p>
+ * When both peers offer {@link #CAPABILITY}, each keeps the session key of
+ * their last connection as a ticket, valid for {@link #TICKET_LIFETIME_MS}.
+ * Either side may then open a new connection with
+ *
+ * <pre>
+ * SESSION_RESUME user port nonce proof
+ * </pre>
+ *
+ * where {@code proof} is an HMAC of the rest under the ticket. The other side
+ * redeems its ticket (once; a replayed line finds none), answers
+ * {@code SESSION_RESUMED nonce extensions..} and both derive the new session
+ * key from the ticket and the two nonces ({@link #derive}). That key becomes
+ * the next ticket. If the ticket is unknown the answer is
+ * {@code SESSION_UNKNOWN} and the caller falls back to the full handshake.
+ * <p>
+ * With {@code -Dp2p.sessions=file} the cache survives restarts, so
+ * {@code -Dp2p.preconnect=N} can reconnect to the N peers we talked to last
+ * as soon as the node starts. The file holds session keys and is written
+ * readable by its owner only; one line per peer:
+ *
+ * <pre>
+ * user host port lastUsedMillis expiresMillis key
+ * </pre>
+ */
+final class SessionCache {
+    /** Token offered in CHAT_ACCEPT and HANDSHAKE_INIT; also enables PING/PONG. */
+    static final String CAPABILITY = "SESSION/1";
+    static final long TICKET_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+    private static final String HEADER = "P2PSESSIONS 1";
+
+    /** What we know of one peer; {@code host} is null until we know where it listens. */
+    record Entry(String user, String host, int port, long lastUsed, long expires, SecretKey ticket) {
+        boolean resumable(long now) {
+            return host != null && ticket != null && expires > now;
+        }
+    }
+
+    private final Path file;
+    // Guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    SessionCache(Path file) {
+        this.file = file;
+    }
+
+    /** The cache from {@code -Dp2p.sessions=file}, or one kept in memory only. */
+    static SessionCache configured() {
+        String path = System.getProperty("p2p.sessions");
+        return new SessionCache(path == null || path.isEmpty() ? null : Path.of(path));
+    }
+
+    /** Reads the file, dropping expired tickets. */
+    synchronized void open() throws IOException {
+        if (file == null || !Files.exists(file))
+            return;
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER))
+            return;
+        long now = System.currentTimeMillis();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(" ");
+            try {
+                if (parts.length != 6)
+                    continue;
+                long expires = Long.parseLong(parts[4]);
+                SecretKey ticket = parts[5].equals("-") || expires <= now ? null
+                        : SecurityUtils.stringToSecretKey(parts[5]);
+                entries.put(parts[0], new Entry(parts[0], parts[1].equals("-") ? null : parts[1],
+                        Integer.parseInt(parts[2]), Long.parseLong(parts[3]), expires, ticket));
+            } catch (IllegalArgumentException e) {
+                // Skip the damaged line
+            }
+        }
+    }
+
+    /** Records where {@code user} accepts connections. */
+    synchronized void remember(String user, String host, int port) {
+        Entry old = entries.get(user);
+        entries.put(user, old == null ? new Entry(user, host, port, System.currentTimeMillis(), 0, null)
+                : new Entry(user, host, port, old.lastUsed(), old.expires(), old.ticket()));
+        save();
+    }
+
+    /** Keeps {@code key}, the session key just agreed with {@code user}, as their next ticket. */
+    synchronized void issue(String user, SecretKey key) {
+        Entry old = entries.get(user);
+        long now = System.currentTimeMillis();
+        entries.put(user, new Entry(user, old == null ? null : old.host(), old == null ? 0 : old.port(), now,
+                now + TICKET_LIFETIME_MS, key));
+        save();
+    }
+
+    /** Marks {@code user} as talked to at {@code millis}, for {@link #recent}. */
+    synchronized void touch(String user, long millis) {
+        Entry old = entries.get(user);
+        if (old != null && millis > old.lastUsed()) {
+            entries.put(user, new Entry(user, old.host(), old.port(), millis, old.expires(), old.ticket()));
+            save();
+        }
+    }
+
+    /** The entry for {@code user} if we could resume a session with them now; else null. */
+    synchronized Entry resumable(String user) {
+        Entry entry = entries.get(user);
+        return entry != null && entry.resumable(System.currentTimeMillis()) ? entry : null;
+    }
+
+    /**
+     * Checks a SESSION_RESUME from {@code user} and uses up the ticket if the
+     * proof holds.
+     *
+     * @return the ticket, or null if we hold none that matches
+     */
+    synchronized SecretKey redeem(String user, int port, String nonce, String proof) {
+        Entry entry = entries.get(user);
+        if (entry == null || entry.ticket() == null || entry.expires() <= System.currentTimeMillis())
+            return null;
+        try {
+            byte[] expected = SecurityUtils.hmacSha256(entry.ticket().getEncoded(), resumeLine(user, port, nonce));
+            if (!MessageDigest.isEqual(expected, Base64.getDecoder().decode(proof)))
+                return null;
+        } catch (Exception e) {
+            return null;
+        }
+        entries.put(user, new Entry(user, entry.host(), entry.port(), entry.lastUsed(), 0, null));
+        save();
+        return entry.ticket();
+    }
+
+    /** Drops {@code user}'s ticket, e.g. after the peer did not recognise it. */
+    synchronized void forget(String user) {
+        Entry old = entries.get(user);
+        if (old != null && old.ticket() != null) {
+            entries.put(user, new Entry(user, old.host(), old.port(), old.lastUsed(), 0, null));
+            save();
+        }
+    }
+
+    /** Up to {@code limit} users we could resume with, most recently used first. */
+    synchronized List<String> recent(int limit) {
+        long now = System.currentTimeMillis();
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.resumable(now))
+                candidates.add(entry);
+        }
+        candidates.sort(Comparator.comparingLong(Entry::lastUsed).reversed());
+        List<String> users = new ArrayList<>();
+        for (Entry entry : candidates.subList(0, Math.min(limit, candidates.size())))
+            users.add(entry.user());
+        return users;
+    }
+
+    /** The SESSION_RESUME line for {@code ticket}: "SESSION_RESUME user port nonce proof". */
+    static String resumeRequest(SecretKey ticket, String user, int port, String nonce) throws Exception {
+        byte[] proof = SecurityUtils.hmacSha256(ticket.getEncoded(), resumeLine(user, port, nonce));
+        return resumeLine(user, port, nonce) + " " + Base64.getEncoder().encodeToString(proof);
+    }
+
+    /** The session key of a resumed connection, from the ticket and both sides' nonces. */
+    static SecretKey derive(SecretKey ticket, String clientNonce, String serverNonce) throws Exception {
+        byte[] key = SecurityUtils.hmacSha256(ticket.getEncoded(), "SESSION_KEY " + clientNonce + " " + serverNonce);
+        return new SecretKeySpec(key, 0, ticket.getEncoded().length, "AES");
+    }
+
+    /** A random nonce for one resumption. */
+    static String nonce() {
+        byte[] bytes = new byte[16];
+        new java.security.SecureRandom().nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static String resumeLine(String user, int port, String nonce) {
+        return "SESSION_RESUME " + user + " " + port + " " + nonce;
+    }
+
+    private void save() {
+        if (file == null)
+            return;
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : entries.values()) {
+            sb.append(entry.user()).append(' ').append(entry.host() == null ? "-" : entry.host()).append(' ')
+                    .append(entry.port()).append(' ').append(entry.lastUsed()).append(' ').append(entry.expires())
+                    .append(' ').append(entry.ticket() == null ? "-" : SecurityUtils.secretKeyToString(entry.ticket()))
+                    .append('\n');
+        }
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.deleteIfExists(tmp);
+            try {
+                Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the directory's permissions have to do
+            }
+            Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Cannot save sessions to " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package p2p.net;
+
+import p2p.security.SecurityUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntConsumer;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Downloads one file from every peer that serves it at once.
+ * <p>
+ * Each source gets its own connection ({@code SWARM_HELLO}, then encrypted
+ * frames) and pulls batches of chunks from a shared pool, so a fast source
+ * simply comes back for work more often. Batches are sized to about a
+ * quarter of a second at the source's measured rate, and two are kept in
+ * flight per source so its link never idles between them. Every chunk is
+ * checked against the per-chunk SHA-256 in the manifest before it is
+ * written; a source that sends a bad chunk, errors or stalls is dropped and
+ * its chunks go back to the pool. Once the pool is empty, a source that
+ * runs out of work also fetches, one at a time, the last chunks owed by
+ * slower sources, and whichever copy arrives first wins.
+ * <p>
+ * Data goes into a {@link PartialFile}, so an interrupted swarm download
+ * resumes like any other, and the whole file is checked against its content
+ * ID before it is renamed into place.
+ */
+final class SwarmDownload {
+    static final int MAX_SOURCES = 8;
+    private static final int MAX_BATCH = 32;
+    private static final long BATCH_NANOS = 250_000_000L;
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+    /** A source that sends nothing for this long while owing chunks is dropped. */
+    private static final int STALL_TIMEOUT_MS = 10_000;
+
+    /**
+     * What a holder serves: content ID (SHA-256 of the file), size, chunk size
+     * and the SHA-256 of every chunk. On the wire:
+     * {@code MANIFEST id size chunkSize hash,hash,...|- name}.
+     */
+    record Manifest(String contentId, long size, int chunkSize, List<String> chunkHashes, String name) {
+        int chunks() {
+            return chunkHashes.size();
+        }
+
+        /** Hashes {@code file} once, whole and per chunk. */
+        static Manifest build(File file, int chunkSize) throws IOException {
+            try (InputStream in = new java.io.FileInputStream(file)) {
+                MessageDigest whole = MessageDigest.getInstance("SHA-256");
+                MessageDigest part = MessageDigest.getInstance("SHA-256");
+                List<String> hashes = new ArrayList<>();
+                byte[] buffer = new byte[chunkSize];
+                long size = 0;
+                while (true) {
+                    int filled = in.readNBytes(buffer, 0, chunkSize);
+                    if (filled == 0)
+                        break;
+                    whole.update(buffer, 0, filled);
+                    part.update(buffer, 0, filled);
+                    hashes.add(HexFormat.of().formatHex(part.digest()));
+                    size += filled;
+                    if (filled < chunkSize)
+                        break;
+                }
+                return new Manifest(HexFormat.of().formatHex(whole.digest()), size, chunkSize,
+                        Collections.unmodifiableList(hashes), file.getName());
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        String encode() {
+            return "MANIFEST " + contentId + " " + size + " " + chunkSize + " "
+                    + (chunkHashes.isEmpty() ? "-" : String.join(",", chunkHashes)) + " " + name;
+        }
+
+        /** @throws IllegalArgumentException if the line is not a consistent manifest */
+        static Manifest parse(String line) {
+            String[] parts = line.split(" ", 6);
+            if (parts.length != 6 || !parts[0].equals("MANIFEST"))
+                throw new IllegalArgumentException("Not a manifest");
+            long size = Long.parseLong(parts[2]);
+            int chunkSize = Integer.parseInt(parts[3]);
+            List<String> hashes = parts[4].equals("-") ? List.of() : Arrays.asList(parts[4].split(","));
+            if (size < 0 || chunkSize <= 0 || hashes.size() != (size + chunkSize - 1) / chunkSize)
+                throw new IllegalArgumentException("Manifest does not add up");
+            return new Manifest(parts[1], size, chunkSize, hashes, parts[5]);
+        }
+    }
+
+    private final String username;
+    private final KeyPair keyPair;
+    private final String contentId;
+    private final List<String> candidates;
+    private final ContentStore store;
+    private final ExecutorService pool;
+    private final IntConsumer progress;
+
+    // Guarded by this
+    private final List<Source> sources = new ArrayList<>();
+    private Manifest manifest;
+    private PartialFile file;
+    private int[] copies; // Sources each chunk is in flight at
+    private int running;
+    private int percent = -1;
+    private boolean closed;
+
+    /**
+     * @param candidates peers that may hold the file, as "user:host:port"
+     * @param progress   percentage on disk, each time it changes
+     */
+    SwarmDownload(String username, KeyPair keyPair, String contentId, List<String> candidates, ContentStore store,
+            ExecutorService pool, IntConsumer progress) {
+        this.username = username;
+        this.keyPair = keyPair;
+        this.contentId = contentId;
+        this.candidates = candidates.subList(0, Math.min(candidates.size(), MAX_SOURCES));
+        this.store = store;
+        this.pool = pool;
+        this.progress = progress;
+    }
+
+    /**
+     * Downloads into {@code store}, blocking until the file is
+     * complete and verified or every source has failed.
+     */
+    File run() throws IOException, InterruptedException {
+        synchronized (this) {
+            for (String candidate : candidates) {
+                String[] peer = candidate.split(":");
+                if (peer.length != 3)
+                    continue;
+                Source source = new Source(peer[0], new InetSocketAddress(peer[1], Integer.parseInt(peer[2])));
+                sources.add(source);
+                running++;
+                pool.execute(source::run);
+            }
+            while (running > 0 && (file == null || !file.isComplete()))
+                wait();
+            closed = true;
+            for (Source source : sources)
+                source.close();
+            notifyAll();
+            if (file == null)
+                throw new IOException("No peer could serve " + contentId);
+            if (!file.isComplete()) {
+                file.close();
+                throw new IOException("Every source failed with " + file.missing().cardinality()
+                        + " chunks to go; run again to resume");
+            }
+        }
+        return store.add(contentId, manifest.name(), file.finish());
+    }
+
+    /** Bytes each source delivered, by user, in the order they were tried. */
+    synchronized Map<String, Long> bytesBySource() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        for (Source source : sources)
+            bytes.put(source.user, source.delivered);
+        return bytes;
+    }
+
+    /** Adopts the first manifest for our content ID; false if {@code offered} disagrees with it. */
+    private synchronized boolean offer(Manifest offered) throws IOException {
+        if (!offered.contentId().equals(contentId))
+            return false;
+        if (manifest == null) {
+            file = PartialFile.open(store.partial(contentId), contentId, offered.size(), offered.chunkSize());
+            manifest = offered;
+            copies = new int[offered.chunks()];
+            notifyAll();
+            return true;
+        }
+        // The name is the holder's own; the content must match
+        return manifest.size() == offered.size() && manifest.chunkSize() == offered.chunkSize()
+                && manifest.chunkHashes().equals(offered.chunkHashes());
+    }
+
+    /**
+     * Up to {@code n} chunks for {@code source}: ones nobody is fetching
+     * first, then (in the endgame) one outstanding at a slower source.
+     * Empty if there is nothing to do right now.
+     */
+    private synchronized BitSet assign(Source source, int n) {
+        BitSet batch = new BitSet();
+        if (closed)
+            return batch;
+        BitSet missing = file.missing();
+        for (int i = missing.nextSetBit(0); i >= 0 && batch.cardinality() < n; i = missing.nextSetBit(i + 1)) {
+            if (copies[i] == 0)
+                batch.set(i);
+        }
+        if (batch.isEmpty()) {
+            // Endgame: one chunk at a time, the last one a slower source would deliver
+            List<Source> slowest = new ArrayList<>(sources);
+            slowest.remove(source);
+            slowest.sort((a, b) -> Double.compare(a.rate, b.rate));
+            for (Source other : slowest) {
+                if (other.rate >= source.rate)
+                    break;
+                for (int i = other.inFlight.previousSetBit(other.inFlight.length() - 1); i >= 0;
+                        i = other.inFlight.previousSetBit(i - 1)) {
+                    if (copies[i] < 2 && !source.inFlight.get(i) && missing.get(i)) {
+                        batch.set(i);
+                        break;
+                    }
+                }
+                if (!batch.isEmpty())
+                    break;
+            }
+        }
+        for (int i = batch.nextSetBit(0); i >= 0; i = batch.nextSetBit(i + 1))
+            copies[i]++;
+        source.inFlight.or(batch);
+        return batch;
+    }
+
+    /** Marks chunk {@code index} done for every source fetching it. */
+    private synchronized void completed(int index) {
+        for (Source source : sources) {
+            if (source.inFlight.get(index)) {
+                source.inFlight.clear(index);
+                copies[index]--;
+            }
+        }
+        int now = (int) (file.received() * 100 / Math.max(1, manifest.size()));
+        if (now != percent) {
+            percent = now;
+            progress.accept(now);
+        }
+        notifyAll();
+    }
+
+    /** Returns what {@code source} still owed to the pool. */
+    private synchronized void release(Source source) {
+        for (int i = source.inFlight.nextSetBit(0); i >= 0; i = source.inFlight.nextSetBit(i + 1))
+            copies[i]--;
+        source.inFlight.clear();
+        notifyAll();
+    }
+
+    /** Waits for work to free up; false once the download is over. */
+    private synchronized boolean awaitWork() throws InterruptedException {
+        if (closed || file.isComplete())
+            return false;
+        wait(100);
+        return !closed;
+    }
+
+    private synchronized void finished(Source source) {
+        running--;
+        notifyAll();
+    }
+
+    /** One holder's connection and its share of the work. */
+    private final class Source {
+        final String user;
+        final InetSocketAddress address;
+        final BitSet inFlight = new BitSet(); // Guarded by the download
+        volatile double rate; // Bytes per second, smoothed
+        volatile long delivered;
+        private final ArrayDeque<BitSet> batches = new ArrayDeque<>();
+        private final Socket socket = new Socket();
+        private DataOutputStream out;
+        private SecretKey key;
+        private long lastArrival;
+
+        Source(String user, InetSocketAddress address) {
+            this.user = user;
+            this.address = address;
+        }
+
+        void run() {
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(STALL_TIMEOUT_MS);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 16 * 1024));
+                Frames.Reader in = new Frames.Reader(socket.getInputStream());
+                // SWARM_HELLO user publicKey -> SWARM_KEY rsa(sessionKey), then frames both ways
+                Frames.writeLine(out, "SWARM_HELLO " + username + " "
+                        + SecurityUtils.publicKeyToString(keyPair.getPublic()));
+                out.flush();
+                String reply = in.readLine();
+                if (reply == null || !reply.startsWith("SWARM_KEY "))
+                    return;
+                byte[] sealed = Base64.getDecoder().decode(reply.substring(10));
+                key = new SecretKeySpec(Threads.compute(() -> SecurityUtils.decryptRSA(sealed, keyPair.getPrivate())),
+                        "AES");
+                command("GET_MANIFEST " + contentId);
+                String answer = readCommand(in);
+                if (answer == null || !answer.startsWith("MANIFEST ") || !offer(Manifest.parse(answer)))
+                    return;
+                transfer(in);
+            } catch (Exception e) {
+                if (!closed())
+                    System.err.println("Swarm source " + user + " dropped: " + e);
+            } finally {
+                close();
+                release(this);
+                finished(this);
+            }
+        }
+
+        private void transfer(Frames.Reader in) throws Exception {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            javax.crypto.Cipher cipher = SecurityUtils.aesCipher(javax.crypto.Cipher.DECRYPT_MODE, key);
+            while (true) {
+                while (batches.size() < 2) {
+                    BitSet batch = assign(this, batchSize());
+                    if (batch.isEmpty())
+                        break;
+                    if (batches.isEmpty())
+                        lastArrival = System.nanoTime();
+                    batches.add(batch);
+                    command("GET_CHUNKS " + contentId + " " + PartialFile.encodeRanges(batch));
+                }
+                if (batches.isEmpty()) {
+                    if (!awaitWork())
+                        return;
+                    continue;
+                }
+                Frames.Frame frame = in.readFrame();
+                if (frame == null)
+                    throw new IOException("Connection closed");
+                byte[] plain = cipher.doFinal(frame.payload());
+                if (frame.type() == Frames.FILE_CHUNK) {
+                    receive(ByteBuffer.wrap(plain), digest);
+                } else if (frame.type() == Frames.COMMAND) {
+                    String line = new String(plain, StandardCharsets.UTF_8);
+                    if (!line.startsWith("CHUNKS_DONE "))
+                        throw new IOException("Unexpected reply: " + line);
+                    BitSet batch = batches.poll();
+                    if (batch == null)
+                        throw new IOException("Unrequested CHUNKS_DONE");
+                    // Whatever is still missing from the batch, the holder could not send
+                    BitSet unsent = file.missing();
+                    unsent.and(batch);
+                    if (!unsent.isEmpty())
+                        throw new IOException("Source skipped " + unsent.cardinality() + " chunks");
+                }
+            }
+        }
+
+        private void receive(ByteBuffer chunk, MessageDigest digest) throws IOException {
+            // [offset:8][data]
+            long offset = chunk.getLong();
+            long index = offset / manifest.chunkSize();
+            if (offset % manifest.chunkSize() != 0 || index >= manifest.chunks())
+                throw new IOException("Chunk at bad offset " + offset);
+            int length = chunk.remaining();
+            digest.update(chunk.duplicate());
+            String hash = HexFormat.of().formatHex(digest.digest());
+            if (!hash.equals(manifest.chunkHashes().get((int) index)))
+                throw new IOException("Chunk " + index + " failed its hash check");
+            file.write(offset, chunk);
+            delivered += length;
+            long now = System.nanoTime();
+            double sample = length * 1e9 / Math.max(1, now - lastArrival);
+            lastArrival = now;
+            rate = rate == 0 ? sample : rate * 0.7 + sample * 0.3;
+            completed((int) index);
+        }
+
+        /** Chunks worth about {@link #BATCH_NANOS} at the current rate. */
+        private int batchSize() {
+            if (rate == 0)
+                return 2;
+            long chunks = (long) (rate * BATCH_NANOS / 1e9 / manifest.chunkSize());
+            return (int) Math.max(1, Math.min(MAX_BATCH, chunks));
+        }
+
+        private void command(String line) throws Exception {
+            Frames.write(out, Frames.COMMAND, Frames.FLAG_ENCRYPTED,
+                    SecurityUtils.encryptAES(line.getBytes(StandardCharsets.UTF_8), key));
+            out.flush();
+        }
+
+        private String readCommand(Frames.Reader in) throws Exception {
+            Frames.Frame frame = in.readFrame();
+            if (frame == null || frame.type() != Frames.COMMAND)
+                return null;
+            return new String(SecurityUtils.decryptAES(frame.payload(), key), StandardCharsets.UTF_8);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private synchronized boolean closed() {
+        return closed;
+    }
+}
@@ -0,0 +1,120 @@
+package p2p.net;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the blocking socket loops and for CPU-bound work.
+ * <p>
+ * Connection handlers, discovery listeners and file senders spend nearly all
+ * their time blocked on a socket. With {@code -Dp2p.virtualThreads=true} on
+ * JDK 21+ they run on virtual threads, so a thousand sessions cost a
+ * thousand small heap objects instead of a thousand platform threads;
+ * otherwise they use named cached platform pools as before. Virtual threads
+ * are created through reflection so the code still builds and runs on older
+ * JDKs.
+ * <p>
+ * Work that keeps a core busy (RSA, key generation, file chunk encryption)
+ * goes through {@link #compute} onto one bounded pool sized to the machine,
+ * so it cannot monopolise the few carrier threads virtual threads run on.
+ */
+public final class Threads {
+    private static final boolean VIRTUAL = Boolean.getBoolean("p2p.virtualThreads") && virtualSupported();
+    private static final ExecutorService CPU_POOL = newCpuPool("p2p-cpu",
+            Runtime.getRuntime().availableProcessors(), 1024);
+    // Thread.isVirtual(), looked up only when virtual threads are on
+    private static final java.lang.reflect.Method IS_VIRTUAL = VIRTUAL ? isVirtualMethod() : null;
+
+    private Threads() {
+    }
+
+    /** True when blocking loops run on virtual threads. */
+    public static boolean virtual() {
+        return VIRTUAL;
+    }
+
+    /** One thread per task, named {@code name-N}: virtual if enabled, else a cached platform pool. */
+    public static ExecutorService newIoExecutor(String name) {
+        if (VIRTUAL) {
+            try {
+                // Thread.ofVirtual().name(name + "-", 0).factory(), via the public Thread.Builder interface
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                ThreadFactory threads = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, threads);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable (" + e + "); using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool(named(name, false));
+    }
+
+    /**
+     * Fixed pool of daemon platform threads for CPU-bound work. When the queue
+     * is full the caller runs the task itself, which slows submitters down
+     * instead of growing without bound.
+     */
+    public static ExecutorService newCpuPool(String name, int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), named(name, true), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Runs CPU-bound work. On a virtual thread it is handed to the shared CPU
+     * pool and the caller parks; a platform thread just runs it inline, since
+     * the hand-off would only add a context switch.
+     */
+    public static <T> T compute(Callable<T> work) throws Exception {
+        if (!onVirtualThread())
+            return work.call();
+        try {
+            return CPU_POOL.submit(work).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /** True if the caller runs on a virtual thread. */
+    static boolean onVirtualThread() {
+        if (IS_VIRTUAL == null)
+            return false;
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static java.lang.reflect.Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory named(String name, boolean daemon) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+
+    private static boolean virtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            System.err.println("-Dp2p.virtualThreads needs JDK 21+; running on " + System.getProperty("java.version")
+                    + " with platform threads");
+            return false;
+        }
+    }
+}
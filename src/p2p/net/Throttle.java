@@ -0,0 +1,110 @@
+package p2p.net;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Rate limits for one discovery connection: a bucket for every line it sends
+ * plus one per expensive command. A line runs only when both buckets have a
+ * token; otherwise the caller stops reading from the connection until they
+ * refill, so a flooding client is slowed down by TCP backpressure rather
+ * than disconnected.
+ */
+final class Throttle {
+
+    /** Refill rate and burst of one bucket, written "rate/burst" or "rate". */
+    record Limit(double perSecond, double burst) {
+        static Limit parse(String spec) {
+            String[] parts = spec.split("/");
+            double rate = Double.parseDouble(parts[0]);
+            double burst = parts.length > 1 ? Double.parseDouble(parts[1]) : Math.max(1, rate);
+            if (rate <= 0 || burst < 1)
+                throw new IllegalArgumentException("Bad rate limit: " + spec);
+            return new Limit(rate, burst);
+        }
+    }
+
+    /** Limits shared by every connection; only changed while parsing options. */
+    static final class Limits {
+        private Limit connection = new Limit(100, 200);
+        private final Map<String, Limit> commands = new HashMap<>();
+
+        Limits() {
+            commands.put("GLOBAL_MSG", new Limit(5, 20));
+            commands.put("ROOM_MSG", new Limit(5, 20));
+            commands.put("JOIN_ROOM", new Limit(5, 10));
+            commands.put("LEAVE_ROOM", new Limit(5, 10));
+            commands.put("GET_PEERS", new Limit(1, 5));
+            commands.put("LIST_PEERS", new Limit(20, 40));
+            commands.put("SEARCH_PEERS", new Limit(10, 20));
+            commands.put("WHO_HAS", new Limit(10, 20));
+            commands.put("SUBSCRIBE_PEERS", new Limit(1, 5));
+            commands.put("HISTORY", new Limit(1, 5));
+            commands.put("REGISTER", new Limit(1, 5));
+        }
+
+        /**
+         * Applies "COMMAND=rate/burst", or "*=rate/burst" for all lines on a
+         * connection. "off" instead of a rate removes that limit.
+         */
+        void set(String spec) {
+            int eq = spec.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("Expected COMMAND=rate/burst: " + spec);
+            String command = spec.substring(0, eq).trim().toUpperCase(Locale.ROOT);
+            String value = spec.substring(eq + 1).trim();
+            Limit limit = "off".equalsIgnoreCase(value) ? null : Limit.parse(value);
+            if ("*".equals(command)) {
+                connection = limit;
+            } else if (limit == null) {
+                commands.remove(command);
+            } else {
+                commands.put(command, limit);
+            }
+        }
+
+        /** The counter a throttled command is reported under. */
+        String category(String command) {
+            return commands.containsKey(command) ? command : "*";
+        }
+    }
+
+    private final Limits limits;
+    private final TokenBucket connection;
+    private final Map<String, TokenBucket> commands = new HashMap<>();
+
+    Throttle(Limits limits) {
+        this.limits = limits;
+        this.connection = limits.connection == null ? null
+                : new TokenBucket(limits.connection.perSecond(), limits.connection.burst(), System.nanoTime());
+    }
+
+    /** Upper-cased first word of a protocol line. */
+    static String command(String line) {
+        int space = line.indexOf(' ');
+        return (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Takes the tokens for one {@code command} and returns 0, or returns how
+     * many nanoseconds to wait before asking again without taking anything.
+     */
+    long admit(String command, long nowNanos) {
+        Limit limit = limits.commands.get(command);
+        TokenBucket bucket = null;
+        if (limit != null) {
+            bucket = commands.computeIfAbsent(command,
+                    c -> new TokenBucket(limit.perSecond(), limit.burst(), nowNanos));
+        }
+        long delay = Math.max(connection == null ? 0 : connection.delay(nowNanos),
+                bucket == null ? 0 : bucket.delay(nowNanos));
+        if (delay == 0) {
+            if (connection != null)
+                connection.take();
+            if (bucket != null)
+                bucket.take();
+        }
+        return delay;
+    }
+}
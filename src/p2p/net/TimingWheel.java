@@ -0,0 +1,122 @@
+package p2p.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hashed timing wheel used to expire registry entries.
+ * <p>
+ * Each key sits in the bucket for its deadline; a tick only walks the one
+ * bucket whose time has come. When a key's deadline arrives the callback
+ * decides what happens next: it returns a new deadline to reschedule (e.g.
+ * a heartbeat moved lastSeen forward) or a negative value to forget the key.
+ * Heartbeats therefore never touch the wheel, and each live key costs one
+ * callback per TTL rather than work on every tick.
+ * <p>
+ * {@link #schedule} may be called from any thread; {@link #advanceTo} must
+ * only be called from a single thread.
+ */
+final class TimingWheel<K> {
+
+    private static final class Node<K> {
+        final K key;
+        long deadline;
+        long rounds;
+        Node<K> next;
+
+        Node(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMs;
+    private final Node<K>[] buckets;
+    private final int mask;
+    private final ToLongFunction<K> onDeadline;
+    private final Queue<Node<K>> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<K, Boolean> scheduled = new ConcurrentHashMap<>();
+    private final long startMs;
+    private long currentTick;
+
+    /**
+     * @param tickMs     resolution of the wheel
+     * @param wheelSize  number of buckets, rounded up to a power of two
+     * @param onDeadline returns the key's next deadline, or a negative value
+     *                   to drop it
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMs, int wheelSize, long startMs, ToLongFunction<K> onDeadline) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMs = tickMs;
+        this.buckets = (Node<K>[]) new Node<?>[size];
+        this.mask = size - 1;
+        this.onDeadline = onDeadline;
+        this.startMs = startMs;
+    }
+
+    /** Schedules a key unless it is already on the wheel. */
+    void schedule(K key, long deadlineMs) {
+        if (scheduled.putIfAbsent(key, Boolean.TRUE) == null) {
+            pending.add(new Node<>(key, deadlineMs));
+        }
+    }
+
+    int size() {
+        return scheduled.size();
+    }
+
+    /** Advances the wheel up to {@code nowMs}, firing every bucket passed over. */
+    void advanceTo(long nowMs) {
+        long target = (nowMs - startMs) / tickMs;
+        while (currentTick <= target) {
+            tick(nowMs);
+            currentTick++;
+        }
+    }
+
+    private void tick(long nowMs) {
+        int index = (int) (currentTick & mask);
+        Node<K> head = buckets[index];
+        buckets[index] = null;
+        while (head != null) {
+            Node<K> current = head;
+            head = head.next;
+            current.next = null;
+            if (current.rounds > 0) {
+                current.rounds--;
+                link(index, current);
+                continue;
+            }
+            // Unmark first so a concurrent schedule() of a dropped key is not lost
+            scheduled.remove(current.key);
+            long next = onDeadline.applyAsLong(current.key);
+            if (next >= 0 && scheduled.putIfAbsent(current.key, Boolean.TRUE) == null) {
+                current.deadline = Math.max(next, nowMs + tickMs);
+                place(current);
+            }
+        }
+
+        // Placed after the bucket is walked so a node one full turn away is not fired early
+        Node<K> node;
+        while ((node = pending.poll()) != null) {
+            place(node);
+        }
+    }
+
+    private void place(Node<K> node) {
+        long ticks = Math.max(currentTick, (node.deadline - startMs + tickMs - 1) / tickMs);
+        // Anything already due fires on the next tick
+        if (ticks == currentTick)
+            ticks++;
+        node.rounds = (ticks - currentTick - 1) / buckets.length;
+        link((int) (ticks & mask), node);
+    }
+
+    private void link(int index, Node<K> node) {
+        node.next = buckets[index];
+        buckets[index] = node;
+    }
+}
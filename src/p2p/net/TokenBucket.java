@@ -0,0 +1,37 @@
+package p2p.net;
+
+/**
+ * Classic token bucket: refills at {@code perSecond} up to {@code burst}
+ * tokens. Not thread-safe; each bucket belongs to one connection's reader.
+ */
+final class TokenBucket {
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double perSecond, double burst, long nowNanos) {
+        this.perNano = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = nowNanos;
+    }
+
+    /** Nanoseconds until one token is available; 0 if one is available now. */
+    long delay(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+    }
+
+    /** Takes one token; only call after {@link #delay} returned 0. */
+    void take() {
+        tokens -= 1;
+    }
+
+    private void refill(long nowNanos) {
+        if (nowNanos > lastRefill) {
+            tokens = Math.min(burst, tokens + (nowNanos - lastRefill) * perNano);
+            lastRefill = nowNanos;
+        }
+    }
+}
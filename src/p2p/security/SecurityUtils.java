@@ -42,6 +42,27 @@ public class SecurityUtils {
         return new String(cipher.doFinal(decodedBytes));
     }
 
+    // AES Encryption of raw bytes (binary peer frames)
+    public static byte[] encryptAES(byte[] data, SecretKey key) throws Exception {
+        Cipher cipher = Cipher.getInstance(AES);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return cipher.doFinal(data);
+    }
+
+    // AES Decryption of raw bytes (binary peer frames)
+    public static byte[] decryptAES(byte[] data, SecretKey key) throws Exception {
+        Cipher cipher = Cipher.getInstance(AES);
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        return cipher.doFinal(data);
+    }
+
+    // AES Cipher for callers that reuse one across many chunks
+    public static Cipher aesCipher(int mode, SecretKey key) throws Exception {
+        Cipher cipher = Cipher.getInstance(AES);
+        cipher.init(mode, key);
+        return cipher;
+    }
+
     // RSA Encryption (for Session Key Exchange)
     public static byte[] encryptRSA(byte[] data, PublicKey publicKey) throws Exception {
         Cipher cipher = Cipher.getInstance(RSA);
@@ -56,6 +77,33 @@ public class SecurityUtils {
         return cipher.doFinal(data);
     }
 
+    // SHA-256 of a file's content as 64 hex digits (content IDs for transfers)
+    public static String sha256Hex(java.io.File file) throws java.io.IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (java.io.InputStream in = new java.io.FileInputStream(file)) {
+            byte[] buffer = new byte[256 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    // HMAC-SHA256, e.g. to prove a new connection belongs to an existing session
+    public static byte[] hmacSha256(byte[] key, String message) throws Exception {
+        javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(message.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
     public static String publicKeyToString(PublicKey key) {
         return Base64.getEncoder().encodeToString(key.getEncoded());
     }
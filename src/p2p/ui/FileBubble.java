@@ -1,5 +1,6 @@
 package p2p.ui;
 
+import p2p.net.PeerNode;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
@@ -62,7 +63,7 @@ public class FileBubble extends JPanel {
             // Async load
             new Thread(() -> {
                 try {
-                    File imgFile = new File("download_" + filename);
+                    File imgFile = new File(PeerNode.downloadsDirectory(), filename);
                     if (imgFile.exists()) {
                         BufferedImage img = ImageIO.read(imgFile);
                         if (img != null) {
@@ -97,7 +98,7 @@ public class FileBubble extends JPanel {
         openBtn.setPreferredSize(new Dimension(70, 25));
         openBtn.addActionListener(e -> {
             try {
-                Desktop.getDesktop().open(new File("download_" + filename));
+                Desktop.getDesktop().open(new File(PeerNode.downloadsDirectory(), filename));
             } catch (IOException ex) {
                 JOptionPane.showMessageDialog(this, "Could not open file: " + ex.getMessage());
             }
@@ -14,13 +14,18 @@ public class MainFrame extends JFrame {
     private final String username;
     private final DefaultListModel<String> peerListModel;
     private JList<String> peerList;
+    private JTextField searchField;
+    private String peerSearch = ""; // Non-empty while search results are shown
     private JPanel chatListPanel; // Replaces JTextArea
     private JTextField messageField;
     private JLabel chatTitle;
+    private CuteButton leaveRoomBtn;
 
     // Session State
     private String currentSession = "GLOBAL"; // Default to Global
     private final Map<String, List<JPanel>> chatHistory = new ConcurrentHashMap<>();
+    // Room sessions are keyed "#name"; peers cannot collide since they are "user:host:port"
+    private final Set<String> roomSessions = new TreeSet<>();
 
     public MainFrame(PeerNode peerNode, String username) {
         this.peerNode = peerNode;
@@ -55,6 +60,8 @@ public class MainFrame extends JFrame {
         add(sidePanel, BorderLayout.WEST);
         add(chatPanel, BorderLayout.CENTER);
 
+        // Membership changes are pushed; the timer only covers servers without push support
+        peerNode.addPeerListener(peers -> SwingUtilities.invokeLater(() -> showPeers(peers)));
         javax.swing.Timer timer = new javax.swing.Timer(5000, e -> refreshPeers());
         timer.start();
         refreshPeers();
@@ -72,7 +79,24 @@ public class MainFrame extends JFrame {
         title.setFont(Theme.FONT_TITLE);
         title.setForeground(Theme.TEXT_SECONDARY);
         title.setBorder(new EmptyBorder(20, 20, 10, 20));
-        panel.add(title, BorderLayout.NORTH);
+
+        // Server-side user lookup, so we never need the whole directory
+        searchField = new CuteTextField();
+        searchField.setToolTipText("Search users (Enter)");
+        searchField.addActionListener(e -> searchPeers());
+
+        JPanel header = new JPanel(new BorderLayout(0, 5));
+        header.setOpaque(false);
+        header.setBorder(new EmptyBorder(0, 10, 10, 10));
+        header.add(title, BorderLayout.NORTH);
+        header.add(searchField, BorderLayout.CENTER);
+
+        CuteButton joinRoomBtn = new CuteButton("+ Room");
+        joinRoomBtn.setColors(Theme.ACCENT, Theme.ACCENT_HOVER);
+        joinRoomBtn.setBorder(new EmptyBorder(5, 10, 5, 10));
+        joinRoomBtn.addActionListener(e -> joinRoom());
+        header.add(joinRoomBtn, BorderLayout.EAST);
+        panel.add(header, BorderLayout.NORTH);
 
         peerList = new JList<>(peerListModel);
         peerList.setOpaque(false);
@@ -104,6 +128,10 @@ public class MainFrame extends JFrame {
                         loadSession("GLOBAL");
                         return;
                     }
+                    if (roomSessions.contains(selected)) {
+                        loadSession(selected);
+                        return;
+                    }
 
                     String[] parts = selected.split(":");
                     String targetUser = parts[0];
@@ -147,7 +175,18 @@ public class MainFrame extends JFrame {
         chatTitle.setFont(Theme.FONT_TITLE);
         chatTitle.setForeground(Theme.TEXT_PRIMARY);
         chatTitle.setBorder(new EmptyBorder(15, 20, 15, 20));
-        panel.add(chatTitle, BorderLayout.NORTH);
+        leaveRoomBtn = new CuteButton("Leave");
+        leaveRoomBtn.setColors(Theme.ACCENT, Theme.ACCENT_HOVER);
+        leaveRoomBtn.setBorder(new EmptyBorder(5, 15, 5, 15));
+        leaveRoomBtn.setVisible(false);
+        leaveRoomBtn.addActionListener(e -> leaveRoom(currentSession));
+
+        JPanel titleBar = new JPanel(new BorderLayout());
+        titleBar.setOpaque(false);
+        titleBar.setBorder(new EmptyBorder(0, 0, 0, 15));
+        titleBar.add(chatTitle, BorderLayout.CENTER);
+        titleBar.add(leaveRoomBtn, BorderLayout.EAST);
+        panel.add(titleBar, BorderLayout.NORTH);
 
         chatListPanel = new JPanel();
         chatListPanel.setLayout(new BoxLayout(chatListPanel, BoxLayout.Y_AXIS));
@@ -173,8 +212,8 @@ public class MainFrame extends JFrame {
 
         CuteFileButton uploadBtn = new CuteFileButton();
         uploadBtn.addActionListener(e -> {
-            if (currentSession.equals("GLOBAL")) {
-                JOptionPane.showMessageDialog(this, "File sharing not available in Global Chat.");
+            if (currentSession.equals("GLOBAL") || isRoom(currentSession)) {
+                JOptionPane.showMessageDialog(this, "File sharing is only available in private chats.");
                 return;
             }
             JFileChooser chooser = new JFileChooser();
@@ -201,7 +240,14 @@ public class MainFrame extends JFrame {
 
     private void loadSession(String sessionName) {
         currentSession = sessionName;
-        chatTitle.setText(sessionName.equals("GLOBAL") ? "Global Chat" : "Chat with " + sessionName);
+        if (sessionName.equals("GLOBAL")) {
+            chatTitle.setText("Global Chat");
+        } else if (isRoom(sessionName)) {
+            chatTitle.setText("Room " + sessionName);
+        } else {
+            chatTitle.setText("Chat with " + sessionName);
+        }
+        leaveRoomBtn.setVisible(isRoom(sessionName));
         chatListPanel.removeAll();
 
         // Add Glue to push messages to the bottom
@@ -229,7 +275,10 @@ public class MainFrame extends JFrame {
         if (content.isEmpty())
             return;
 
-        if (currentSession.equals("GLOBAL")) {
+        if (isRoom(currentSession)) {
+            // Echoed back by the server like global chat
+            peerNode.sendRoomMessage(currentSession.substring(1), content);
+        } else if (currentSession.equals("GLOBAL")) {
             peerNode.sendGlobalMessage(content);
             // We don't verify delivery for global, just optimistic add?
             // Better to wait for server echo? Let's optimistic add for responsiveness.
@@ -243,6 +292,38 @@ public class MainFrame extends JFrame {
         messageField.setText("");
     }
 
+    private static boolean isRoom(String session) {
+        return session.startsWith("#");
+    }
+
+    private void joinRoom() {
+        String name = JOptionPane.showInputDialog(this, "Room name (letters, digits, _ or -):", "Join Room",
+                JOptionPane.PLAIN_MESSAGE);
+        if (name == null || name.trim().isEmpty())
+            return;
+        String session;
+        try {
+            session = "#" + peerNode.joinRoom(name);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Join Room", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        roomSessions.add(session);
+        chatHistory.computeIfAbsent(session, k -> new ArrayList<>());
+        fillPeerList(peerNode.getKnownPeers());
+        loadSession(session);
+    }
+
+    private void leaveRoom(String session) {
+        if (!isRoom(session))
+            return;
+        peerNode.leaveRoom(session.substring(1));
+        roomSessions.remove(session);
+        chatHistory.remove(session);
+        fillPeerList(peerNode.getKnownPeers());
+        loadSession("GLOBAL");
+    }
+
     private void addMessageToSession(String session, String sender, String content, boolean isMe) {
         JPanel bubble = new ChatBubblePanel(sender, content, isMe);
 
@@ -270,17 +351,47 @@ public class MainFrame extends JFrame {
     }
 
     private void refreshPeers() {
-        peerNode.fetchPeers(peers -> SwingUtilities.invokeLater(() -> {
-            peerListModel.clear();
-            peerListModel.addElement("Global Chat"); // Always top
-            for (String p : peers) {
-                if (!p.startsWith(username + ":")) {
-                    peerListModel.addElement(p);
-                }
-            }
+        peerNode.fetchPeers(peers -> SwingUtilities.invokeLater(() -> showPeers(peers)));
+    }
+
+    private void searchPeers() {
+        String query = searchField.getText().trim();
+        peerSearch = query;
+        if (query.isEmpty()) {
+            refreshPeers();
+            return;
+        }
+        peerNode.searchPeers(query, false, 50, peers -> SwingUtilities.invokeLater(() -> {
+            if (query.equals(peerSearch))
+                fillPeerList(peers);
         }));
     }
 
+    private void showPeers(List<String> peers) {
+        if (peerSearch.isEmpty())
+            fillPeerList(peers);
+    }
+
+    private void fillPeerList(List<String> peers) {
+        String selected = peerList.getSelectedValue();
+        peerListModel.clear();
+        peerListModel.addElement("Global Chat"); // Always top
+        for (String room : roomSessions) {
+            peerListModel.addElement(room);
+        }
+        for (String p : peers) {
+            if (!p.startsWith(username + ":")) {
+                peerListModel.addElement(p);
+            }
+        }
+        if (selected != null && peerListModel.contains(selected)) {
+            peerList.setSelectedValue(selected, false);
+        }
+        peerList.setToolTipText(peerNode.isPeerViewStale()
+                ? "Discovery server unreachable; showing the last known peers"
+                : null);
+    }
+
     public void onMessageReceived(String msg) {
         SwingUtilities.invokeLater(() -> {
             if (msg.startsWith("GLOBAL [")) {
@@ -291,6 +402,27 @@ public class MainFrame extends JFrame {
 
                 boolean isMe = sender.equals(username);
                 addMessageToSession("GLOBAL", sender, content, isMe);
+            } else if (msg.startsWith("ROOM ")) {
+                // Format: ROOM name [User]: Content
+                int open = msg.indexOf(" [", 5);
+                int endBracket = msg.indexOf("]: ", open);
+                String session = "#" + msg.substring(5, open);
+                String sender = msg.substring(open + 2, endBracket);
+                String content = msg.substring(endBracket + 3);
+                if (roomSessions.contains(session))
+                    addMessageToSession(session, sender, content, sender.equals(username));
+            } else if (msg.startsWith("ROOM_LEFT ")) {
+                // Format: ROOM_LEFT name reason
+                String[] parts = msg.split(" ", 3);
+                String session = "#" + parts[1];
+                if (roomSessions.remove(session)) {
+                    chatHistory.remove(session);
+                    fillPeerList(peerNode.getKnownPeers());
+                    if (session.equals(currentSession))
+                        loadSession("GLOBAL");
+                }
+                addSystemMessage(currentSession, "Room " + parts[1] + " unavailable ("
+                        + (parts.length == 3 ? parts[2] : "unknown") + ")");
             } else if (msg.contains(": ")) {
                 // Format: User: Content
                 String[] parts = msg.split(": ", 2);